@@ -1,18 +1,84 @@
 package com.medleystudios.pn;
 
+import com.medleystudios.pn.log.PNAsyncLogger;
+import com.medleystudios.pn.log.PNConsoleLogSink;
+import com.medleystudios.pn.log.PNRollingFileLogSink;
+
 import java.io.IOException;
 import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
 import java.util.Date;
 import java.util.TimeZone;
+import java.util.function.Supplier;
 
 public class PN {
 
    public static final TimeZone PN_UTC = TimeZone.getTimeZone("UTC");
 
+   /**
+    * Log levels from most to least verbose. A message is written when its level is at or above the current level.
+    */
+   public enum LogLevel {
+      TRACE,
+      DEBUG,
+      INFO,
+      ERROR,
+      OFF,
+   }
+
+   /**
+    * The ordinal of the current {@link LogLevel}, kept as a plain int so that level checks on hot paths are a single
+    * volatile read and compare. Starts at the "pn.log.level" system property, or INFO.
+    */
+   private static volatile int logLevel = readLogLevelProperty().ordinal();
+
+   private static LogLevel readLogLevelProperty() {
+      String value = System.getProperty("pn.log.level");
+      if (value == null) return LogLevel.INFO;
+
+      try {
+         return LogLevel.valueOf(value.trim().toUpperCase());
+      }
+      catch (IllegalArgumentException e) {
+         return LogLevel.INFO;
+      }
+   }
+
+   public static void setLogLevel(LogLevel level) {
+      logLevel = level.ordinal();
+   }
+
+   public static LogLevel getLogLevel() {
+      return LogLevel.values()[logLevel];
+   }
+
+   /**
+    * @return True if messages at the level are currently written
+    */
+   public static boolean isLoggable(LogLevel level) {
+      return level.ordinal() >= logLevel;
+   }
+
+   /**
+    * Cheaper than {@link #isLoggable(LogLevel)} for guarding trace output on hot paths, where even building the
+    * message supplier is too much.
+    */
+   public static boolean isTraceEnabled() {
+      return logLevel == 0;
+   }
+
+   public static boolean isDebugEnabled() {
+      return logLevel <= 1;
+   }
+
    public static String getThrowableLog(Throwable e) {
       StringWriter sw = new StringWriter();
       PrintWriter pw = new PrintWriter(sw);
@@ -50,11 +116,16 @@ public class PN {
     * @return The ISO8601-formatted string representing the current date in UTC.
     */
    public static String nowISO() {
-      DateFormat df = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
-      df.setTimeZone(PN_UTC);
-      return df.format(new Date());
+      return ISO_FORMAT.format(Instant.now());
    }
 
+   private static final DateTimeFormatter ISO_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'").withZone(ZoneOffset.UTC);
+
+   /**
+    * Writes a line to the stream synchronously, on the calling thread. Everything else in here goes through the
+    * {@link PNAsyncLogger} instead.
+    */
    public static void log(String tag, String message, PrintStream out) {
       String timestamp = PN.nowISO();
       out.println(tag + ": " + timestamp + " " + message);
@@ -64,39 +135,94 @@ public class PN {
       log(tag, from.getClass().getName() + " " + message, out);
    }
 
+   /**
+    * The logger every PN.log, debug, trace and error call is queued on. Writes to the console, and to the file named
+    * by the "pn.log.file" system property if it is set.
+    */
+   private static final PNAsyncLogger logger = createLogger();
+
+   private static PNAsyncLogger createLogger() {
+      PNAsyncLogger logger = new PNAsyncLogger(Integer.getInteger("pn.log.capacity", 8192));
+      logger.addSink(new PNConsoleLogSink());
+
+      String file = System.getProperty("pn.log.file");
+      if (file != null) {
+         try {
+            logger.addSink(new PNRollingFileLogSink(Paths.get(file), Long.getLong("pn.log.file.maxBytes",
+               64L * 1024 * 1024), Integer.getInteger("pn.log.file.backups", 5)));
+         }
+         catch (IOException e) {
+            log("ERROR", "Failed to open log file " + file + "\n" + getThrowableLog(e), System.out);
+         }
+      }
+
+      // Whatever is still queued when the process exits would otherwise be lost
+      Runtime.getRuntime().addShutdownHook(new Thread(logger::close, "pn-log-shutdown"));
+      return logger;
+   }
+
+   public static PNAsyncLogger getLogger() {
+      return logger;
+   }
+
+   /**
+    * Additionally logs to a file that is rolled over once it reaches maxFileBytes, keeping maxBackups old files.
+    */
+   public static void logToFile(Path path, long maxFileBytes, int maxBackups) throws IOException {
+      logger.addSink(new PNRollingFileLogSink(path, maxFileBytes, maxBackups));
+   }
+
    public static void log(String message) {
-      // Until we redirect to a file, just write to System.out
-      log("LOG", message, System.out);
+      if (!isLoggable(LogLevel.INFO)) return;
+      logger.log("LOG", null, message, null);
    }
 
    public static void log(Object from, String message) {
-      // Until we redirect to a file, just write to System.out
-      log("LOG", from, message, System.out);
+      if (!isLoggable(LogLevel.INFO)) return;
+      logger.log("LOG", from.getClass().getName(), message, null);
+   }
+
+   /**
+    * Logs at {@link LogLevel#DEBUG}. The message is only built if debug output is enabled.
+    */
+   public static void debug(Object from, Supplier<String> message) {
+      if (!isDebugEnabled()) return;
+      logger.log("DEBUG", from.getClass().getName(), message.get(), null);
+   }
+
+   public static void debug(Object from, String message) {
+      if (!isDebugEnabled()) return;
+      logger.log("DEBUG", from.getClass().getName(), message, null);
+   }
+
+   /**
+    * Logs at {@link LogLevel#TRACE}. The message is only built if trace output is enabled. On hot paths guard the
+    * call with {@link #isTraceEnabled()} so not even the supplier is created.
+    */
+   public static void trace(Object from, Supplier<String> message) {
+      if (!isTraceEnabled()) return;
+      logger.log("TRACE", from.getClass().getName(), message.get(), null);
    }
 
    public static void error(Throwable t, String message) {
-      // Until we redirect to a file, just write to System.out
-      // The reason we are not redirecting to System.err is because the first println goes on the same line as
-      // System.out's current line in the console
-      log("ERROR", message, System.out);
-      t.printStackTrace();
+      if (!isLoggable(LogLevel.ERROR)) return;
+      logger.log("ERROR", null, message, t);
    }
 
    public static void error(Throwable t, Object from, String message) {
-      // Until we redirect to a file, just write to System.out
-      // The reason we are not redirecting to System.err is because the first println goes on the same line as
-      // System.out's current line in the console
-      log("ERROR", from, message, System.out);
-      t.printStackTrace();
+      if (!isLoggable(LogLevel.ERROR)) return;
+      logger.log("ERROR", from.getClass().getName(), message, t);
    }
 
    public static void fatalError(Throwable t, String message) {
       error(t, message);
+      logger.flush();
       System.exit(1);
    }
 
    public static void fatalError(Throwable t, Object from, String message) {
       error(t, from, message);
+      logger.flush();
       System.exit(1);
    }
 }
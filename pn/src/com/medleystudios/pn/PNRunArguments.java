@@ -27,7 +27,15 @@ public class PNRunArguments {
    }
 
    public RunArgument addRunArgument(String field, RunArgument.ArgumentType type) {
-      RunArgument arg = new RunArgument(field, type, arguments.size());
+      return addRunArgument(field, type, null);
+   }
+
+   /**
+    * Adds an argument which may be left out, in which case it takes the default value. Optional arguments must come
+    * after all required ones.
+    */
+   public RunArgument addRunArgument(String field, RunArgument.ArgumentType type, String defaultValue) {
+      RunArgument arg = new RunArgument(field, type, arguments.size(), defaultValue);
       this.arguments.add(arg);
       return arg;
    }
@@ -49,6 +57,7 @@ public class PNRunArguments {
       private String field;
       private int location;
       private final ArgumentType type;
+      private final String defaultValue;
 
       private String data = null;
       private int dataInt = 0;
@@ -56,18 +65,31 @@ public class PNRunArguments {
       private float dataFloat = 0.0f;
 
       public RunArgument(String field, ArgumentType type, int location) {
+         this(field, type, location, null);
+      }
+
+      public RunArgument(String field, ArgumentType type, int location, String defaultValue) {
          this.field = field;
          this.location = location;
          this.type = type;
+         this.defaultValue = defaultValue;
       }
 
       public void read(String[] args) {
+         if (location >= args.length && defaultValue != null) {
+            parse(defaultValue);
+            return;
+         }
          if (location < 0 || location >= args.length) {
             PN.fatalError(new RuntimeException(), this, "Unable to locate run argument: " + this + ". Args with length " + args.length + ": [" + String.join(", " +
                "", args) + "]");
             return;
          }
-         data = args[location];
+         parse(args[location]);
+      }
+
+      private void parse(String value) {
+         data = value;
          testDataExists();
 
          try {
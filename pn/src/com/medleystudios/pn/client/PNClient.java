@@ -2,11 +2,16 @@ package com.medleystudios.pn.client;
 
 import com.medleystudios.pn.PN;
 import com.medleystudios.pn.conn.PNConnection;
-import com.medleystudios.pn.io.PNInputStreamReader;
+import com.medleystudios.pn.conn.PNIdleMonitor;
 import com.medleystudios.pn.io.PNOutputStreamWriter;
+import com.medleystudios.pn.io.PNPacketHandler;
+import com.medleystudios.pn.tick.PNTickScheduler;
 import com.medleystudios.pn.util.PNUtil;
 
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
 
 import static com.ea.async.Async.await;
 
@@ -28,6 +33,8 @@ public class PNClient implements Runnable {
 
    private final String host;
    private final int port;
+   private final PNTickScheduler ticker;
+   private final PNPacketHandler packetHandler = this::handlePacket;
 
    private String errorMessage = null;
 
@@ -39,6 +46,7 @@ public class PNClient implements Runnable {
       // Process run arguments
       this.host = this.runArguments.getHost();
       this.port = this.runArguments.getPort();
+      this.ticker = new PNTickScheduler("client", this.runArguments.getTickRate());
    }
 
    public PNClient(String[] args) {
@@ -60,6 +68,12 @@ public class PNClient implements Runnable {
                if (socketResolver.didSucceed()) {
                   Socket clientSocket = socketResolver.getSocket();
                   this.connection = await(PNConnection.get(clientSocket));
+                  this.connection.queueIO();
+                  this.connection.getWriter().setBatchLimits(PNOutputStreamWriter.DEFAULT_MAX_BATCH_BYTES,
+                     this.ticker.getTickNanos(), TimeUnit.NANOSECONDS);
+                  this.connection.setIdleTimeouts(PNIdleMonitor.DEFAULT_READ_TIMEOUT_MILLIS,
+                     PNIdleMonitor.DEFAULT_WRITE_TIMEOUT_MILLIS, PNIdleMonitor.DEFAULT_PING_INTERVAL_MILLIS,
+                     TimeUnit.MILLISECONDS);
                   PN.log("Connection established: " + this.connection);
                   this.setState(ClientState.CONNECTED);
                }
@@ -74,36 +88,41 @@ public class PNClient implements Runnable {
    }
 
    private void loop() {
-      long i = 0;
-      while (true) {
-         try {
-            Thread.sleep(2);
-         }
-         catch (InterruptedException e) {
-            PN.fatalError(e, this, "Failed to sleep thread");
-         }
+      // Log the client's state about every 10 seconds
+      long logInterval = this.ticker.getTicksPerSecond() * 10L;
 
+      this.ticker.run((tick) -> {
+         PNConnection connection;
          synchronized (this) {
-            if (isInitializing()) continue;
-            if (isEstablishingConnection()) continue;
+            if (isInitializing()) return true;
+            if (isEstablishingConnection()) return true;
             if (!isConnected()) {
                PN.log("Client no longer connected! Exiting...");
-               break;
-            }
-            if (!checkConnection()) {
-               PN.log("Client connection checks failed! Exiting...");
-               break;
+               return false;
             }
+            connection = this.connection;
+         }
 
-            PNInputStreamReader reader = this.connection.getReader();
-            PNOutputStreamWriter writer = this.connection.getWriter();
+         // Handle what arrived since the last tick before checking the connection, so nothing sent just before the
+         // server closed is lost
+         connection.getInbound().drain(this.packetHandler);
+         if (!checkConnection()) {
+            PN.log("Client connection checks failed! Exiting...");
+            return false;
+         }
+         connection.getWriter().sendQueued();
 
-            i++;
-            if (i % 1000 == 0) {
-               PN.log("CLIENT: " + this.connection);
-            }
+         if (tick % logInterval == 0) {
+            PN.log("CLIENT: " + connection + " " + this.ticker);
          }
-      }
+         return true;
+      });
+   }
+
+   private void handlePacket(int packetId, ByteBuffer payload) {
+      byte[] data = new byte[payload.remaining()];
+      payload.get(data);
+      PN.log(this, "Received packet [id: " + packetId + ", data: " + Arrays.toString(data) + "]");
    }
 
    private synchronized boolean checkConnection() {
@@ -205,6 +224,13 @@ public class PNClient implements Runnable {
       return this.state;
    }
 
+   /**
+    * @return The scheduler running the client's ticks, along with its timing statistics
+    */
+   public PNTickScheduler getTicker() {
+      return this.ticker;
+   }
+
    public synchronized PNConnection getConnection() {
       return this.connection;
    }
@@ -6,11 +6,13 @@ public class PNClientRunArguments extends PNRunArguments {
 
    private PNRunArguments.RunArgument host;
    private PNRunArguments.RunArgument port;
+   private PNRunArguments.RunArgument tickRate;
 
    public PNClientRunArguments() {
       super();
       this.host = this.addRunArgument("HOST", RunArgument.ArgumentType.STRING);
       this.port = this.addRunArgument("PORT", RunArgument.ArgumentType.INT);
+      this.tickRate = this.addRunArgument("TICK_RATE", RunArgument.ArgumentType.INT, "60");
    }
 
    public String getHost() {
@@ -20,4 +22,11 @@ public class PNClientRunArguments extends PNRunArguments {
    public int getPort() {
       return this.port.getInteger();
    }
+
+   /**
+    * @return The number of ticks per second. Optional, defaults to 60.
+    */
+   public int getTickRate() {
+      return this.tickRate.getInteger();
+   }
 }
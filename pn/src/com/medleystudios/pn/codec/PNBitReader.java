@@ -0,0 +1,171 @@
+package com.medleystudios.pn.codec;
+
+import com.medleystudios.pn.io.PNProtocolException;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reads back what a {@link PNBitWriter} packed, taking the buffer a 64-bit word at a time. Each read must use the
+ * same width the value was written with.
+ * <p>
+ * The reader runs ahead of what it has handed out by up to a word, so the buffer's position means nothing until
+ * {@link #finish()} puts it just past the last byte read from. A reader is reusable through
+ * {@link #reset(ByteBuffer)}, for instance on each payload a packet handler receives. Not thread-safe.
+ */
+public class PNBitReader {
+
+   private ByteBuffer src;
+   private boolean swap;
+   private int start;
+
+   /**
+    * The bits taken from the buffer but not read yet, lowest first
+    */
+   private long scratch = 0;
+   private int scratchBits = 0;
+
+   public PNBitReader() {
+   }
+
+   public PNBitReader(ByteBuffer src) {
+      this.reset(src);
+   }
+
+   /**
+    * Starts reading at the buffer's position, up to its limit.
+    */
+   public PNBitReader reset(ByteBuffer src) {
+      this.src = src;
+      this.swap = src.order() != ByteOrder.LITTLE_ENDIAN;
+      this.start = src.position();
+      this.scratch = 0;
+      this.scratchBits = 0;
+      return this;
+   }
+
+   /**
+    * @param bits From 0 to 64
+    * @throws PNProtocolException If the buffer runs out first
+    */
+   public long readBits(int bits) throws PNProtocolException {
+      if (bits <= this.scratchBits) {
+         return this.take(bits);
+      }
+
+      long value = this.scratch;
+      int have = this.scratchBits;
+      this.refill();
+      int need = bits - have;
+      if (need > this.scratchBits) {
+         throw new PNProtocolException("Bit stream ended " + (need - this.scratchBits) + " bits short");
+      }
+      return value | (this.take(need) << have);
+   }
+
+   public boolean readBoolean() throws PNProtocolException {
+      return this.readBits(1) != 0;
+   }
+
+   /**
+    * Reads a value written by {@link PNBitWriter#writeInt(int, int, int)} with the same range.
+    *
+    * @throws PNProtocolException If the value read is out of range
+    */
+   public int readInt(int min, int max) throws PNProtocolException {
+      long range = (long)max - min;
+      long offset = this.readBits(PNBitWriter.bitsRequired(range));
+      if (offset > range) {
+         throw new PNProtocolException("Value " + (min + offset) + " is outside " + min + " to " + max);
+      }
+      return (int)(min + offset);
+   }
+
+   /**
+    * Reads a two's complement value, extending its sign.
+    */
+   public long readSigned(int bits) throws PNProtocolException {
+      long value = this.readBits(bits);
+      int shift = 64 - bits;
+      return bits == 0 ? 0 : (value << shift) >> shift;
+   }
+
+   public float readFloat(float min, float max, int bits) throws PNProtocolException {
+      return PNCodec.dequantize((int)this.readBits(bits), min, max, bits);
+   }
+
+   public float readFloat() throws PNProtocolException {
+      return Float.intBitsToFloat((int)this.readBits(32));
+   }
+
+   public double readDouble() throws PNProtocolException {
+      return Double.longBitsToDouble(this.readBits(64));
+   }
+
+   /**
+    * Skips the padding up to the next whole byte.
+    */
+   public void align() {
+      this.take(this.scratchBits & 7);
+   }
+
+   /**
+    * Aligns to the next whole byte and moves the buffer's position there, handing back the bytes read ahead.
+    *
+    * @return The number of bytes read since the last reset
+    */
+   public int finish() {
+      this.align();
+      this.src.position(this.src.position() - this.scratchBits / 8);
+      this.scratch = 0;
+      this.scratchBits = 0;
+      return this.src.position() - this.start;
+   }
+
+   /**
+    * @return The number of bits read since the last reset
+    */
+   public long getBitsRead() {
+      return (long)(this.src.position() - this.start) * 8 - this.scratchBits;
+   }
+
+   /**
+    * @return The number of bits left before the buffer's limit
+    */
+   public long getBitsRemaining() {
+      return (long)this.src.remaining() * 8 + this.scratchBits;
+   }
+
+   private long take(int bits) {
+      if (bits == 0) return 0;
+      if (bits == 64) {
+         long value = this.scratch;
+         this.scratch = 0;
+         this.scratchBits = 0;
+         return value;
+      }
+      long value = this.scratch & ((1L << bits) - 1);
+      this.scratch >>>= bits;
+      this.scratchBits -= bits;
+      return value;
+   }
+
+   /**
+    * Loads the next word, or whatever bytes are left if there is less. Only called once the scratch is used up.
+    */
+   private void refill() {
+      if (this.src.remaining() >= 8) {
+         long word = this.src.getLong();
+         this.scratch = this.swap ? Long.reverseBytes(word) : word;
+         this.scratchBits = 64;
+         return;
+      }
+
+      this.scratch = 0;
+      this.scratchBits = 0;
+      while (this.src.hasRemaining()) {
+         this.scratch |= (this.src.get() & 0xFFL) << this.scratchBits;
+         this.scratchBits += 8;
+      }
+   }
+}
@@ -0,0 +1,145 @@
+package com.medleystudios.pn.codec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Packs values of any width from 1 to 64 bits into a buffer with no padding between them, for data such as snapshots
+ * where small integers, flags and quantized values dominate and every bit counts.
+ * <p>
+ * Bits collect in a 64-bit word that goes into the buffer whole once full, so most writes are a shift and an or. The
+ * stream is least significant bit first and little-endian whatever the buffer's byte order, which is what
+ * {@link PNBitReader} expects. Call {@link #finish()} to write out the last partial word.
+ * <p>
+ * A writer is reusable: {@link #reset(ByteBuffer)} points it at a new buffer, such as a pooled
+ * {@link com.medleystudios.pn.io.PNBuffer}'s memory, without allocating. Not thread-safe.
+ */
+public class PNBitWriter {
+
+   private ByteBuffer dst;
+   private boolean swap;
+   private int start;
+
+   /**
+    * The bits not written to the buffer yet, lowest first
+    */
+   private long scratch = 0;
+   private int scratchBits = 0;
+
+   public PNBitWriter() {
+   }
+
+   public PNBitWriter(ByteBuffer dst) {
+      this.reset(dst);
+   }
+
+   /**
+    * Starts writing at the buffer's position, discarding anything not finished.
+    */
+   public PNBitWriter reset(ByteBuffer dst) {
+      this.dst = dst;
+      this.swap = dst.order() != ByteOrder.LITTLE_ENDIAN;
+      this.start = dst.position();
+      this.scratch = 0;
+      this.scratchBits = 0;
+      return this;
+   }
+
+   /**
+    * Writes the low bits of the value.
+    *
+    * @param bits From 0 to 64
+    */
+   public void writeBits(long value, int bits) {
+      if (bits == 0) return;
+      if (bits < 64) {
+         value &= (1L << bits) - 1;
+      }
+
+      this.scratch |= value << this.scratchBits;
+      int total = this.scratchBits + bits;
+      if (total < 64) {
+         this.scratchBits = total;
+         return;
+      }
+
+      this.dst.putLong(this.swap ? Long.reverseBytes(this.scratch) : this.scratch);
+      int used = 64 - this.scratchBits;
+      this.scratch = used == 64 ? 0 : value >>> used;
+      this.scratchBits = total - 64;
+   }
+
+   public void writeBoolean(boolean value) {
+      this.writeBits(value ? 1 : 0, 1);
+   }
+
+   /**
+    * Writes a value known to lie from min to max in as few bits as the range needs.
+    *
+    * @throws IllegalArgumentException If the value is out of range
+    */
+   public void writeInt(int value, int min, int max) {
+      if (value < min || value > max) {
+         throw new IllegalArgumentException("Value " + value + " is outside " + min + " to " + max);
+      }
+      this.writeBits((long)value - min, bitsRequired((long)max - min));
+   }
+
+   /**
+    * Writes a signed value in two's complement. It must fit the bits for {@link PNBitReader#readSigned(int)} to
+    * read it back.
+    */
+   public void writeSigned(long value, int bits) {
+      this.writeBits(value, bits);
+   }
+
+   /**
+    * Writes the value quantized over the range, see {@link PNCodec#quantize(float, float, float, int)}.
+    */
+   public void writeFloat(float value, float min, float max, int bits) {
+      this.writeBits(PNCodec.quantize(value, min, max, bits) & 0xFFFFFFFFL, bits);
+   }
+
+   public void writeFloat(float value) {
+      this.writeBits(Float.floatToRawIntBits(value) & 0xFFFFFFFFL, 32);
+   }
+
+   public void writeDouble(double value) {
+      this.writeBits(Double.doubleToRawLongBits(value), 64);
+   }
+
+   /**
+    * Pads with zeros to the next whole byte.
+    */
+   public void align() {
+      this.writeBits(0, -this.scratchBits & 7);
+   }
+
+   /**
+    * Writes out the remaining bits, padded to a whole byte, leaving the buffer's position after them.
+    *
+    * @return The number of bytes written since the last reset
+    */
+   public int finish() {
+      while (this.scratchBits > 0) {
+         this.dst.put((byte)this.scratch);
+         this.scratch >>>= 8;
+         this.scratchBits = Math.max(this.scratchBits - 8, 0);
+      }
+      return this.dst.position() - this.start;
+   }
+
+   /**
+    * @return The number of bits written since the last reset
+    */
+   public long getBitsWritten() {
+      return (long)(this.dst.position() - this.start) * 8 + this.scratchBits;
+   }
+
+   /**
+    * @return The number of bits needed for values from 0 to range
+    */
+   public static int bitsRequired(long range) {
+      return range == 0 ? 0 : 64 - Long.numberOfLeadingZeros(range);
+   }
+}
@@ -0,0 +1,193 @@
+package com.medleystudios.pn.codec;
+
+import com.medleystudios.pn.io.PNProtocolException;
+import com.medleystudios.pn.io.PNVarInt;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The encodings {@link PNCodecGenerator} builds messages from, for code generated from a {@link PNSchema}. Everything
+ * is static and works on a {@link ByteBuffer}'s position, so the generated encoders and decoders are plain calls the
+ * JIT can inline.
+ * <p>
+ * Signed integers go through zig-zag encoding before becoming varints, so small negative values stay small. Floats
+ * can be quantized to a number of bits over a known range. Booleans are packed eight to a byte.
+ */
+public class PNCodec {
+
+   /**
+    * The most bytes a 64-bit varint can take
+    */
+   public static final int MAX_VARLONG_BYTES = 10;
+
+   private PNCodec() {
+   }
+
+   public static int zigZag(int value) {
+      return (value << 1) ^ (value >> 31);
+   }
+
+   public static int unZigZag(int value) {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   public static long zigZag(long value) {
+      return (value << 1) ^ (value >> 63);
+   }
+
+   public static long unZigZag(long value) {
+      return (value >>> 1) ^ -(value & 1);
+   }
+
+   public static int signedVarIntSize(int value) {
+      return PNVarInt.size(zigZag(value));
+   }
+
+   public static void writeSignedVarInt(ByteBuffer dst, int value) {
+      PNVarInt.write(dst, zigZag(value));
+   }
+
+   public static int readSignedVarInt(ByteBuffer src) throws PNProtocolException {
+      return unZigZag(PNVarInt.read(src));
+   }
+
+   /**
+    * @return The number of bytes needed to encode the value as an unsigned 64-bit varint
+    */
+   public static int varLongSize(long value) {
+      int size = 1;
+      while ((value & ~0x7FL) != 0) {
+         value >>>= 7;
+         size++;
+      }
+      return size;
+   }
+
+   public static void writeVarLong(ByteBuffer dst, long value) {
+      while ((value & ~0x7FL) != 0) {
+         dst.put((byte)((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      dst.put((byte)value);
+   }
+
+   /**
+    * @throws PNProtocolException If the varint is malformed or runs past the buffer's limit
+    */
+   public static long readVarLong(ByteBuffer src) throws PNProtocolException {
+      long value = 0;
+      for (int i = 0; i < MAX_VARLONG_BYTES; i++) {
+         if (!src.hasRemaining()) {
+            throw new PNProtocolException("Truncated varlong");
+         }
+         byte b = src.get();
+         value |= (long)(b & 0x7F) << (7 * i);
+         if ((b & 0x80) == 0) return value;
+      }
+      throw new PNProtocolException("Malformed varlong");
+   }
+
+   public static int signedVarLongSize(long value) {
+      return varLongSize(zigZag(value));
+   }
+
+   public static void writeSignedVarLong(ByteBuffer dst, long value) {
+      writeVarLong(dst, zigZag(value));
+   }
+
+   public static long readSignedVarLong(ByteBuffer src) throws PNProtocolException {
+      return unZigZag(readVarLong(src));
+   }
+
+   /**
+    * Maps the value onto one of 2^bits evenly spaced steps from min to max, clamping it to the range first. NaN maps
+    * to min.
+    *
+    * @param bits From 1 to 32
+    */
+   public static int quantize(float value, float min, float max, int bits) {
+      long steps = (1L << bits) - 1;
+      if (!(value > min)) return 0;
+      if (value >= max) return (int)steps;
+      return (int)Math.round((double)(value - min) / (max - min) * steps);
+   }
+
+   /**
+    * The inverse of {@link #quantize(float, float, float, int)}, off by at most half a step
+    */
+   public static float dequantize(int quantized, float min, float max, int bits) {
+      long steps = (1L << bits) - 1;
+      return (float)(min + (quantized & 0xFFFFFFFFL) * ((double)(max - min) / steps));
+   }
+
+   /**
+    * @return The number of whole bytes a value of the given number of bits is stored in
+    */
+   public static int bytesFor(int bits) {
+      return (bits + 7) >>> 3;
+   }
+
+   /**
+    * Writes the low bytes bytes of the value, most significant first.
+    */
+   public static void writeBytes(ByteBuffer dst, int value, int bytes) {
+      for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+         dst.put((byte)(value >>> shift));
+      }
+   }
+
+   public static int readBytes(ByteBuffer src, int bytes) {
+      int value = 0;
+      for (int i = 0; i < bytes; i++) {
+         value = (value << 8) | (src.get() & 0xFF);
+      }
+      return value;
+   }
+
+   public static void writeQuantized(ByteBuffer dst, float value, float min, float max, int bits) {
+      writeBytes(dst, quantize(value, min, max, bits), bytesFor(bits));
+   }
+
+   public static float readQuantized(ByteBuffer src, float min, float max, int bits) {
+      return dequantize(readBytes(src, bytesFor(bits)), min, max, bits);
+   }
+
+   /**
+    * Packs the flags, eight to a byte, lowest index in the lowest bit.
+    */
+   public static void writeBooleans(ByteBuffer dst, boolean[] values, int count) {
+      for (int i = 0; i < count; i += 8) {
+         int bits = 0;
+         int end = Math.min(count, i + 8);
+         for (int j = i; j < end; j++) {
+            if (values[j]) {
+               bits |= 1 << (j - i);
+            }
+         }
+         dst.put((byte)bits);
+      }
+   }
+
+   public static void readBooleans(ByteBuffer src, boolean[] values, int count) {
+      for (int i = 0; i < count; i += 8) {
+         int bits = src.get();
+         int end = Math.min(count, i + 8);
+         for (int j = i; j < end; j++) {
+            values[j] = (bits & (1 << (j - i))) != 0;
+         }
+      }
+   }
+
+   /**
+    * Reads the element count of an array field, checking it fits the field.
+    *
+    * @throws PNProtocolException If the count is malformed or more than the field holds
+    */
+   public static int readCount(ByteBuffer src, int capacity, String field) throws PNProtocolException {
+      int count = PNVarInt.read(src);
+      if (count < 0 || count > capacity) {
+         throw new PNProtocolException("Count " + (count & 0xFFFFFFFFL) + " of " + field + " exceeds " + capacity);
+      }
+      return count;
+   }
+}
@@ -0,0 +1,392 @@
+package com.medleystudios.pn.codec;
+
+import com.medleystudios.pn.io.PNMessage;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Generates a {@link PNMessage} class for each message of a {@link PNSchema}. The generated code is straight-line
+ * calls into {@link PNCodec} and {@link java.nio.ByteBuffer} for exactly the message's fields, with no reflection,
+ * boxing or allocation, and array fields are preallocated at their full size.
+ * <p>
+ * Run as a program, it takes an output directory followed by schema files or directories to search for files ending
+ * in {@value #SCHEMA_EXTENSION}, and writes the classes into the output directory under their packages. The build's
+ * {@code generateMessages} task runs it over the module's schema directory.
+ */
+public class PNCodecGenerator {
+
+   public static final String SCHEMA_EXTENSION = ".pnschema";
+
+   private static final String INDENT = "   ";
+
+   private PNCodecGenerator() {
+   }
+
+   /**
+    * Parses the schema file and writes the classes of its messages.
+    *
+    * @return The files written
+    */
+   public static List<Path> generate(Path schemaFile, Path outputDir) throws IOException, PNSchemaException {
+      String source = new String(Files.readAllBytes(schemaFile), StandardCharsets.UTF_8);
+      PNSchema schema = PNSchema.parse(source, schemaFile.getFileName().toString());
+
+      Path packageDir = outputDir.resolve(schema.getPackageName().replace('.', '/'));
+      Files.createDirectories(packageDir);
+
+      List<Path> written = new ArrayList<>();
+      for (PNSchema.Message message : schema.getMessages()) {
+         Path file = packageDir.resolve(message.getName() + ".java");
+         Files.write(file, generate(schema, message).getBytes(StandardCharsets.UTF_8));
+         written.add(file);
+      }
+      return written;
+   }
+
+   /**
+    * @return The source of the message's class
+    */
+   public static String generate(PNSchema schema, PNSchema.Message message) {
+      return new Emitter(schema, message).emit();
+   }
+
+   public static void main(String[] args) throws IOException {
+      if (args.length < 2) {
+         System.err.println("Usage: PNCodecGenerator <output dir> <schema file or dir>...");
+         System.exit(2);
+      }
+
+      Path outputDir = Paths.get(args[0]);
+      List<Path> schemaFiles = new ArrayList<>();
+      for (int i = 1; i < args.length; i++) {
+         Path path = Paths.get(args[i]);
+         if (Files.isDirectory(path)) {
+            try (Stream<Path> files = Files.walk(path)) {
+               schemaFiles.addAll(files.filter((file) -> file.toString().endsWith(SCHEMA_EXTENSION)).sorted()
+                  .collect(Collectors.toList()));
+            }
+         }
+         else {
+            schemaFiles.add(path);
+         }
+      }
+
+      int count = 0;
+      for (Path schemaFile : schemaFiles) {
+         try {
+            count += generate(schemaFile, outputDir).size();
+         }
+         catch (PNSchemaException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+         }
+      }
+      System.out.println("Generated " + count + " message classes from " + schemaFiles.size() + " schema files");
+   }
+
+   /**
+    * Writes out one message's class
+    */
+   private static class Emitter {
+      private final PNSchema schema;
+      private final PNSchema.Message message;
+
+      /**
+       * The single boolean fields, which are packed into flag bytes ahead of the rest
+       */
+      private final List<PNSchema.Field> flags = new ArrayList<>();
+      private final List<PNSchema.Field> fields = new ArrayList<>();
+
+      private final StringBuilder out = new StringBuilder();
+      private int depth = 0;
+
+      Emitter(PNSchema schema, PNSchema.Message message) {
+         this.schema = schema;
+         this.message = message;
+         for (PNSchema.Field field : message.getFields()) {
+            if (field.getType() == PNSchema.Type.BOOL && !field.isArray()) {
+               this.flags.add(field);
+            }
+            else {
+               this.fields.add(field);
+            }
+         }
+      }
+
+      String emit() {
+         String name = this.message.getName();
+         this.line("// Generated by PNCodecGenerator from " + this.schema.getSourceName() + ". Do not edit.");
+         this.line("package " + this.schema.getPackageName() + ";");
+         this.line("");
+         this.line("import com.medleystudios.pn.codec.PNCodec;");
+         this.line("import com.medleystudios.pn.io.PNMessage;");
+         this.line("import com.medleystudios.pn.io.PNProtocolException;");
+         this.line("import com.medleystudios.pn.io.PNVarInt;");
+         this.line("");
+         this.line("import java.nio.BufferUnderflowException;");
+         this.line("import java.nio.ByteBuffer;");
+         this.line("");
+         this.open("public final class " + name + " implements PNMessage");
+         this.line("");
+         this.line("public static final int PACKET_ID = " + this.message.getPacketId() + ";");
+         this.line("");
+         for (PNSchema.Field field : this.message.getFields()) {
+            String type = field.getType().getJavaType();
+            if (field.isArray()) {
+               this.line("public final " + type + "[] " + field.getName() + " = new " + type + "[" +
+                  field.getCapacity() + "];");
+               this.line("public int " + field.getName() + "Count;");
+            }
+            else {
+               this.line("public " + type + " " + field.getName() + ";");
+            }
+         }
+         this.line("");
+         this.line("@Override");
+         this.open("public int getPacketId()");
+         this.line("return PACKET_ID;");
+         this.close();
+         this.line("");
+         this.emitSize();
+         this.line("");
+         this.emitEncode();
+         this.line("");
+         this.emitDecode();
+         this.close();
+         return this.out.toString();
+      }
+
+      private void emitSize() {
+         int fixed = (this.flags.size() + 7) / 8;
+         for (PNSchema.Field field : this.fields) {
+            if (!field.isArray() && fixedSize(field) >= 0) {
+               fixed += fixedSize(field);
+            }
+         }
+
+         this.line("@Override");
+         this.open("public int encodedSize()");
+         this.line("int size = " + fixed + ";");
+         for (PNSchema.Field field : this.fields) {
+            String name = "this." + field.getName();
+            if (!field.isArray()) {
+               if (fixedSize(field) < 0) {
+                  this.line("size += " + sizeOf(field, name) + ";");
+               }
+               continue;
+            }
+
+            String count = name + "Count";
+            this.line("size += PNVarInt.size(" + count + ");");
+            if (field.getType() == PNSchema.Type.BOOL) {
+               this.line("size += (" + count + " + 7) / 8;");
+            }
+            else if (fixedSize(field) >= 0) {
+               this.line("size += " + count + " * " + fixedSize(field) + ";");
+            }
+            else {
+               this.open("for (int i = 0; i < " + count + "; i++)");
+               this.line("size += " + sizeOf(field, name + "[i]") + ";");
+               this.close();
+            }
+         }
+         this.line("return size;");
+         this.close();
+      }
+
+      private void emitEncode() {
+         this.line("@Override");
+         this.open("public void encode(ByteBuffer dst)");
+         for (int i = 0; i < this.flags.size(); i += 8) {
+            StringBuilder bits = new StringBuilder();
+            for (int j = i; j < Math.min(i + 8, this.flags.size()); j++) {
+               if (j > i) {
+                  bits.append(" | ");
+               }
+               bits.append("(this.").append(this.flags.get(j).getName()).append(" ? ").append(1 << (j - i))
+                  .append(" : 0)");
+            }
+            this.line("dst.put((byte)(" + bits + "));");
+         }
+
+         for (PNSchema.Field field : this.fields) {
+            String name = "this." + field.getName();
+            if (!field.isArray()) {
+               this.line(write(field, name) + ";");
+               continue;
+            }
+
+            String count = name + "Count";
+            this.line("PNVarInt.write(dst, " + count + ");");
+            if (field.getType() == PNSchema.Type.BOOL) {
+               this.line("PNCodec.writeBooleans(dst, " + name + ", " + count + ");");
+            }
+            else {
+               this.open("for (int i = 0; i < " + count + "; i++)");
+               this.line(write(field, name + "[i]") + ";");
+               this.close();
+            }
+         }
+         this.close();
+      }
+
+      private void emitDecode() {
+         this.line("@Override");
+         this.open("public void decode(ByteBuffer src) throws PNProtocolException");
+         this.open("try");
+         for (int i = 0; i < this.flags.size(); i += 8) {
+            String flagsName = "flags" + (i / 8);
+            this.line("int " + flagsName + " = src.get();");
+            for (int j = i; j < Math.min(i + 8, this.flags.size()); j++) {
+               this.line("this." + this.flags.get(j).getName() + " = (" + flagsName + " & " + (1 << (j - i)) +
+                  ") != 0;");
+            }
+         }
+
+         for (PNSchema.Field field : this.fields) {
+            String name = "this." + field.getName();
+            if (!field.isArray()) {
+               this.line(name + " = " + read(field) + ";");
+               continue;
+            }
+
+            String count = name + "Count";
+            this.line(count + " = PNCodec.readCount(src, " + field.getCapacity() + ", \"" +
+               this.message.getName() + "." + field.getName() + "\");");
+            if (field.getType() == PNSchema.Type.BOOL) {
+               this.line("PNCodec.readBooleans(src, " + name + ", " + count + ");");
+            }
+            else {
+               this.open("for (int i = 0; i < " + count + "; i++)");
+               this.line(name + "[i] = " + read(field) + ";");
+               this.close();
+            }
+         }
+         this.depth--;
+         this.line("}");
+         this.open("catch (BufferUnderflowException e)");
+         this.line("throw new PNProtocolException(\"Truncated " + this.message.getName() + "\");");
+         this.close();
+         this.close();
+      }
+
+      /**
+       * @return The bytes a value of the field always takes, or -1 if that depends on the value
+       */
+      private static int fixedSize(PNSchema.Field field) {
+         if (field.getType() == PNSchema.Type.QFLOAT) {
+            return PNCodec.bytesFor(field.getBits());
+         }
+         return field.getType().getFixedSize();
+      }
+
+      private static String sizeOf(PNSchema.Field field, String value) {
+         switch (field.getType()) {
+            case VARINT:
+               return "PNVarInt.size(" + value + ")";
+            case SINT:
+               return "PNCodec.signedVarIntSize(" + value + ")";
+            case VARLONG:
+               return "PNCodec.varLongSize(" + value + ")";
+            case SLONG:
+               return "PNCodec.signedVarLongSize(" + value + ")";
+            default:
+               return Integer.toString(fixedSize(field));
+         }
+      }
+
+      private static String write(PNSchema.Field field, String value) {
+         switch (field.getType()) {
+            case BOOL:
+               return "dst.put((byte)(" + value + " ? 1 : 0))";
+            case BYTE:
+               return "dst.put(" + value + ")";
+            case SHORT:
+               return "dst.putShort(" + value + ")";
+            case INT:
+               return "dst.putInt(" + value + ")";
+            case LONG:
+               return "dst.putLong(" + value + ")";
+            case FLOAT:
+               return "dst.putFloat(" + value + ")";
+            case DOUBLE:
+               return "dst.putDouble(" + value + ")";
+            case VARINT:
+               return "PNVarInt.write(dst, " + value + ")";
+            case SINT:
+               return "PNCodec.writeSignedVarInt(dst, " + value + ")";
+            case VARLONG:
+               return "PNCodec.writeVarLong(dst, " + value + ")";
+            case SLONG:
+               return "PNCodec.writeSignedVarLong(dst, " + value + ")";
+            case QFLOAT:
+               return "PNCodec.writeQuantized(dst, " + value + ", " + range(field) + ")";
+            default:
+               throw new IllegalArgumentException("Unknown type " + field.getType());
+         }
+      }
+
+      private static String read(PNSchema.Field field) {
+         switch (field.getType()) {
+            case BOOL:
+               return "src.get() != 0";
+            case BYTE:
+               return "src.get()";
+            case SHORT:
+               return "src.getShort()";
+            case INT:
+               return "src.getInt()";
+            case LONG:
+               return "src.getLong()";
+            case FLOAT:
+               return "src.getFloat()";
+            case DOUBLE:
+               return "src.getDouble()";
+            case VARINT:
+               return "PNVarInt.read(src)";
+            case SINT:
+               return "PNCodec.readSignedVarInt(src)";
+            case VARLONG:
+               return "PNCodec.readVarLong(src)";
+            case SLONG:
+               return "PNCodec.readSignedVarLong(src)";
+            case QFLOAT:
+               return "PNCodec.readQuantized(src, " + range(field) + ")";
+            default:
+               throw new IllegalArgumentException("Unknown type " + field.getType());
+         }
+      }
+
+      private static String range(PNSchema.Field field) {
+         return field.getMin() + "f, " + field.getMax() + "f, " + field.getBits();
+      }
+
+      private void open(String header) {
+         this.line(header + " {");
+         this.depth++;
+      }
+
+      private void close() {
+         this.depth--;
+         this.line("}");
+      }
+
+      private void line(String text) {
+         if (!text.isEmpty()) {
+            for (int i = 0; i < this.depth; i++) {
+               this.out.append(INDENT);
+            }
+            this.out.append(text);
+         }
+         this.out.append('\n');
+      }
+   }
+}
@@ -0,0 +1,386 @@
+package com.medleystudios.pn.codec;
+
+import com.medleystudios.pn.io.PNProtocol;
+
+import javax.lang.model.SourceVersion;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A set of message definitions for {@link PNCodecGenerator}, parsed from a schema such as:
+ * <pre>
+ * package com.example.game.messages;
+ *
+ * // Sent by the client every tick
+ * message PlayerInput = 100 {
+ *    varint sequence;
+ *    qfloat(-1, 1, 12) moveX;
+ *    qfloat(-1, 1, 12) moveY;
+ *    bool jump;
+ *    bool crouch;
+ *    sint[8] buttons;
+ * }
+ * </pre>
+ * Each message has a packet id outside the range {@link PNProtocol} reserves, and its fields are encoded in the order
+ * they are declared, except that single booleans are packed together in front. A field with a size in brackets is an
+ * array holding up to that many values, encoded as a count followed by the values. {@code //} starts a comment.
+ */
+public class PNSchema {
+
+   private final String sourceName;
+   private final String packageName;
+   private final List<Message> messages;
+
+   private PNSchema(String sourceName, String packageName, List<Message> messages) {
+      this.sourceName = sourceName;
+      this.packageName = packageName;
+      this.messages = Collections.unmodifiableList(messages);
+   }
+
+   /**
+    * @param sourceName Where the schema came from, for error messages
+    */
+   public static PNSchema parse(String source, String sourceName) throws PNSchemaException {
+      return new Parser(source, sourceName).parse();
+   }
+
+   public String getSourceName() {
+      return this.sourceName;
+   }
+
+   public String getPackageName() {
+      return this.packageName;
+   }
+
+   public List<Message> getMessages() {
+      return this.messages;
+   }
+
+   public enum Type {
+      BOOL("bool", "boolean", 0),       // Packed eight to a byte
+      BYTE("byte", "byte", 1),
+      SHORT("short", "short", 2),
+      INT("int", "int", 4),
+      LONG("long", "long", 8),
+      FLOAT("float", "float", 4),
+      DOUBLE("double", "double", 8),
+      VARINT("varint", "int", -1),      // Unsigned varint, for values that are usually small and never negative
+      SINT("sint", "int", -1),          // Zig-zag varint, for values that are usually small either side of zero
+      VARLONG("varlong", "long", -1),
+      SLONG("slong", "long", -1),
+      QFLOAT("qfloat", "float", -1);    // A float quantized over a range: qfloat(min, max, bits)
+
+      private final String keyword;
+      private final String javaType;
+      private final int fixedSize;
+
+      Type(String keyword, String javaType, int fixedSize) {
+         this.keyword = keyword;
+         this.javaType = javaType;
+         this.fixedSize = fixedSize;
+      }
+
+      public String getKeyword() {
+         return this.keyword;
+      }
+
+      public String getJavaType() {
+         return this.javaType;
+      }
+
+      /**
+       * @return The bytes a value always takes, or -1 if that depends on the value or the field
+       */
+      public int getFixedSize() {
+         return this.fixedSize;
+      }
+
+      static Type of(String keyword) {
+         for (Type type : values()) {
+            if (type.keyword.equals(keyword)) return type;
+         }
+         return null;
+      }
+   }
+
+   public static class Message {
+      private final String name;
+      private final int packetId;
+      private final List<Field> fields;
+
+      Message(String name, int packetId, List<Field> fields) {
+         this.name = name;
+         this.packetId = packetId;
+         this.fields = Collections.unmodifiableList(fields);
+      }
+
+      public String getName() {
+         return this.name;
+      }
+
+      public int getPacketId() {
+         return this.packetId;
+      }
+
+      public List<Field> getFields() {
+         return this.fields;
+      }
+   }
+
+   public static class Field {
+      private final Type type;
+      private final String name;
+      private final int capacity;
+      private final float min;
+      private final float max;
+      private final int bits;
+
+      Field(Type type, String name, int capacity, float min, float max, int bits) {
+         this.type = type;
+         this.name = name;
+         this.capacity = capacity;
+         this.min = min;
+         this.max = max;
+         this.bits = bits;
+      }
+
+      public Type getType() {
+         return this.type;
+      }
+
+      public String getName() {
+         return this.name;
+      }
+
+      public boolean isArray() {
+         return this.capacity > 0;
+      }
+
+      /**
+       * @return The most values an array field holds, or 0 if it is not an array
+       */
+      public int getCapacity() {
+         return this.capacity;
+      }
+
+      /**
+       * @return The range and precision of a {@link Type#QFLOAT}
+       */
+      public float getMin() {
+         return this.min;
+      }
+
+      public float getMax() {
+         return this.max;
+      }
+
+      public int getBits() {
+         return this.bits;
+      }
+   }
+
+   /**
+    * A recursive descent parser over a simple tokenizer: words, numbers and single punctuation characters
+    */
+   private static class Parser {
+      private final String source;
+      private final String sourceName;
+      private int index = 0;
+      private int line = 1;
+
+      private String token;
+      private int tokenLine;
+
+      Parser(String source, String sourceName) {
+         this.source = source;
+         this.sourceName = sourceName;
+      }
+
+      PNSchema parse() throws PNSchemaException {
+         this.advance();
+         this.expect("package");
+         String packageName = this.word("package name");
+         if (!SourceVersion.isName(packageName)) {
+            throw this.error("Invalid package name " + packageName);
+         }
+         this.expect(";");
+
+         List<Message> messages = new ArrayList<>();
+         Set<String> names = new HashSet<>();
+         Set<Integer> ids = new HashSet<>();
+         while (this.token != null) {
+            int line = this.tokenLine;
+            Message message = this.message();
+            if (!names.add(message.getName())) {
+               throw new PNSchemaException(this.sourceName, line, "Duplicate message " + message.getName());
+            }
+            if (!ids.add(message.getPacketId())) {
+               throw new PNSchemaException(this.sourceName, line, "Duplicate packet id " + message.getPacketId());
+            }
+            messages.add(message);
+         }
+         return new PNSchema(this.sourceName, packageName, messages);
+      }
+
+      private Message message() throws PNSchemaException {
+         this.expect("message");
+         String name = this.identifier("message name");
+         this.expect("=");
+         int packetId = this.integer("packet id");
+         if (packetId < 0 || PNProtocol.isControl(packetId)) {
+            throw this.error("Packet id " + packetId + " is negative or reserved");
+         }
+         this.expect("{");
+
+         List<Field> fields = new ArrayList<>();
+         Set<String> fieldNames = new HashSet<>();
+         while (!"}".equals(this.token)) {
+            Field field = this.field();
+            if (!fieldNames.add(field.getName()) || (field.isArray() && !fieldNames.add(field.getName() + "Count"))) {
+               throw this.error("Field " + field.getName() + " clashes with another field of " + name);
+            }
+            fields.add(field);
+         }
+         this.advance();
+         return new Message(name, packetId, fields);
+      }
+
+      private Field field() throws PNSchemaException {
+         String keyword = this.word("field type");
+         Type type = Type.of(keyword);
+         if (type == null) {
+            throw this.error("Unknown field type " + keyword);
+         }
+
+         float min = 0;
+         float max = 0;
+         int bits = 0;
+         if (type == Type.QFLOAT) {
+            this.expect("(");
+            min = this.number("minimum");
+            this.expect(",");
+            max = this.number("maximum");
+            this.expect(",");
+            bits = this.integer("bits");
+            this.expect(")");
+            if (!(min < max) || Float.isInfinite(min) || Float.isInfinite(max)) {
+               throw this.error("Invalid range " + min + " to " + max);
+            }
+            if (bits < 1 || bits > 32) {
+               throw this.error("Bits must be from 1 to 32: " + bits);
+            }
+         }
+
+         int capacity = 0;
+         if ("[".equals(this.token)) {
+            this.advance();
+            capacity = this.integer("array size");
+            if (capacity <= 0) {
+               throw this.error("Array size must be positive: " + capacity);
+            }
+            this.expect("]");
+         }
+
+         String name = this.identifier("field name");
+         this.expect(";");
+         return new Field(type, name, capacity, min, max, bits);
+      }
+
+      private String identifier(String what) throws PNSchemaException {
+         String identifier = this.word(what);
+         if (!SourceVersion.isIdentifier(identifier) || SourceVersion.isKeyword(identifier)) {
+            throw this.error("Invalid " + what + " " + identifier);
+         }
+         return identifier;
+      }
+
+      private int integer(String what) throws PNSchemaException {
+         String text = this.word(what);
+         try {
+            return Integer.decode(text);
+         }
+         catch (NumberFormatException e) {
+            throw this.error("Expected " + what + " but found " + text);
+         }
+      }
+
+      private float number(String what) throws PNSchemaException {
+         String text = this.word(what);
+         try {
+            return Float.parseFloat(text);
+         }
+         catch (NumberFormatException e) {
+            throw this.error("Expected " + what + " but found " + text);
+         }
+      }
+
+      private String word(String what) throws PNSchemaException {
+         if (this.token == null || !isWordChar(this.token.charAt(0))) {
+            throw this.error("Expected " + what + " but found " + describe(this.token));
+         }
+         String word = this.token;
+         this.advance();
+         return word;
+      }
+
+      private void expect(String expected) throws PNSchemaException {
+         if (!expected.equals(this.token)) {
+            throw this.error("Expected '" + expected + "' but found " + describe(this.token));
+         }
+         this.advance();
+      }
+
+      private void advance() {
+         while (this.index < this.source.length()) {
+            char c = this.source.charAt(this.index);
+            if (c == '\n') {
+               this.line++;
+               this.index++;
+            }
+            else if (Character.isWhitespace(c)) {
+               this.index++;
+            }
+            else if (this.source.startsWith("//", this.index)) {
+               while (this.index < this.source.length() && this.source.charAt(this.index) != '\n') {
+                  this.index++;
+               }
+            }
+            else {
+               break;
+            }
+         }
+
+         this.tokenLine = this.line;
+         if (this.index == this.source.length()) {
+            this.token = null;
+            return;
+         }
+
+         int start = this.index;
+         if (isWordChar(this.source.charAt(this.index))) {
+            while (this.index < this.source.length() && isWordChar(this.source.charAt(this.index))) {
+               this.index++;
+            }
+         }
+         else {
+            this.index++;
+         }
+         this.token = this.source.substring(start, this.index);
+      }
+
+      private static boolean isWordChar(char c) {
+         return Character.isJavaIdentifierPart(c) || c == '.' || c == '-' || c == '+';
+      }
+
+      private static String describe(String token) {
+         return token == null ? "end of schema" : "'" + token + "'";
+      }
+
+      private PNSchemaException error(String message) {
+         return new PNSchemaException(this.sourceName, this.tokenLine, message);
+      }
+   }
+}
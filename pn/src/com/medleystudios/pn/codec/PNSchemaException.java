@@ -0,0 +1,26 @@
+package com.medleystudios.pn.codec;
+
+/**
+ * Thrown when a message schema cannot be parsed or describes messages that cannot be generated.
+ */
+public class PNSchemaException extends Exception {
+
+   private static final long serialVersionUID = 1L;
+
+   private final String sourceName;
+   private final int line;
+
+   public PNSchemaException(String sourceName, int line, String message) {
+      super(sourceName + ":" + line + ": " + message);
+      this.sourceName = sourceName;
+      this.line = line;
+   }
+
+   public String getSourceName() {
+      return this.sourceName;
+   }
+
+   public int getLine() {
+      return this.line;
+   }
+}
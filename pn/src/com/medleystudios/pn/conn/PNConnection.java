@@ -1,38 +1,82 @@
 package com.medleystudios.pn.conn;
 
 import com.medleystudios.pn.PN;
+import com.medleystudios.pn.io.PNBufferPool;
+import com.medleystudios.pn.io.PNDatagramEndpoint;
+import com.medleystudios.pn.io.PNDatagramSession;
+import com.medleystudios.pn.io.PNEventLoop;
+import com.medleystudios.pn.io.PNEventLoopGroup;
+import com.medleystudios.pn.io.PNFileHandler;
 import com.medleystudios.pn.io.PNInputStreamReader;
+import com.medleystudios.pn.io.PNOutboundScheduler;
 import com.medleystudios.pn.io.PNOutputStreamWriter;
+import com.medleystudios.pn.io.PNPacketHandler;
+import com.medleystudios.pn.io.PNPacketQueue;
+import com.medleystudios.pn.io.PNProtocol;
+import com.medleystudios.pn.io.PNProtocolException;
+import com.medleystudios.pn.io.PNVarInt;
 import com.medleystudios.pn.util.PNUtil;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.Objects;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static java.util.concurrent.CompletableFuture.supplyAsync;
 
-public class PNConnection {
+/**
+ * A TCP connection whose I/O is driven by a {@link PNEventLoop} instead of dedicated threads. Every socket handed to
+ * a connection must come from a {@link SocketChannel}, which {@link #host(String, int)} and
+ * {@link #connect(String, int)} take care of.
+ */
+public class PNConnection implements PNEventLoop.Handler {
 
    private final Object closeLock = new Object();
 
-   private ConnectionID id;
+   private final ConnectionID id;
    private boolean closed = false;
    private Socket socket;
+   private SocketChannel channel;
+   private PNEventLoop eventLoop;
    private PNInputStreamReader inReader;
    private PNOutputStreamWriter outWriter;
+   private PNOutboundScheduler scheduler;
+   private PNPacketQueue inbound;
+
+   /**
+    * The datagram side of the connection, or null if none has been set up
+    */
+   private PNDatagramSession datagram = null;
+   private PNPacketHandler datagramHandler = null;
+
+   /**
+    * Read on the event loop while the reader's lock is held, so it is volatile rather than guarded by this
+    */
+   private volatile PNFileHandler fileHandler = null;
+   private PNIdleMonitor idleMonitor;
+   private PNConnectionStats stats;
+   private final byte[] pongScratch = new byte[8];
    private String errorMessageIO = null;
+   private final List<CloseListener> closeListeners = new ArrayList<>();
 
    public static CompletableFuture<ServerSocketResolver> host(String host, int port) {
       return supplyAsync(() -> {
          ServerSocket serverSocket;
          try {
-            serverSocket = new ServerSocket();
+            // Sockets accepted from a channel-backed server socket carry their own channel
+            serverSocket = ServerSocketChannel.open().socket();
             serverSocket.setReuseAddress(true);
             serverSocket.bind(new InetSocketAddress(host, port));
             return new ServerSocketResolver(serverSocket);
@@ -48,7 +92,7 @@ public class PNConnection {
       return supplyAsync(() -> {
          Socket clientSocket;
          try {
-            clientSocket = new Socket();
+            clientSocket = SocketChannel.open().socket();
             clientSocket.setReuseAddress(true);
             clientSocket.setTcpNoDelay(true);
             clientSocket.connect(new InetSocketAddress(host, port), 0);
@@ -65,9 +109,21 @@ public class PNConnection {
       return supplyAsync(() -> new PNConnection(socket));
    }
 
+   /**
+    * Like {@link #get(Socket)}, but creates the connection on the given executor.
+    */
+   public static CompletableFuture<PNConnection> get(Socket socket, Executor executor) {
+      return supplyAsync(() -> new PNConnection(socket), executor);
+   }
+
    private PNConnection(Socket socket) {
       this.id = ConnectionID.next();
       this.socket = socket;
+      this.channel = socket.getChannel();
+
+      if (this.channel == null) {
+         throw new RuntimeException("Socket has no channel and cannot be used " + this.socket);
+      }
 
       if (this.socket.isClosed()) {
          throw new RuntimeException("Socket is already closed and cannot be used " + this.socket);
@@ -81,60 +137,310 @@ public class PNConnection {
    }
 
    private synchronized void startIO() {
-      InputStream in = null;
-      OutputStream out = null;
+      this.eventLoop = PNEventLoopGroup.getDefault().next();
+      this.inbound = new PNPacketQueue(PNBufferPool.getDefault());
+
+      this.inReader = new PNInputStreamReader(this.channel, this.eventLoop, PNBufferPool.getDefault(), () -> {
+         // ON CLOSE
+         // This runs under the reader's lock, while close() takes our lock before the reader's, so finish the close on
+         // the event loop instead of here
+         this.eventLoop.execute(() -> {
+            synchronized (this) {
+               // We don't need to run anything here if already closed
+               if (isClosed()) {
+                  return;
+               }
+
+               PN.log(this, this + " Reader closed! Closing connection");
+               this.close();
+            }
+         });
+      });
+      this.outWriter = new PNOutputStreamWriter(this.channel, this.eventLoop, PNBufferPool.getDefault(), () -> {
+         // ON CLOSE
+         // This runs under the writer's lock, while close() takes our lock before the writer's, so finish the close on
+         // the event loop instead of here
+         this.eventLoop.execute(() -> {
+            synchronized (this) {
+               // We don't need to run anything here if already closed
+               if (isClosed()) {
+                  return;
+               }
+
+               PN.log(this, this + " Writer closed! Closing connection");
+               this.close();
+            }
+         });
+      });
+
+      this.scheduler = new PNOutboundScheduler(this.outWriter, PNBufferPool.getDefault());
+      this.inReader.setControlHandler(this::handleControl);
+      this.idleMonitor = new PNIdleMonitor(this, this.inReader, this.outWriter, this.eventLoop.getTimingWheel());
+      this.stats = new PNConnectionStats(this.inReader, this.outWriter, this.inbound, this.idleMonitor);
+      this.eventLoop.execute(() -> this.idleMonitor.configureProbe(
+         TimeUnit.MILLISECONDS.toNanos(PNIdleMonitor.DEFAULT_PROBE_INTERVAL_MILLIS)));
+
+      this.eventLoop.register(this.channel, SelectionKey.OP_READ, this, (key) -> {
+         this.inReader.setSelectionKey(key);
+         this.outWriter.setSelectionKey(key);
+      });
+   }
+
+   /**
+    * Dispatches channel readiness to the reader and writer. Runs on the connection's event loop.
+    */
+   @Override
+   public void handleReady(SelectionKey key) {
+      if (key.isReadable()) {
+         if (!this.inReader.consume()) {
+            key.cancel();
+            return;
+         }
+      }
+      if (key.isValid() && key.isWritable()) {
+         this.outWriter.flush();
+      }
+   }
+
+   /**
+    * Handles a control packet from the peer. Runs on the event loop.
+    */
+   private void handleControl(int packetId, ByteBuffer payload) {
+      if (packetId == PNProtocol.UDP_OFFER) {
+         this.acceptDatagramOffer(payload);
+      }
+      else if (packetId == PNProtocol.FILE_CHUNK) {
+         this.receiveFileChunk(payload);
+      }
+      else if (packetId == PNProtocol.PING) {
+         if (payload.remaining() == this.pongScratch.length) {
+            payload.get(this.pongScratch);
+            this.outWriter.writePacket(PNProtocol.PONG, this.pongScratch);
+            // Answer right away even if corked, the round trip should not include our tick
+            this.outWriter.sendQueued();
+         }
+      }
+      else if (packetId == PNProtocol.PONG) {
+         this.idleMonitor.handlePong(payload);
+      }
+      else {
+         PN.debug(this, () -> "Ignoring unknown control packet " + packetId);
+      }
+   }
 
+   /**
+    * Sets up the client's side of the datagram channel the server offered.
+    */
+   private void acceptDatagramOffer(ByteBuffer payload) {
+      long token;
+      int port;
       try {
-         in = this.socket.getInputStream();
+         if (payload.remaining() < 8) {
+            throw new PNProtocolException("UDP offer too short: " + payload.remaining());
+         }
+         token = payload.getLong();
+         port = PNVarInt.read(payload);
       }
-      catch (IOException e) {
-         PN.fatalError(e, this, "Failed to get socket input stream " + this.socket);
+      catch (PNProtocolException e) {
+         PN.error(e, this, "Received malformed UDP offer!");
+         return;
       }
 
+      PNDatagramSession session;
       try {
-         out = this.socket.getOutputStream();
+         session = PNDatagramEndpoint.connect(new InetSocketAddress(this.socket.getInetAddress(), port), token,
+            this.eventLoop, PNBufferPool.getDefault());
       }
       catch (IOException e) {
-         PN.fatalError(e, this, "Failed to get socket output stream " + this.socket);
+         PN.error(e, this, "Failed to open datagram channel, staying on TCP only");
+         return;
       }
 
-      this.inReader = new PNInputStreamReader(in, () -> {
-         // ON CLOSE
-         synchronized (this) {
-            // We don't need to run anything here if already closed
-            if (isClosed()) {
-               return;
-            }
-
-            PN.log(this, this + " Reader closed! Closing connection");
-            this.close();
+      // This runs under the reader's lock, while setDatagram() takes our lock and may close sessions, so attach it on
+      // the event loop once the read is done
+      this.eventLoop.execute(() -> {
+         if (this.setDatagram(session)) {
+            session.startHandshake();
          }
       });
-      this.outWriter = new PNOutputStreamWriter(out, () -> {
-         // ON CLOSE
-         synchronized (this) {
-            // We don't need to run anything here if already closed
-            if (isClosed()) {
-               return;
-            }
+   }
+
+   /**
+    * Turns on heartbeats and dead peer detection, see {@link PNIdleMonitor}. Each value may be 0 to turn that part off.
+    *
+    * @param readTimeout  The connection closes when nothing has been read for this long
+    * @param writeTimeout The connection closes when the socket has taken none of the writer's queue for this long
+    * @param pingInterval A ping is sent when nothing has been written for this long. Should be well below the peer's
+    *                     read timeout.
+    */
+   public void setIdleTimeouts(long readTimeout, long writeTimeout, long pingInterval, TimeUnit unit) {
+      long readTimeoutNanos = unit.toNanos(readTimeout);
+      long writeTimeoutNanos = unit.toNanos(writeTimeout);
+      long pingIntervalNanos = unit.toNanos(pingInterval);
+      this.eventLoop.execute(() -> this.idleMonitor.configure(readTimeoutNanos, writeTimeoutNanos,
+         pingIntervalNanos));
+   }
+
+   /**
+    * Sets how often a ping goes out to measure the round trip time and jitter, whatever the traffic, or 0 to only
+    * measure them with the idle heartbeats. Defaults to {@link PNIdleMonitor#DEFAULT_PROBE_INTERVAL_MILLIS}.
+    */
+   public void setRttProbeInterval(long interval, TimeUnit unit) {
+      long intervalNanos = unit.toNanos(interval);
+      this.eventLoop.execute(() -> this.idleMonitor.configureProbe(intervalNanos));
+   }
+
+   /**
+    * @return The smoothed round trip time pongs measured, or -1 if none has been
+    */
+   public long getRttNanos() {
+      return this.idleMonitor.getRttNanos();
+   }
+
+   /**
+    * @return The connection's live metrics, which can be read from any thread without locking
+    */
+   public PNConnectionStats getStats() {
+      return this.stats;
+   }
+
+   /**
+    * Closes a connection whose peer was found dead, keeping the reason as the error message.
+    */
+   synchronized void closeDead(String reason) {
+      if (this.isClosed()) return;
+      this.errorMessageIO = reason;
+      this.close();
+   }
 
-            PN.log(this, this + " Writer closed! Closing connection");
-            this.close();
+   /**
+    * Hands a chunk of a file the peer is sending to the file handler.
+    */
+   private void receiveFileChunk(ByteBuffer payload) {
+      int streamId;
+      long offset;
+      try {
+         streamId = PNVarInt.read(payload);
+         if (payload.remaining() < 8) {
+            throw new PNProtocolException("File chunk too short: " + payload.remaining());
          }
-      });
+         offset = payload.getLong();
+      }
+      catch (PNProtocolException e) {
+         PN.error(e, this, "Received malformed file chunk!");
+         return;
+      }
+
+      PNFileHandler handler = this.fileHandler;
+      if (handler == null) {
+         PN.debug(this, () -> "Dropping chunk of file " + streamId + " with no file handler set");
+         return;
+      }
+      handler.handle(streamId, offset, payload);
+   }
 
-      new Thread(this.outWriter).start();
-      new Thread(this.inReader).start();
+   /**
+    * Sets the handler chunks of files the peer sends are delivered to. Runs on the connection's event loop, even once
+    * {@link #queueIO()} is called.
+    */
+   public void setFileHandler(PNFileHandler handler) {
+      this.fileHandler = handler;
+   }
+
+   /**
+    * Sends part of a file to the peer's {@link PNFileHandler}, straight from the file to the socket.
+    *
+    * @see PNOutputStreamWriter#sendFile(int, Path, long, long)
+    */
+   public CompletableFuture<Void> sendFile(int streamId, Path path, long offset, long length) {
+      return this.getWriter().sendFile(streamId, path, offset, length);
+   }
+
+   /**
+    * Attaches the datagram side of the connection. It closes along with the connection.
+    *
+    * @return Returns false if the connection has already closed, in which case so is the session
+    */
+   public boolean setDatagram(PNDatagramSession session) {
+      synchronized (this) {
+         if (!this.isClosed()) {
+            if (this.datagram != null) {
+               this.datagram.close();
+            }
+            this.datagram = session;
+            this.stats.setDatagram(session);
+            session.setPacketHandler(this.datagramHandler);
+            return true;
+         }
+      }
+      session.close();
+      return false;
+   }
+
+   /**
+    * @return The datagram side of the connection, or null if there is none. Check it is ready before sending.
+    */
+   public synchronized PNDatagramSession getDatagram() {
+      return this.datagram;
+   }
+
+   /**
+    * Sets the handler packets received over the datagram channel are delivered to, now or once it is set up.
+    */
+   public synchronized void setDatagramHandler(PNPacketHandler handler) {
+      this.datagramHandler = handler;
+      if (this.datagram != null) {
+         this.datagram.setPacketHandler(handler);
+      }
    }
 
    public synchronized PNOutputStreamWriter getWriter() {
       return this.outWriter;
    }
 
+   /**
+    * @return What decides which of the messages queued by priority the connection sends each tick
+    */
+   public synchronized PNOutboundScheduler getScheduler() {
+      return this.scheduler;
+   }
+
    public synchronized PNInputStreamReader getReader() {
       return this.inReader;
    }
 
+   /**
+    * @return The queue received packets collect in once {@link #queueIO()} is called
+    */
+   public synchronized PNPacketQueue getInbound() {
+      return this.inbound;
+   }
+
+   /**
+    * Hands the connection's I/O over to a tick: received packets, datagrams included, collect in
+    * {@link #getInbound()} until drained, and the writer is corked so that whatever is written goes out when the
+    * writer's queue is sent. Reading pauses while the inbound queue is full.
+    */
+   public synchronized void queueIO() {
+      PNInputStreamReader reader = this.inReader;
+      PNPacketQueue inbound = this.inbound;
+      this.inbound.setFullListener((full) -> {
+         // Datagrams fill the queue without the reader's lock, so a drain's call can overtake theirs. Going by what the
+         // queue holds now, under the reader's lock, the last call always leaves reading in step with it.
+         synchronized (reader) {
+            if (inbound.isFull()) {
+               reader.pauseReading();
+            }
+            else {
+               reader.resumeReading();
+            }
+         }
+      });
+      this.inReader.setPacketHandler(this.inbound);
+      this.setDatagramHandler(this.inbound);
+      this.outWriter.cork();
+   }
+
    public boolean isClosed() {
       synchronized (closeLock) {
          return this.closed;
@@ -188,13 +494,21 @@ public class PNConnection {
 
          PN.log(this, "[CLOSE " + this + "] Closing connection...");
 
-         PN.log(this, "[CLOSE " + this + "] Closing reader...");
+         PN.debug(this, () -> "[CLOSE " + this + "] Closing reader...");
          this.inReader.close(false);
 
-         PN.log(this, "[CLOSE " + this + "] Closing writer...");
+         PN.debug(this, () -> "[CLOSE " + this + "] Closing writer...");
          this.outWriter.close(false);
+         this.scheduler.close();
+         this.inbound.close();
+         this.eventLoop.execute(this.idleMonitor::close);
 
-         PN.log(this, "[CLOSE " + this + "] Closing socket...");
+         if (this.datagram != null) {
+            PN.debug(this, () -> "[CLOSE " + this + "] Closing datagram session...");
+            this.datagram.close();
+         }
+
+         PN.debug(this, () -> "[CLOSE " + this + "] Closing socket...");
          try {
             this.socket.close();
          }
@@ -202,7 +516,7 @@ public class PNConnection {
             PN.error(e, this, "Failed to close socket when closing connection!");
          }
 
-         PN.log(this, "[CLOSE " + this + "] Getting error message IO if one exists...");
+         PN.debug(this, () -> "[CLOSE " + this + "] Getting error message IO if one exists...");
          if (this.inReader.getErrorMessage() != null) {
             this.errorMessageIO = this.inReader.getErrorMessage();
          }
@@ -212,6 +526,37 @@ public class PNConnection {
 
          PN.log(this, "[CLOSE " + this + "] Finished!");
       }
+
+      for (int i = 0; i < this.closeListeners.size(); i++) {
+         try {
+            this.closeListeners.get(i).run(this);
+         }
+         catch (RuntimeException e) {
+            PN.error(e, this, "Close listener failed!");
+         }
+      }
+      this.closeListeners.clear();
+   }
+
+   /**
+    * Adds a listener that runs once the connection has closed. Runs right away if it already has.
+    */
+   public void addCloseListener(CloseListener listener) {
+      synchronized (this) {
+         if (!this.isClosed()) {
+            this.closeListeners.add(listener);
+            return;
+         }
+      }
+      listener.run(this);
+   }
+
+   public ConnectionID getId() {
+      return this.id;
+   }
+
+   public interface CloseListener {
+      void run(PNConnection connection);
    }
 
    @Override
@@ -221,22 +566,42 @@ public class PNConnection {
    }
 
    public static class ConnectionID {
-      private static long nextId = 0;
 
-      private long data = 0;
+      /**
+       * The number of ids a thread takes from the shared counter at a time
+       */
+      private static final long BLOCK_SIZE = 1024;
 
-      private ConnectionID() {
+      /**
+       * The first id of the next unclaimed block
+       */
+      private static final AtomicLong nextBlock = new AtomicLong(1);
+
+      /**
+       * Each thread hands out ids from its own block: [next, end). Ids are unique but only ordered within a thread.
+       */
+      private static final ThreadLocal<long[]> threadBlock = ThreadLocal.withInitial(() -> new long[] { 0, 0 });
+
+      private final long data;
+
+      private ConnectionID(long data) {
+         this.data = data;
       }
 
       public long getData() {
          return this.data;
       }
 
-      private synchronized static ConnectionID next() {
-         ConnectionID id = new ConnectionID();
-         nextId++;
-         id.data = nextId;
-         return id;
+      /**
+       * Hands out the next id without contending with other threads, save for one CAS every {@link #BLOCK_SIZE} ids.
+       */
+      private static ConnectionID next() {
+         long[] block = threadBlock.get();
+         if (block[0] == block[1]) {
+            block[0] = nextBlock.getAndAdd(BLOCK_SIZE);
+            block[1] = block[0] + BLOCK_SIZE;
+         }
+         return new ConnectionID(block[0]++);
       }
 
       @Override
@@ -253,7 +618,7 @@ public class PNConnection {
       }
       @Override
       public int hashCode() {
-         return Objects.hash(data);
+         return Long.hashCode(data);
       }
    }
 
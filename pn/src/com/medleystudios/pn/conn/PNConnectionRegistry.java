@@ -0,0 +1,240 @@
+package com.medleystudios.pn.conn;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Consumer;
+
+/**
+ * The live connections of a server, keyed by the primitive value of their {@link PNConnection.ConnectionID}.
+ * <p>
+ * Connections are spread over shards by a hash of their id. Each shard is an open-addressing table with linear
+ * probing whose slots are read without locking: lookups and iteration never block and never allocate. Adding and
+ * removing take the shard's lock, so writers only contend when they land on the same shard. Removal leaves a
+ * tombstone, which keeps it O(1); tombstones are cleared out when the shard rehashes.
+ * <p>
+ * Iteration is weakly consistent. It sees every connection that was in the registry for the whole iteration and may
+ * or may not see ones added or removed during it.
+ */
+public class PNConnectionRegistry {
+
+   private static final Object TOMBSTONE = new Object();
+
+   private static final int INITIAL_SHARD_CAPACITY = 16;
+
+   private final Shard[] shards;
+   private final int shardMask;
+
+   public PNConnectionRegistry() {
+      this(Runtime.getRuntime().availableProcessors() * 4);
+   }
+
+   /**
+    * @param shardCount The number of shards. Rounded up to a power of two.
+    */
+   public PNConnectionRegistry(int shardCount) {
+      int count = Integer.highestOneBit(Math.max(1, shardCount - 1)) << 1;
+      this.shards = new Shard[count];
+      this.shardMask = count - 1;
+      for (int i = 0; i < count; i++) {
+         this.shards[i] = new Shard();
+      }
+   }
+
+   /**
+    * Adds the connection, replacing any connection with the same id.
+    */
+   public void add(PNConnection connection) {
+      long id = connection.getId().getData();
+      shardFor(id).put(id, connection);
+   }
+
+   /**
+    * Removes the connection if it is the one registered under its id.
+    *
+    * @return True if it was removed
+    */
+   public boolean remove(PNConnection connection) {
+      long id = connection.getId().getData();
+      return shardFor(id).remove(id, connection) != null;
+   }
+
+   /**
+    * @return The connection removed, or null if none had the id
+    */
+   public PNConnection remove(long id) {
+      return shardFor(id).remove(id, null);
+   }
+
+   /**
+    * @return The connection with the id, or null. Never blocks.
+    */
+   public PNConnection get(long id) {
+      return shardFor(id).get(id);
+   }
+
+   public PNConnection get(PNConnection.ConnectionID id) {
+      return get(id.getData());
+   }
+
+   /**
+    * Runs the action on every registered connection without locking.
+    */
+   public void forEach(Consumer<PNConnection> action) {
+      for (int i = 0; i < this.shards.length; i++) {
+         AtomicReferenceArray<Object> table = this.shards[i].table;
+         for (int j = 0; j < table.length(); j++) {
+            Object entry = table.get(j);
+            if (entry != null && entry != TOMBSTONE) {
+               action.accept((PNConnection)entry);
+            }
+         }
+      }
+   }
+
+   /**
+    * @return The number of registered connections. Only a snapshot while connections come and go.
+    */
+   public int size() {
+      int size = 0;
+      for (int i = 0; i < this.shards.length; i++) {
+         size += this.shards[i].size;
+      }
+      return size;
+   }
+
+   public boolean isEmpty() {
+      return size() == 0;
+   }
+
+   private Shard shardFor(long id) {
+      return this.shards[(int)(mix(id) >>> 32) & this.shardMask];
+   }
+
+   /**
+    * Spreads sequential ids over the whole hash space (the MurmurHash3 finalizer)
+    */
+   private static long mix(long id) {
+      id ^= id >>> 33;
+      id *= 0xff51afd7ed558ccdL;
+      id ^= id >>> 33;
+      id *= 0xc4ceb9fe1a85ec53L;
+      id ^= id >>> 33;
+      return id;
+   }
+
+   private static long idOf(Object entry) {
+      return ((PNConnection)entry).getId().getData();
+   }
+
+   @Override
+   public String toString() {
+      return "PNConnectionRegistry[size: " + size() + ", shards: " + this.shards.length + "]";
+   }
+
+   private static class Shard {
+
+      /**
+       * Replaced, never mutated back to null, when the shard rehashes. Readers holding the old table still see a
+       * valid, if stale, view.
+       */
+      private volatile AtomicReferenceArray<Object> table;
+
+      private volatile int size = 0;
+      private int tombstones = 0;
+
+      private Shard() {
+         this.table = new AtomicReferenceArray<>(INITIAL_SHARD_CAPACITY);
+      }
+
+      private PNConnection get(long id) {
+         AtomicReferenceArray<Object> table = this.table;
+         int mask = table.length() - 1;
+         for (int i = (int)mix(id) & mask; ; i = (i + 1) & mask) {
+            Object entry = table.get(i);
+            if (entry == null) return null;
+            if (entry != TOMBSTONE && idOf(entry) == id) return (PNConnection)entry;
+         }
+      }
+
+      private synchronized void put(long id, PNConnection connection) {
+         AtomicReferenceArray<Object> table = this.table;
+         if ((this.size + this.tombstones + 1) * 4 > table.length() * 3) {
+            table = this.rehash();
+         }
+
+         int mask = table.length() - 1;
+         int free = -1;
+         for (int i = (int)mix(id) & mask; ; i = (i + 1) & mask) {
+            Object entry = table.get(i);
+            if (entry == null) {
+               if (free < 0) {
+                  free = i;
+               }
+               break;
+            }
+            if (entry == TOMBSTONE) {
+               if (free < 0) {
+                  free = i;
+               }
+            }
+            else if (idOf(entry) == id) {
+               table.set(i, connection);
+               return;
+            }
+         }
+
+         if (table.get(free) == TOMBSTONE) {
+            this.tombstones--;
+         }
+         table.set(free, connection);
+         this.size++;
+      }
+
+      /**
+       * @param expected Only remove if this is the registered connection. Null removes whatever has the id.
+       */
+      private synchronized PNConnection remove(long id, PNConnection expected) {
+         AtomicReferenceArray<Object> table = this.table;
+         int mask = table.length() - 1;
+         for (int i = (int)mix(id) & mask; ; i = (i + 1) & mask) {
+            Object entry = table.get(i);
+            if (entry == null) return null;
+            if (entry != TOMBSTONE && idOf(entry) == id) {
+               if (expected != null && entry != expected) return null;
+
+               table.set(i, TOMBSTONE);
+               this.size--;
+               this.tombstones++;
+               return (PNConnection)entry;
+            }
+         }
+      }
+
+      /**
+       * Copies the live entries into a fresh table, growing it if the shard is more than half full.
+       */
+      private AtomicReferenceArray<Object> rehash() {
+         AtomicReferenceArray<Object> old = this.table;
+         int capacity = old.length();
+         if (this.size * 2 >= capacity) {
+            capacity <<= 1;
+         }
+
+         AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(capacity);
+         int mask = capacity - 1;
+         for (int j = 0; j < old.length(); j++) {
+            Object entry = old.get(j);
+            if (entry == null || entry == TOMBSTONE) continue;
+
+            int i = (int)mix(idOf(entry)) & mask;
+            while (table.get(i) != null) {
+               i = (i + 1) & mask;
+            }
+            table.set(i, entry);
+         }
+
+         this.tombstones = 0;
+         this.table = table;
+         return table;
+      }
+   }
+}
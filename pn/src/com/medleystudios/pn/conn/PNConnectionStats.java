@@ -0,0 +1,165 @@
+package com.medleystudios.pn.conn;
+
+import com.medleystudios.pn.io.PNDatagramSession;
+import com.medleystudios.pn.io.PNInputStreamReader;
+import com.medleystudios.pn.io.PNOutputStreamWriter;
+import com.medleystudios.pn.io.PNPacketQueue;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Live metrics of a {@link PNConnection}: traffic in and out, queue depths, drops, and the round trip time and jitter
+ * the connection's pings measure, plus loss and retransmits on its datagram side if it has one.
+ * <p>
+ * Nothing is copied; each getter reads the counter where it is kept, and none takes a lock, so polling stats from
+ * any thread never contends with the event loop. The values are each current but not taken at one instant.
+ */
+public class PNConnectionStats {
+
+   private final PNInputStreamReader reader;
+   private final PNOutputStreamWriter writer;
+   private final PNPacketQueue inbound;
+   private final PNIdleMonitor monitor;
+
+   /**
+    * The connection's datagram session, or null if it has none
+    */
+   private volatile PNDatagramSession datagram = null;
+
+   PNConnectionStats(PNInputStreamReader reader, PNOutputStreamWriter writer, PNPacketQueue inbound,
+                     PNIdleMonitor monitor) {
+      this.reader = reader;
+      this.writer = writer;
+      this.inbound = inbound;
+      this.monitor = monitor;
+   }
+
+   void setDatagram(PNDatagramSession datagram) {
+      this.datagram = datagram;
+   }
+
+   public long getBytesIn() {
+      return this.reader.getBytesRead();
+   }
+
+   public long getBytesOut() {
+      return this.writer.getBytesWritten();
+   }
+
+   /**
+    * @return The packets received over TCP and, if there is one, the datagram channel
+    */
+   public long getPacketsIn() {
+      PNDatagramSession datagram = this.datagram;
+      return this.reader.getPacketsRead() + (datagram != null ? datagram.getPacketsReceived() : 0);
+   }
+
+   /**
+    * @return The packets sent over TCP and, if there is one, the datagram channel
+    */
+   public long getPacketsOut() {
+      PNDatagramSession datagram = this.datagram;
+      return this.writer.getPacketsWritten() + (datagram != null ? datagram.getPacketsSent() : 0);
+   }
+
+   /**
+    * @return The bytes queued in the writer that the socket has not taken yet
+    */
+   public long getSendBacklogBytes() {
+      return this.writer.getBacklogBytes();
+   }
+
+   /**
+    * @return The packets received but not drained from the inbound queue yet
+    */
+   public int getInboundQueued() {
+      return this.inbound.size();
+   }
+
+   /**
+    * @return The received packets dropped, because they were too large or the inbound queue overflowed
+    */
+   public long getDroppedIn() {
+      return this.reader.getDroppedPackets() + this.inbound.getDroppedPackets();
+   }
+
+   /**
+    * @return The packets the writer dropped to keep up with a slow peer
+    */
+   public long getDroppedOut() {
+      return this.writer.getDroppedPackets();
+   }
+
+   /**
+    * @return The smoothed round trip time, or -1 before the first has been measured
+    */
+   public long getRttNanos() {
+      return this.monitor.getRttNanos();
+   }
+
+   /**
+    * @return The last round trip time measured, or -1 if none has been
+    */
+   public long getLastRttNanos() {
+      return this.monitor.getLastRttNanos();
+   }
+
+   public long getMinRttNanos() {
+      return this.monitor.getMinRttNanos();
+   }
+
+   /**
+    * @return How much consecutive round trip times vary, on average
+    */
+   public long getJitterNanos() {
+      return this.monitor.getJitterNanos();
+   }
+
+   /**
+    * @return The smoothed round trip time over the datagram channel, or -1 if there is none or it is unmeasured
+    */
+   public long getDatagramRttNanos() {
+      PNDatagramSession datagram = this.datagram;
+      return datagram != null ? datagram.getRttNanos() : -1;
+   }
+
+   /**
+    * @return The outbound datagrams the peer never acked, or 0 without a datagram channel
+    */
+   public long getDatagramsLost() {
+      PNDatagramSession datagram = this.datagram;
+      return datagram != null ? datagram.getDatagramsLost() : 0;
+   }
+
+   /**
+    * @return The reliable datagrams sent again, or 0 without a datagram channel
+    */
+   public long getRetransmits() {
+      PNDatagramSession datagram = this.datagram;
+      return datagram != null ? datagram.getRetransmits() : 0;
+   }
+
+   /**
+    * @return The share of outbound datagrams the peer never acked, 0 if none have been sent
+    */
+   public double getDatagramLossRate() {
+      PNDatagramSession datagram = this.datagram;
+      if (datagram == null) return 0;
+      long sent = datagram.getPacketsSent();
+      return sent == 0 ? 0 : (double) datagram.getDatagramsLost() / sent;
+   }
+
+   @Override
+   public String toString() {
+      return "PNConnectionStats[in: " + this.getBytesIn() + "B/" + this.getPacketsIn() + "p, out: " +
+         this.getBytesOut() + "B/" + this.getPacketsOut() + "p, backlog: " + this.getSendBacklogBytes() +
+         "B, inbound: " + this.getInboundQueued() + ", dropped in/out: " + this.getDroppedIn() + "/" +
+         this.getDroppedOut() + ", rtt: " + micros(this.getRttNanos()) + "us, jitter: " +
+         micros(this.getJitterNanos()) + "us, lost: " + this.getDatagramsLost() + ", retransmits: " +
+         this.getRetransmits() + "]";
+   }
+
+   private static long micros(long nanos) {
+      return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+   }
+}
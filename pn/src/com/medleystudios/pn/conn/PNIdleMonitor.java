@@ -0,0 +1,264 @@
+package com.medleystudios.pn.conn;
+
+import com.medleystudios.pn.PN;
+import com.medleystudios.pn.io.PNInputStreamReader;
+import com.medleystudios.pn.io.PNOutputStreamWriter;
+import com.medleystudios.pn.io.PNProtocol;
+import com.medleystudios.pn.io.PNTimingWheel;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches a connection for a peer that has gone quiet, keeping it alive with heartbeats and closing it once it is
+ * found dead. A half-open connection never fails a read, so without this it could linger indefinitely.
+ * <p>
+ * When nothing has been written for the ping interval a {@link PNProtocol#PING} goes out, which the peer answers with
+ * a {@link PNProtocol#PONG}, so a live peer is never read-idle for long on either side. The connection is closed when
+ * nothing has been read for the read timeout, or when the writer has been waiting for the socket without it taking a
+ * byte for the write timeout. Time spent with reading paused, because the application's queue is full or the read rate
+ * was reached, does not count towards the read timeout.
+ * <p>
+ * Pings also go out every probe interval whatever the traffic, riding along with whatever is queued, so the round
+ * trip time and its jitter are measured continuously rather than only while idle. A probe is only queued, never
+ * flushed, so it does not break up a corked writer's batches; its send time is taken when the writer hands it to the
+ * socket, so the time it waited for the batch is not counted as round trip. Heartbeats do go out straight away, as
+ * nothing else is being sent.
+ * <p>
+ * The checks are timeouts on the event loop's {@link PNTimingWheel}, rearmed as they expire rather than on every
+ * read and write, so the monitor costs nothing per packet. Runs on the connection's event loop.
+ */
+public class PNIdleMonitor {
+
+   /**
+    * Settings that suit most connections: a peer is dead after a few missed heartbeats
+    */
+   public static final long DEFAULT_READ_TIMEOUT_MILLIS = 15_000;
+   public static final long DEFAULT_WRITE_TIMEOUT_MILLIS = 15_000;
+   public static final long DEFAULT_PING_INTERVAL_MILLIS = 5_000;
+
+   /**
+    * The default time between round trip measurements
+    */
+   public static final long DEFAULT_PROBE_INTERVAL_MILLIS = 1_000;
+
+   private final PNConnection connection;
+   private final PNInputStreamReader reader;
+   private final PNOutputStreamWriter writer;
+   private final PNTimingWheel wheel;
+
+   private long readTimeoutNanos = 0;
+   private long writeTimeoutNanos = 0;
+   private long pingIntervalNanos = 0;
+   private long probeIntervalNanos = 0;
+
+   private final PNTimingWheel.Timeout readCheck;
+   private final PNTimingWheel.Timeout writeCheck;
+   private final PNTimingWheel.Timeout probe;
+
+   private final byte[] pingScratch = new byte[8];
+   private final ByteBuffer pingBuffer = ByteBuffer.wrap(this.pingScratch);
+
+   // Round trip statistics from pongs, -1 before the first. The smoothed time follows RFC 6298 and the jitter, the
+   // mean difference between consecutive round trips, RFC 3550
+   private volatile long lastRttNanos = -1;
+   private volatile long smoothedRttNanos = -1;
+   private volatile long minRttNanos = -1;
+   private volatile long jitterNanos = 0;
+   private volatile long pongs = 0;
+
+   /**
+    * The payload of the probe waiting to be answered, -1 for none, and when the writer flushed it, -1 until then
+    */
+   private volatile long probeStamp = -1;
+   private volatile long probeSentNanos = -1;
+
+   /**
+    * The payload of the last heartbeat, which is also when it was sent
+    */
+   private long heartbeatStamp = -1;
+
+   PNIdleMonitor(PNConnection connection, PNInputStreamReader reader, PNOutputStreamWriter writer,
+                 PNTimingWheel wheel) {
+      this.connection = connection;
+      this.reader = reader;
+      this.writer = writer;
+      this.wheel = wheel;
+      this.readCheck = wheel.newTimeout(this::checkRead);
+      this.writeCheck = wheel.newTimeout(this::checkWrite);
+      this.probe = wheel.newTimeout(this::sendProbe);
+      writer.setFlushListener(this::flushing);
+   }
+
+   /**
+    * Sets how often the round trip is measured, 0 to stop. Runs on the event loop.
+    */
+   void configureProbe(long probeIntervalNanos) {
+      this.probeIntervalNanos = probeIntervalNanos;
+      this.probe.cancel();
+      if (probeIntervalNanos > 0 && !this.connection.isClosed()) {
+         this.wheel.schedule(this.probe, probeIntervalNanos, TimeUnit.NANOSECONDS);
+      }
+   }
+
+   private void sendProbe() {
+      if (this.probeIntervalNanos == 0 || this.connection.isClosed()) return;
+
+      long now = System.nanoTime();
+      this.pingBuffer.putLong(0, now);
+      // Holding the writer's lock so no flush can take the time before the probe is queued
+      synchronized (this.writer) {
+         // The last probe has not gone out yet, another would only wait in the same batch
+         if (this.probeStamp >= 0 && this.probeSentNanos < 0) {
+            this.wheel.schedule(this.probe, this.probeIntervalNanos, TimeUnit.NANOSECONDS);
+            return;
+         }
+         this.probeSentNanos = -1;
+         this.probeStamp = now;
+         this.writer.writePacket(PNProtocol.PING, this.pingScratch);
+      }
+      this.wheel.schedule(this.probe, this.probeIntervalNanos, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Takes the send time of a queued probe. Called by the writer, with it locked, as it hands its queue to the socket.
+    */
+   private void flushing() {
+      if (this.probeStamp >= 0 && this.probeSentNanos < 0) {
+         this.probeSentNanos = System.nanoTime();
+      }
+   }
+
+   /**
+    * Applies new settings, each 0 to turn that check off. Runs on the event loop.
+    */
+   void configure(long readTimeoutNanos, long writeTimeoutNanos, long pingIntervalNanos) {
+      this.readTimeoutNanos = readTimeoutNanos;
+      this.writeTimeoutNanos = writeTimeoutNanos;
+      this.pingIntervalNanos = pingIntervalNanos;
+
+      this.readCheck.cancel();
+      this.writeCheck.cancel();
+      if (this.connection.isClosed()) return;
+      this.checkRead();
+      this.checkWrite();
+   }
+
+   private void checkRead() {
+      if (this.readTimeoutNanos == 0 || this.connection.isClosed()) return;
+
+      // A peer is not idle while we are the ones not reading, the check starts over once reading resumes
+      long idle = this.reader.getReadIdleNanos(System.nanoTime());
+      if (idle >= this.readTimeoutNanos) {
+         this.timedOut("Read timed out after " + TimeUnit.NANOSECONDS.toMillis(idle) + "ms");
+         return;
+      }
+      this.wheel.schedule(this.readCheck, this.readTimeoutNanos - idle, TimeUnit.NANOSECONDS);
+   }
+
+   private void checkWrite() {
+      if (this.connection.isClosed()) return;
+      long next = Long.MAX_VALUE;
+
+      if (this.writeTimeoutNanos > 0) {
+         long stalled = this.writer.getStalledNanos();
+         if (stalled >= this.writeTimeoutNanos) {
+            this.timedOut("Write timed out after " + TimeUnit.NANOSECONDS.toMillis(stalled) + "ms");
+            return;
+         }
+         next = this.writeTimeoutNanos - stalled;
+      }
+
+      if (this.pingIntervalNanos > 0) {
+         long now = System.nanoTime();
+         long idle = now - this.writer.getLastWriteNanos();
+         if (idle >= this.pingIntervalNanos) {
+            this.ping(now);
+            idle = 0;
+         }
+         next = Math.min(next, this.pingIntervalNanos - idle);
+      }
+
+      if (next != Long.MAX_VALUE) {
+         this.wheel.schedule(this.writeCheck, next, TimeUnit.NANOSECONDS);
+      }
+   }
+
+   /**
+    * Sends a heartbeat straight away, even if the writer is corked.
+    */
+   private void ping(long now) {
+      this.heartbeatStamp = now;
+      this.pingBuffer.putLong(0, now);
+      this.writer.writePacket(PNProtocol.PING, this.pingScratch);
+      this.writer.sendQueued();
+   }
+
+   /**
+    * Takes the round trip from a pong. Runs on the event loop.
+    */
+   void handlePong(ByteBuffer payload) {
+      if (payload.remaining() < 8) return;
+      long sent = payload.getLong(payload.position());
+      if (sent == this.probeStamp) {
+         sent = this.probeSentNanos;
+         this.probeStamp = -1;
+         if (sent < 0) return;
+      }
+      else if (sent != this.heartbeatStamp) {
+         // A probe we gave up on, its send time is no longer known
+         return;
+      }
+      long sample = System.nanoTime() - sent;
+      if (sample < 0) return;
+
+      if (this.smoothedRttNanos < 0) {
+         this.smoothedRttNanos = sample;
+         this.minRttNanos = sample;
+      }
+      else {
+         this.smoothedRttNanos = (7 * this.smoothedRttNanos + sample) / 8;
+         this.minRttNanos = Math.min(this.minRttNanos, sample);
+         this.jitterNanos += (Math.abs(sample - this.lastRttNanos) - this.jitterNanos) / 16;
+      }
+      this.lastRttNanos = sample;
+      this.pongs++;
+   }
+
+   public long getRttNanos() {
+      return this.smoothedRttNanos;
+   }
+
+   public long getLastRttNanos() {
+      return this.lastRttNanos;
+   }
+
+   public long getMinRttNanos() {
+      return this.minRttNanos;
+   }
+
+   public long getJitterNanos() {
+      return this.jitterNanos;
+   }
+
+   /**
+    * @return The number of round trips measured
+    */
+   public long getPongs() {
+      return this.pongs;
+   }
+
+   private void timedOut(String reason) {
+      PN.log(this.connection, reason + ", closing " + this.connection);
+      this.connection.closeDead(reason);
+   }
+
+   /**
+    * Stops the checks. Runs on the event loop.
+    */
+   void close() {
+      this.readCheck.cancel();
+      this.writeCheck.cancel();
+      this.probe.cancel();
+   }
+}
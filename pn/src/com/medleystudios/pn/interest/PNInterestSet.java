@@ -0,0 +1,164 @@
+package com.medleystudios.pn.interest;
+
+import java.util.Arrays;
+
+/**
+ * The entities one viewer, normally a client, is interested in: those within a radius of where it is in a
+ * {@link PNSpatialGrid}. {@link #update(PNSpatialGrid, float, float)} recomputes the set each tick from the cells
+ * around the viewer only, so the work grows with how crowded the viewer's surroundings are rather than with the size
+ * of the world, and tells which entities entered and left it.
+ * <p>
+ * An entity already in the set stays until it is beyond a larger leave radius, so that one moving along the edge
+ * does not flicker in and out. The set is kept sorted by id and its arrays are reused, so updating it does not
+ * allocate once they have grown. Not thread-safe.
+ */
+public class PNInterestSet {
+
+   private static final int INITIAL_CAPACITY = 64;
+
+   private float radius;
+   private float leaveRadius;
+   private float radiusSquared;
+
+   private int[] current = new int[INITIAL_CAPACITY];
+   private int size = 0;
+   private int[] previous = new int[INITIAL_CAPACITY];
+   private int previousSize = 0;
+
+   private int[] entered = new int[INITIAL_CAPACITY];
+   private int enteredCount = 0;
+   private int[] left = new int[INITIAL_CAPACITY];
+   private int leftCount = 0;
+
+   private final PNSpatialGrid.Visitor collector = this::collect;
+
+   /**
+    * @param radius      Entities this close are in the set
+    * @param leaveRadius Entities in the set stay in it until they are further than this. At least the radius.
+    */
+   public PNInterestSet(float radius, float leaveRadius) {
+      this.setRadius(radius, leaveRadius);
+   }
+
+   public void setRadius(float radius, float leaveRadius) {
+      if (!(radius >= 0) || !(leaveRadius >= radius)) {
+         throw new IllegalArgumentException("Invalid radius " + radius + " and leave radius " + leaveRadius);
+      }
+      this.radius = radius;
+      this.leaveRadius = leaveRadius;
+      this.radiusSquared = radius * radius;
+   }
+
+   /**
+    * Recomputes the set for a viewer at the position, working out which entities entered and left it since the last
+    * update.
+    */
+   public void update(PNSpatialGrid grid, float x, float y) {
+      int[] swap = this.previous;
+      this.previous = this.current;
+      this.previousSize = this.size;
+      this.current = swap;
+      this.size = 0;
+
+      grid.query(x, y, this.leaveRadius, this.collector);
+      Arrays.sort(this.current, 0, this.size);
+      this.diff();
+   }
+
+   private void collect(int entityId, float distanceSquared) {
+      if (distanceSquared > this.radiusSquared &&
+         Arrays.binarySearch(this.previous, 0, this.previousSize, entityId) < 0) {
+         return;
+      }
+      if (this.size == this.current.length) {
+         this.current = Arrays.copyOf(this.current, this.size * 2);
+      }
+      this.current[this.size++] = entityId;
+   }
+
+   /**
+    * Merges the previous and current sets to find the entities that entered and left
+    */
+   private void diff() {
+      this.enteredCount = 0;
+      this.leftCount = 0;
+      int i = 0;
+      int j = 0;
+      while (i < this.previousSize || j < this.size) {
+         if (j == this.size || (i < this.previousSize && this.previous[i] < this.current[j])) {
+            if (this.leftCount == this.left.length) {
+               this.left = Arrays.copyOf(this.left, this.leftCount * 2);
+            }
+            this.left[this.leftCount++] = this.previous[i++];
+         }
+         else if (i == this.previousSize || this.current[j] < this.previous[i]) {
+            if (this.enteredCount == this.entered.length) {
+               this.entered = Arrays.copyOf(this.entered, this.enteredCount * 2);
+            }
+            this.entered[this.enteredCount++] = this.current[j++];
+         }
+         else {
+            i++;
+            j++;
+         }
+      }
+   }
+
+   /**
+    * Empties the set, so that everything is new to it on the next update.
+    */
+   public void clear() {
+      this.size = 0;
+      this.previousSize = 0;
+      this.enteredCount = 0;
+      this.leftCount = 0;
+   }
+
+   public int size() {
+      return this.size;
+   }
+
+   /**
+    * @return The id of the entity at the index, in ascending order of id
+    */
+   public int getEntityId(int index) {
+      return this.current[index];
+   }
+
+   public boolean contains(int entityId) {
+      return Arrays.binarySearch(this.current, 0, this.size, entityId) >= 0;
+   }
+
+   public int getEnteredCount() {
+      return this.enteredCount;
+   }
+
+   /**
+    * @return The id of an entity that entered the set in the last update, in ascending order of id
+    */
+   public int getEntered(int index) {
+      return this.entered[index];
+   }
+
+   public int getLeftCount() {
+      return this.leftCount;
+   }
+
+   public int getLeft(int index) {
+      return this.left[index];
+   }
+
+   public float getRadius() {
+      return this.radius;
+   }
+
+   public float getLeaveRadius() {
+      return this.leaveRadius;
+   }
+
+   @Override
+   public String toString() {
+      return "PNInterestSet[radius: " + this.radius + ", entities: " + this.size + ", entered: " +
+         this.enteredCount + ", left: " + this.leftCount + "]";
+   }
+}
@@ -0,0 +1,206 @@
+package com.medleystudios.pn.interest;
+
+import java.util.Arrays;
+
+/**
+ * The positions of a world's entities on a plane, bucketed into a uniform grid of square cells so that finding the
+ * entities near a point only looks at the cells around it. Adding, moving and removing an entity are constant time,
+ * and a move within the same cell only updates the position.
+ * <p>
+ * The grid covers a fixed area; entities outside it are kept in the nearest edge cell. Entity ids index arrays
+ * directly, so they should be dense, such as slots that are reused as entities come and go. Not thread-safe; a
+ * server normally updates and queries it on its tick.
+ */
+public class PNSpatialGrid {
+
+   private static final int INITIAL_CELL_CAPACITY = 8;
+
+   private final float minX;
+   private final float minY;
+   private final float cellSize;
+   private final int columns;
+   private final int rows;
+
+   /**
+    * The ids of the entities in each cell, and how many there are
+    */
+   private final int[][] cells;
+   private final int[] cellCounts;
+
+   // Per entity id: its cell, or -1 if it is not in the grid, its index in the cell, and its position
+   private int[] cellOf = new int[0];
+   private int[] indexInCell = new int[0];
+   private float[] xs = new float[0];
+   private float[] ys = new float[0];
+   private int size = 0;
+
+   /**
+    * @param cellSize The side of a cell. Around the radius entities are usually queried with works well.
+    */
+   public PNSpatialGrid(float minX, float minY, float maxX, float maxY, float cellSize) {
+      if (!(cellSize > 0) || !(maxX > minX) || !(maxY > minY)) {
+         throw new IllegalArgumentException("Invalid grid " + minX + ", " + minY + " to " + maxX + ", " + maxY +
+            " by " + cellSize);
+      }
+      this.minX = minX;
+      this.minY = minY;
+      this.cellSize = cellSize;
+      this.columns = (int)Math.ceil((maxX - minX) / cellSize);
+      this.rows = (int)Math.ceil((maxY - minY) / cellSize);
+      this.cells = new int[this.columns * this.rows][];
+      this.cellCounts = new int[this.columns * this.rows];
+   }
+
+   /**
+    * Adds the entity at the position, or moves it there if it is already in the grid.
+    */
+   public void add(int entityId, float x, float y) {
+      if (entityId < 0) {
+         throw new IllegalArgumentException("Entity id must not be negative: " + entityId);
+      }
+      if (this.contains(entityId)) {
+         this.move(entityId, x, y);
+         return;
+      }
+      this.ensureCapacity(entityId + 1);
+      this.xs[entityId] = x;
+      this.ys[entityId] = y;
+      this.insert(entityId, this.cellAt(x, y));
+      this.size++;
+   }
+
+   /**
+    * Moves an entity that is in the grid.
+    *
+    * @throws IllegalArgumentException If it is not
+    */
+   public void move(int entityId, float x, float y) {
+      if (!this.contains(entityId)) {
+         throw new IllegalArgumentException("Entity " + entityId + " is not in the grid");
+      }
+      this.xs[entityId] = x;
+      this.ys[entityId] = y;
+      int cell = this.cellAt(x, y);
+      if (cell != this.cellOf[entityId]) {
+         this.unlink(entityId);
+         this.insert(entityId, cell);
+      }
+   }
+
+   /**
+    * @return True if the entity was in the grid
+    */
+   public boolean remove(int entityId) {
+      if (!this.contains(entityId)) return false;
+      this.unlink(entityId);
+      this.cellOf[entityId] = -1;
+      this.size--;
+      return true;
+   }
+
+   public boolean contains(int entityId) {
+      return entityId >= 0 && entityId < this.cellOf.length && this.cellOf[entityId] >= 0;
+   }
+
+   public float getX(int entityId) {
+      return this.xs[entityId];
+   }
+
+   public float getY(int entityId) {
+      return this.ys[entityId];
+   }
+
+   public int size() {
+      return this.size;
+   }
+
+   /**
+    * Calls the visitor with every entity within the radius of the point, in no particular order. Only the cells the
+    * circle overlaps are looked at.
+    */
+   public void query(float x, float y, float radius, Visitor visitor) {
+      int firstColumn = this.columnAt(x - radius);
+      int lastColumn = this.columnAt(x + radius);
+      int firstRow = this.rowAt(y - radius);
+      int lastRow = this.rowAt(y + radius);
+      float radiusSquared = radius * radius;
+
+      for (int row = firstRow; row <= lastRow; row++) {
+         for (int column = firstColumn; column <= lastColumn; column++) {
+            int cell = row * this.columns + column;
+            int[] ids = this.cells[cell];
+            for (int i = 0, count = this.cellCounts[cell]; i < count; i++) {
+               int id = ids[i];
+               float dx = this.xs[id] - x;
+               float dy = this.ys[id] - y;
+               float distanceSquared = dx * dx + dy * dy;
+               if (distanceSquared <= radiusSquared) {
+                  visitor.visit(id, distanceSquared);
+               }
+            }
+         }
+      }
+   }
+
+   private int cellAt(float x, float y) {
+      return this.rowAt(y) * this.columns + this.columnAt(x);
+   }
+
+   private int columnAt(float x) {
+      int column = (int)Math.floor((x - this.minX) / this.cellSize);
+      return Math.min(Math.max(column, 0), this.columns - 1);
+   }
+
+   private int rowAt(float y) {
+      int row = (int)Math.floor((y - this.minY) / this.cellSize);
+      return Math.min(Math.max(row, 0), this.rows - 1);
+   }
+
+   private void insert(int entityId, int cell) {
+      int[] ids = this.cells[cell];
+      int count = this.cellCounts[cell];
+      if (ids == null) {
+         ids = this.cells[cell] = new int[INITIAL_CELL_CAPACITY];
+      }
+      else if (count == ids.length) {
+         ids = this.cells[cell] = Arrays.copyOf(ids, count * 2);
+      }
+      ids[count] = entityId;
+      this.cellCounts[cell] = count + 1;
+      this.cellOf[entityId] = cell;
+      this.indexInCell[entityId] = count;
+   }
+
+   /**
+    * Takes the entity out of its cell, moving the cell's last entity into its place
+    */
+   private void unlink(int entityId) {
+      int cell = this.cellOf[entityId];
+      int[] ids = this.cells[cell];
+      int last = --this.cellCounts[cell];
+      int index = this.indexInCell[entityId];
+      ids[index] = ids[last];
+      this.indexInCell[ids[index]] = index;
+   }
+
+   private void ensureCapacity(int capacity) {
+      if (capacity <= this.cellOf.length) return;
+      int length = Math.max(capacity, Math.max(this.cellOf.length * 2, 64));
+      int oldLength = this.cellOf.length;
+      this.cellOf = Arrays.copyOf(this.cellOf, length);
+      Arrays.fill(this.cellOf, oldLength, length, -1);
+      this.indexInCell = Arrays.copyOf(this.indexInCell, length);
+      this.xs = Arrays.copyOf(this.xs, length);
+      this.ys = Arrays.copyOf(this.ys, length);
+   }
+
+   @Override
+   public String toString() {
+      return "PNSpatialGrid[" + this.columns + "x" + this.rows + " cells of " + this.cellSize + ", entities: " +
+         this.size + "]";
+   }
+
+   public interface Visitor {
+      void visit(int entityId, float distanceSquared);
+   }
+}
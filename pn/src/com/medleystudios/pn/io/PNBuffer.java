@@ -0,0 +1,137 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A reference counted {@link ByteBuffer} handed out by a {@link PNBufferPool}. Once the last reference is released
+ * the memory goes back to the pool and must not be touched again.
+ * <p>
+ * A buffer can be shared without copying through {@link #retainedDuplicate()}, which gives each holder its own
+ * read-only view with its own position and limit. The memory is only recycled once every view is released.
+ */
+public class PNBuffer {
+
+   private final ByteBuffer memory;
+   private final PNBufferPool pool;
+
+   /**
+    * The index of the pool's size class this buffer belongs to, or -1 if it was too big to be pooled
+    */
+   private final int sizeClass;
+
+   /**
+    * The index of the pool's arena the buffer was allocated for and goes back to
+    */
+   private final int arena;
+
+   private final AtomicInteger refCnt;
+
+   /**
+    * The buffer this one is a view of, or null if it owns its memory
+    */
+   private final PNBuffer parent;
+
+   PNBuffer(ByteBuffer memory, PNBufferPool pool, int sizeClass, int arena) {
+      this.memory = memory;
+      this.pool = pool;
+      this.sizeClass = sizeClass;
+      this.arena = arena;
+      this.refCnt = new AtomicInteger(0);
+      this.parent = null;
+   }
+
+   private PNBuffer(PNBuffer parent) {
+      this.memory = parent.memory.asReadOnlyBuffer();
+      this.pool = null;
+      this.sizeClass = -1;
+      this.arena = -1;
+      this.refCnt = new AtomicInteger(1);
+      this.parent = parent;
+   }
+
+   /**
+    * @return The underlying memory. Its position and limit belong to whoever holds the buffer.
+    */
+   public ByteBuffer memory() {
+      return this.memory;
+   }
+
+   public int capacity() {
+      return this.memory.capacity();
+   }
+
+   /**
+    * @return True if this is a view made by {@link #retainedDuplicate()}, which must not be written to
+    */
+   public boolean isReadOnly() {
+      return this.parent != null;
+   }
+
+   /**
+    * Adds a reference, which must be matched by a {@link #release()}.
+    */
+   public PNBuffer retain() {
+      while (true) {
+         int refCnt = this.refCnt.get();
+         if (refCnt <= 0) {
+            throw new IllegalStateException("Cannot retain a released buffer " + this);
+         }
+         if (this.refCnt.compareAndSet(refCnt, refCnt + 1)) return this;
+      }
+   }
+
+   /**
+    * Creates a read-only view over the same memory, starting with this buffer's current position and limit, and
+    * retains this buffer on its behalf. Releasing the view releases that reference. Nothing is copied.
+    */
+   public PNBuffer retainedDuplicate() {
+      this.retain();
+      return new PNBuffer(this);
+   }
+
+   int getSizeClass() {
+      return this.sizeClass;
+   }
+
+   int getArena() {
+      return this.arena;
+   }
+
+   /**
+    * Called by the pool when the buffer is handed out.
+    */
+   void acquired() {
+      this.memory.clear();
+      this.refCnt.set(1);
+   }
+
+   /**
+    * Drops a reference, returning the buffer to its pool when it was the last one.
+    */
+   public void release() {
+      int refCnt = this.refCnt.decrementAndGet();
+      if (refCnt == 0) {
+         if (this.parent != null) {
+            this.parent.release();
+         }
+         else if (this.pool != null) {
+            this.pool.recycle(this);
+         }
+      }
+      else if (refCnt < 0) {
+         this.refCnt.incrementAndGet();
+         throw new IllegalStateException("Buffer released more times than it was acquired " + this);
+      }
+   }
+
+   public int refCnt() {
+      return this.refCnt.get();
+   }
+
+   @Override
+   public String toString() {
+      return "PNBuffer[capacity: " + capacity() + ", direct: " + this.memory.isDirect() + ", refCnt: " + refCnt() +
+         "]";
+   }
+}
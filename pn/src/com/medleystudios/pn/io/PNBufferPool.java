@@ -0,0 +1,174 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles {@link PNBuffer}s so that steady-state traffic allocates nothing.
+ * <p>
+ * Requests are rounded up to a power-of-two size class between {@link #MIN_SIZE} and {@link #MAX_SIZE}; anything
+ * bigger is allocated on demand and left to the garbage collector. Free buffers are kept in arenas striped by
+ * thread, so threads acquiring at the same time rarely contend for the same lock. A buffer goes back to the arena it
+ * was acquired from whichever thread releases it, so a thread that only acquires, such as a producer handing its
+ * buffers to an event loop, is still given back what it handed out. A pool hands out either heap buffers or direct
+ * (off-heap) buffers, never both.
+ */
+public class PNBufferPool {
+
+   public static final int MIN_SIZE_SHIFT = 8;
+   public static final int MAX_SIZE_SHIFT = 16;
+
+   public static final int MIN_SIZE = 1 << MIN_SIZE_SHIFT;
+   public static final int MAX_SIZE = 1 << MAX_SIZE_SHIFT;
+
+   private static final int SIZE_CLASSES = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+
+   /**
+    * Roughly how many bytes each arena keeps per size class before it starts dropping released buffers
+    */
+   private static final int RETAINED_BYTES_PER_CLASS = 1 << 20;
+
+   private static PNBufferPool defaultPool = null;
+
+   private final boolean direct;
+   private final Arena[] arenas;
+
+   private final AtomicLong allocations;
+
+   /**
+    * @param direct True to hand out direct buffers, false for heap buffers
+    */
+   public PNBufferPool(boolean direct) {
+      this(direct, Runtime.getRuntime().availableProcessors());
+   }
+
+   public PNBufferPool(boolean direct, int arenaCount) {
+      this.direct = direct;
+      this.arenas = new Arena[Math.max(1, arenaCount)];
+      for (int i = 0; i < this.arenas.length; i++) {
+         this.arenas[i] = new Arena();
+      }
+      this.allocations = new AtomicLong(0);
+   }
+
+   /**
+    * @return The pool connections use unless told otherwise. A heap pool is created on first use.
+    */
+   public synchronized static PNBufferPool getDefault() {
+      if (defaultPool == null) {
+         defaultPool = new PNBufferPool(false);
+      }
+      return defaultPool;
+   }
+
+   /**
+    * Replaces the default pool. Only affects buffers acquired after the call.
+    */
+   public synchronized static void setDefault(PNBufferPool pool) {
+      defaultPool = pool;
+   }
+
+   /**
+    * @return A cleared buffer with at least minCapacity bytes and a reference count of 1
+    */
+   public PNBuffer acquire(int minCapacity) {
+      int sizeClass = sizeClassOf(minCapacity);
+      if (sizeClass < 0) {
+         PNBuffer buffer = new PNBuffer(allocate(minCapacity), null, -1, -1);
+         buffer.acquired();
+         return buffer;
+      }
+
+      int arena = this.arenaIndex();
+      PNBuffer buffer = this.arenas[arena].pop(sizeClass);
+      if (buffer == null) {
+         buffer = new PNBuffer(allocate(MIN_SIZE << sizeClass), this, sizeClass, arena);
+      }
+      buffer.acquired();
+      return buffer;
+   }
+
+   void recycle(PNBuffer buffer) {
+      this.arenas[buffer.getArena()].push(buffer);
+   }
+
+   private ByteBuffer allocate(int capacity) {
+      this.allocations.incrementAndGet();
+      return this.direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+   }
+
+   private int arenaIndex() {
+      return (int)(Thread.currentThread().getId() % this.arenas.length);
+   }
+
+   /**
+    * @return The index of the smallest size class holding the capacity, or -1 if it is bigger than {@link #MAX_SIZE}
+    */
+   private static int sizeClassOf(int capacity) {
+      if (capacity <= MIN_SIZE) return 0;
+      if (capacity > MAX_SIZE) return -1;
+      return (32 - Integer.numberOfLeadingZeros(capacity - 1)) - MIN_SIZE_SHIFT;
+   }
+
+   /**
+    * @return The capacity a request for the given number of bytes is rounded up to
+    */
+   public static int sizeFor(int capacity) {
+      int sizeClass = sizeClassOf(capacity);
+      return sizeClass < 0 ? capacity : MIN_SIZE << sizeClass;
+   }
+
+   public boolean isDirect() {
+      return this.direct;
+   }
+
+   /**
+    * @return The number of buffers this pool has had to allocate since it was created
+    */
+   public long getAllocationCount() {
+      return this.allocations.get();
+   }
+
+   @Override
+   public String toString() {
+      return "PNBufferPool[direct: " + this.direct + ", arenas: " + this.arenas.length + ", allocations: " +
+         getAllocationCount() + "]";
+   }
+
+   private static class Arena {
+
+      private final PNBuffer[][] stacks;
+      private final int[] sizes;
+
+      private Arena() {
+         this.stacks = new PNBuffer[SIZE_CLASSES][];
+         this.sizes = new int[SIZE_CLASSES];
+         for (int i = 0; i < SIZE_CLASSES; i++) {
+            this.stacks[i] = new PNBuffer[Math.max(8, RETAINED_BYTES_PER_CLASS >> (MIN_SIZE_SHIFT + i))];
+         }
+      }
+
+      private synchronized PNBuffer pop(int sizeClass) {
+         int size = this.sizes[sizeClass];
+         if (size == 0) return null;
+
+         PNBuffer[] stack = this.stacks[sizeClass];
+         PNBuffer buffer = stack[--size];
+         stack[size] = null;
+         this.sizes[sizeClass] = size;
+         return buffer;
+      }
+
+      private synchronized void push(PNBuffer buffer) {
+         int sizeClass = buffer.getSizeClass();
+         int size = this.sizes[sizeClass];
+         PNBuffer[] stack = this.stacks[sizeClass];
+
+         // The arena is full, let the garbage collector have it
+         if (size == stack.length) return;
+
+         stack[size] = buffer;
+         this.sizes[sizeClass] = size + 1;
+      }
+   }
+}
@@ -0,0 +1,306 @@
+package com.medleystudios.pn.io;
+
+import com.medleystudios.pn.PN;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A UDP socket on an event loop carrying the datagram side of one or more connections.
+ * <p>
+ * A server binds one endpoint for all of its connections and tells them apart by their address. A session starts
+ * out known only by a random token, which the server offers the client over TCP. The client sends the token back in a
+ * HELLO datagram from the address it will use, which ties that address to the session, and the server answers with a
+ * WELCOME so the client knows the path works both ways.
+ * <p>
+ * A client's endpoint is connected to the server's address and carries a single session.
+ */
+public class PNDatagramEndpoint implements PNEventLoop.Handler {
+
+   private final Object closeLock = new Object();
+
+   /**
+    * The most datagrams to receive per readiness event, so a flood cannot starve the loop's other channels
+    */
+   private static final int MAX_RECEIVES_PER_EVENT = 64;
+
+   private static final SecureRandom tokens = new SecureRandom();
+
+   private final DatagramChannel channel;
+   private final PNEventLoop eventLoop;
+   private final PNBufferPool pool;
+   private final boolean connected;
+
+   /**
+    * Sessions whose address is known. Only touched on the event loop.
+    */
+   private final Map<SocketAddress, PNDatagramSession> sessions = new HashMap<>();
+
+   /**
+    * Sessions waiting for their client's HELLO, by token
+    */
+   private final Map<Long, PNDatagramSession> pending = new ConcurrentHashMap<>();
+
+   /**
+    * The session of a connected endpoint
+    */
+   private PNDatagramSession session = null;
+
+   private PNBuffer receiveBuffer;
+   private boolean closed = false;
+
+   /**
+    * True while a datagram is being handed out, during which the receive buffer must stay put even if a handler
+    * closes the endpoint
+    */
+   private boolean processing = false;
+
+   private PNDatagramEndpoint(DatagramChannel channel, PNEventLoop eventLoop, PNBufferPool pool, boolean connected) {
+      this.channel = channel;
+      this.eventLoop = eventLoop;
+      this.pool = pool;
+      this.connected = connected;
+      this.receiveBuffer = pool.acquire(PNProtocol.MAX_DATAGRAM_SIZE);
+
+      this.eventLoop.register(this.channel, SelectionKey.OP_READ, this, null);
+   }
+
+   /**
+    * Opens an endpoint that many clients can reach, for a server.
+    */
+   public static PNDatagramEndpoint bind(String host, int port, PNEventLoop eventLoop, PNBufferPool pool)
+      throws IOException {
+      DatagramChannel channel = DatagramChannel.open();
+      try {
+         channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+         channel.bind(new InetSocketAddress(host, port));
+      }
+      catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+      return new PNDatagramEndpoint(channel, eventLoop, pool, false);
+   }
+
+   /**
+    * Opens an endpoint that talks to a single server, and the session it talks to it through.
+    *
+    * @param token The token the server offered
+    */
+   public static PNDatagramSession connect(SocketAddress server, long token, PNEventLoop eventLoop,
+                                           PNBufferPool pool) throws IOException {
+      DatagramChannel channel = DatagramChannel.open();
+      try {
+         channel.connect(server);
+      }
+      catch (IOException e) {
+         channel.close();
+         throw e;
+      }
+
+      PNDatagramEndpoint endpoint = new PNDatagramEndpoint(channel, eventLoop, pool, true);
+      PNDatagramSession session = new PNDatagramSession(endpoint, token, true);
+      session.setRemoteAddress(server);
+      endpoint.session = session;
+      return session;
+   }
+
+   /**
+    * Creates a session waiting for a client to claim it with its token. Send the token and {@link #getPort()} to the
+    * client over a channel it trusts.
+    */
+   public PNDatagramSession offer() {
+      if (this.connected) {
+         throw new IllegalStateException("Only a bound endpoint can offer sessions " + this);
+      }
+
+      long token;
+      PNDatagramSession session;
+      do {
+         token = tokens.nextLong();
+         session = new PNDatagramSession(this, token, false);
+      } while (this.pending.putIfAbsent(token, session) != null);
+      return session;
+   }
+
+   public int getPort() {
+      try {
+         return ((InetSocketAddress)this.channel.getLocalAddress()).getPort();
+      }
+      catch (IOException e) {
+         return -1;
+      }
+   }
+
+   PNBufferPool getPool() {
+      return this.pool;
+   }
+
+   public PNEventLoop getEventLoop() {
+      return this.eventLoop;
+   }
+
+   /**
+    * Receives whatever datagrams are waiting. Runs on the event loop.
+    */
+   @Override
+   public void handleReady(SelectionKey key) {
+      if (!key.isReadable()) return;
+
+      for (int i = 0; i < MAX_RECEIVES_PER_EVENT; i++) {
+         ByteBuffer memory;
+         SocketAddress sender;
+         synchronized (closeLock) {
+            if (this.closed) return;
+            memory = this.receiveBuffer.memory();
+            memory.clear();
+            try {
+               sender = this.channel.receive(memory);
+            }
+            catch (IOException e) {
+               // A connected endpoint learns of an unreachable peer this way; the session times out on its own
+               PN.debug(this, () -> "Failed to receive datagram: " + e.getMessage());
+               continue;
+            }
+            if (sender == null) return;
+            this.processing = true;
+         }
+
+         try {
+            memory.flip();
+            this.dispatch(sender, memory);
+         }
+         finally {
+            synchronized (closeLock) {
+               this.processing = false;
+               if (this.closed) {
+                  this.releaseBuffer();
+                  return;
+               }
+            }
+         }
+      }
+   }
+
+   private void dispatch(SocketAddress sender, ByteBuffer datagram) {
+      if (!datagram.hasRemaining()) return;
+      byte type = datagram.get();
+
+      if (this.connected) {
+         if (this.session != null) {
+            this.session.receive(type, datagram);
+         }
+         return;
+      }
+
+      PNDatagramSession session = this.sessions.get(sender);
+      if (session != null) {
+         session.receive(type, datagram);
+         return;
+      }
+
+      if (type != PNProtocol.DATAGRAM_HELLO || datagram.remaining() < 8) {
+         // Checked here so a flood of stray datagrams does not allocate a message for each while tracing is off
+         if (PN.isTraceEnabled()) {
+            PN.trace(this, () -> "Dropping datagram from unknown address " + sender);
+         }
+         return;
+      }
+
+      session = this.pending.remove(datagram.getLong());
+      if (session == null) {
+         if (PN.isDebugEnabled()) {
+            PN.debug(this, "Dropping HELLO with unknown token from " + sender);
+         }
+         return;
+      }
+
+      this.sessions.put(sender, session);
+      session.setRemoteAddress(sender);
+      session.receive(type, datagram);
+   }
+
+   /**
+    * Sends a datagram to the address without blocking.
+    *
+    * @return Returns false if the datagram was dropped because the socket is full or closed
+    */
+   boolean send(ByteBuffer datagram, SocketAddress target) {
+      try {
+         if (this.connected) {
+            return this.channel.write(datagram) > 0;
+         }
+         return this.channel.send(datagram, target) > 0;
+      }
+      catch (IOException e) {
+         PN.debug(this, () -> "Failed to send datagram to " + target + ": " + e.getMessage());
+         return false;
+      }
+   }
+
+   /**
+    * Forgets a session. A connected endpoint closes along with its session.
+    */
+   void remove(PNDatagramSession session) {
+      this.pending.remove(session.getToken());
+      if (this.connected) {
+         this.close();
+         return;
+      }
+
+      this.eventLoop.execute(() -> {
+         SocketAddress address = session.getRemoteAddress();
+         if (address != null && this.sessions.get(address) == session) {
+            this.sessions.remove(address);
+         }
+      });
+   }
+
+   public boolean isClosed() {
+      synchronized (closeLock) {
+         return this.closed;
+      }
+   }
+
+   /**
+    * Closes the socket. Sessions on it stop receiving.
+    */
+   public void close() {
+      synchronized (closeLock) {
+         if (this.closed) return;
+         this.closed = true;
+
+         try {
+            this.channel.close();
+         }
+         catch (IOException e) {
+            PN.error(e, this, "Failed to close datagram channel.");
+         }
+
+         if (!this.processing) {
+            this.releaseBuffer();
+         }
+      }
+   }
+
+   private void releaseBuffer() {
+      if (this.receiveBuffer != null) {
+         this.receiveBuffer.release();
+         this.receiveBuffer = null;
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "PNDatagramEndpoint[" + this.channel + ", closed: " + isClosed() + "]";
+   }
+}
@@ -0,0 +1,958 @@
+package com.medleystudios.pn.io;
+
+import com.medleystudios.pn.PN;
+import com.medleystudios.pn.util.PNSequence;
+
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The datagram side of a connection, for traffic that should not wait behind TCP's retransmissions.
+ * <p>
+ * Every datagram carries a 16-bit sequence number, and acknowledges the newest sequence received from the peer along
+ * with a bitfield of the 32 before it. Acks ride along on data going the other way, or go out on their own shortly
+ * after data arrives if there is none. Acked datagrams give a round trip time estimate, from which the retransmit
+ * timeout is derived the way TCP does it.
+ * <p>
+ * Each packet is sent in the {@link PNDeliveryMode} chosen for its packet id. Reliable packets are kept until a
+ * datagram carrying them is acked and are resent in a new datagram each time their timeout passes. Sending never
+ * blocks; reliable packets beyond the window of unacked packets wait in a backlog, which is bounded so a peer that
+ * stops acking cannot make us hold on to an ever growing amount of data.
+ * <p>
+ * Sessions are created by a {@link PNDatagramEndpoint} and are ready once the handshake described there completes.
+ */
+public class PNDatagramSession {
+
+   private final Object closeLock = new Object();
+
+   /**
+    * How often a client repeats its HELLO until the server answers, and how many times it tries
+    */
+   private static final long HELLO_INTERVAL_MILLIS = 100;
+   private static final int MAX_HELLOS = 50;
+
+   /**
+    * The largest payload that fits in a single datagram
+    */
+   public static final int MAX_PAYLOAD = PNProtocol.MAX_DATAGRAM_SIZE - PNProtocol.DATAGRAM_DATA_HEADER_SIZE;
+
+   /**
+    * The number of sent datagrams remembered for matching acks. Must be a power of two.
+    */
+   private static final int SENT_WINDOW = 1024;
+
+   /**
+    * The most reliable packets per mode in flight at once. Must be a power of two.
+    */
+   private static final int RELIABLE_WINDOW = 256;
+
+   /**
+    * The default most bytes of reliable packets waiting for room in the windows
+    */
+   public static final int DEFAULT_MAX_BACKLOG_BYTES = 256 * 1024;
+
+   /**
+    * How long to wait for outgoing data to carry an ack before sending it on its own
+    */
+   private static final long ACK_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+   /**
+    * The number of datagrams to receive before acking them straight away, well inside the 33 one ack covers
+    */
+   private static final int MAX_UNACKED_RECEIVED = 16;
+
+   private static final long INITIAL_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+   private static final long MIN_RTO_NANOS = TimeUnit.MILLISECONDS.toNanos(25);
+   private static final long MAX_RTO_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+   /**
+    * Set in a DATA datagram's mode byte when the ack fields are valid
+    */
+   private static final int FLAG_HAS_ACK = 0x80;
+
+   private final PNDatagramEndpoint endpoint;
+   private final PNBufferPool pool;
+   private final long token;
+   private final boolean client;
+
+   private volatile SocketAddress remoteAddress = null;
+   private volatile boolean ready = false;
+   private boolean closed = false;
+
+   private volatile PNDeliveryMode defaultDeliveryMode = PNDeliveryMode.UNRELIABLE_SEQUENCED;
+   private final Map<Integer, PNDeliveryMode> deliveryModes = new ConcurrentHashMap<>();
+
+   // Sending state. Guarded by this.
+
+   /**
+    * Scratch space datagrams are encoded into. Null once released on close, which is how code holding this lock
+    * tells the session has closed.
+    */
+   private PNBuffer sendBuffer;
+   private int nextSequence = 0;
+   private int hellosSent = 0;
+
+   /**
+    * The message id each mode numbers its next packet with
+    */
+   private final int[] nextMessageIds = new int[PNDeliveryMode.values().length];
+
+   /**
+    * What each recently sent datagram carried, by sequence modulo the window: the sequence (-1 for none), when it was
+    * sent, whether it was acked, and the mode and message id of the reliable packet in it (mode -1 for none)
+    */
+   private final int[] sentSequences = new int[SENT_WINDOW];
+   private final long[] sentTimes = new long[SENT_WINDOW];
+   private final boolean[] sentAcked = new boolean[SENT_WINDOW];
+   private final byte[] sentModes = new byte[SENT_WINDOW];
+   private final int[] sentMessageIds = new int[SENT_WINDOW];
+
+   /**
+    * The oldest sent sequence not yet known to be acked or lost
+    */
+   private int lossSequence = 0;
+
+   /**
+    * The unacked packets of each reliable mode, null for the others
+    */
+   private final SendWindow[] sendWindows = new SendWindow[PNDeliveryMode.values().length];
+
+   /**
+    * The bytes of reliable packets in the backlogs of every window, and the most they may hold
+    */
+   private long backlogBytes = 0;
+   private int maxBacklogBytes = DEFAULT_MAX_BACKLOG_BYTES;
+
+   private volatile long smoothedRttNanos = -1;
+   private volatile long rttVarianceNanos = 0;
+   private volatile long rtoNanos = INITIAL_RTO_NANOS;
+   private boolean retransmitScheduled = false;
+   private final Runnable retransmitTask = this::retransmit;
+
+   // Ack state. Written on the event loop and read when sending, so also guarded by this.
+
+   /**
+    * The newest sequence received, or -1 before the first, and a bit for each of the 32 before it
+    */
+   private int remoteSequence = -1;
+   private int receivedBits = 0;
+   private boolean ackPending = false;
+   private int receivedSinceAck = 0;
+   private boolean ackScheduled = false;
+   private final Runnable ackTask = this::sendDelayedAck;
+
+   // Receiving state. Only touched on the event loop.
+
+   private int latestSequencedId = -1;
+
+   /**
+    * Message ids of recent RELIABLE_UNORDERED packets, to drop duplicates, and the newest of them
+    */
+   private final int[] unorderedReceived = new int[RELIABLE_WINDOW];
+   private int unorderedNewest = -1;
+
+   /**
+    * RELIABLE_ORDERED packets that arrived ahead of a missing one, and the message id of the next one to deliver
+    */
+   private final PNBuffer[] orderedPending = new PNBuffer[RELIABLE_WINDOW];
+   private int orderedExpected = 0;
+
+   private volatile PNPacketHandler packetHandler = null;
+
+   private volatile long packetsSent = 0;
+   private volatile long packetsReceived = 0;
+   private volatile long staleDropped = 0;
+   private volatile long sendsDropped = 0;
+   private volatile long datagramsLost = 0;
+   private volatile long retransmits = 0;
+
+   PNDatagramSession(PNDatagramEndpoint endpoint, long token, boolean client) {
+      this.endpoint = endpoint;
+      this.pool = endpoint.getPool();
+      this.token = token;
+      this.client = client;
+      this.sendBuffer = this.pool.acquire(PNProtocol.MAX_DATAGRAM_SIZE);
+
+      Arrays.fill(this.sentSequences, -1);
+      Arrays.fill(this.unorderedReceived, -1);
+      this.sendWindows[PNDeliveryMode.RELIABLE_UNORDERED.ordinal()] = new SendWindow();
+      this.sendWindows[PNDeliveryMode.RELIABLE_ORDERED.ordinal()] = new SendWindow();
+   }
+
+   /**
+    * Sets the handler received packets are delivered to. Runs on the endpoint's event loop. The payload is only valid
+    * until the handler returns.
+    */
+   public void setPacketHandler(PNPacketHandler packetHandler) {
+      this.packetHandler = packetHandler;
+   }
+
+   /**
+    * Chooses how packets with the id are delivered. Only the sending side needs to know.
+    */
+   public void setDeliveryMode(int packetId, PNDeliveryMode mode) {
+      this.deliveryModes.put(packetId, mode);
+   }
+
+   /**
+    * Chooses how packets with no mode of their own are delivered. UNRELIABLE_SEQUENCED unless set.
+    */
+   public void setDefaultDeliveryMode(PNDeliveryMode mode) {
+      this.defaultDeliveryMode = mode;
+   }
+
+   public PNDeliveryMode getDeliveryMode(int packetId) {
+      PNDeliveryMode mode = this.deliveryModes.get(packetId);
+      return mode != null ? mode : this.defaultDeliveryMode;
+   }
+
+   /**
+    * Starts sending HELLOs to the server until it answers. Only for the client's side of a session.
+    */
+   public void startHandshake() {
+      if (!this.client) {
+         throw new IllegalStateException("Only a client starts the handshake " + this);
+      }
+      this.endpoint.getEventLoop().execute(this::sendHello);
+   }
+
+   private void sendHello() {
+      synchronized (this) {
+         if (this.ready || this.sendBuffer == null) return;
+         if (this.hellosSent++ == MAX_HELLOS) {
+            PN.log(this, "Server never answered our HELLO, giving up on datagrams");
+            return;
+         }
+
+         ByteBuffer memory = this.sendBuffer.memory();
+         memory.clear();
+         memory.put(PNProtocol.DATAGRAM_HELLO);
+         memory.putLong(this.token);
+         memory.flip();
+         this.endpoint.send(memory, this.remoteAddress);
+      }
+      this.endpoint.getEventLoop().schedule(this::sendHello, HELLO_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   private synchronized void sendWelcome() {
+      if (this.sendBuffer == null) return;
+
+      ByteBuffer memory = this.sendBuffer.memory();
+      memory.clear();
+      memory.put(PNProtocol.DATAGRAM_WELCOME);
+      memory.putLong(this.token);
+      memory.flip();
+      this.endpoint.send(memory, this.remoteAddress);
+   }
+
+   /**
+    * Handles a datagram from the remote address. Runs on the endpoint's event loop.
+    *
+    * @param datagram The rest of the datagram after its type
+    */
+   void receive(byte type, ByteBuffer datagram) {
+      if (this.isClosed()) return;
+
+      switch (type) {
+         case PNProtocol.DATAGRAM_HELLO:
+            if (this.client || datagram.remaining() < 8 || datagram.getLong() != this.token) return;
+            if (!this.ready) {
+               this.ready = true;
+               PN.debug(this, () -> "Datagram session ready " + this);
+            }
+            // Answer every HELLO, the client keeps sending them until an answer gets through
+            this.sendWelcome();
+            return;
+
+         case PNProtocol.DATAGRAM_WELCOME:
+            if (!this.client || datagram.remaining() < 8 || datagram.getLong() != this.token) return;
+            if (!this.ready) {
+               this.ready = true;
+               PN.debug(this, () -> "Datagram session ready " + this);
+            }
+            return;
+
+         case PNProtocol.DATAGRAM_DATA:
+            // Data from the server also proves the path works should its WELCOME have been lost
+            if (!this.ready) {
+               if (!this.client) return;
+               this.ready = true;
+            }
+            this.receiveData(datagram);
+            return;
+
+         case PNProtocol.DATAGRAM_ACK:
+            if (datagram.remaining() < 6) return;
+            int ack = datagram.getShort() & PNSequence.MASK;
+            int ackBits = datagram.getInt();
+            synchronized (this) {
+               this.processAcks(ack, ackBits);
+            }
+            return;
+
+         default:
+            PN.trace(this, () -> "Dropping datagram of unknown type " + type);
+      }
+   }
+
+   private void receiveData(ByteBuffer datagram) {
+      if (datagram.remaining() < 9) return;
+
+      int sequence = datagram.getShort() & PNSequence.MASK;
+      int ack = datagram.getShort() & PNSequence.MASK;
+      int ackBits = datagram.getInt();
+      int flags = datagram.get() & 0xFF;
+      PNDeliveryMode mode = PNDeliveryMode.of(flags & ~FLAG_HAS_ACK);
+      if (mode == null) return;
+
+      int messageId = 0;
+      if (mode != PNDeliveryMode.UNRELIABLE) {
+         if (datagram.remaining() < 2) return;
+         messageId = datagram.getShort() & PNSequence.MASK;
+      }
+
+      int packetId;
+      try {
+         packetId = PNVarInt.read(datagram);
+      }
+      catch (PNProtocolException e) {
+         PN.debug(this, () -> "Dropping malformed datagram: " + e.getMessage());
+         return;
+      }
+
+      synchronized (this) {
+         if ((flags & FLAG_HAS_ACK) != 0) {
+            this.processAcks(ack, ackBits);
+         }
+         if (!this.markReceived(sequence)) {
+            // A duplicate, or too old to tell
+            return;
+         }
+         this.ackPending = true;
+         if (++this.receivedSinceAck >= MAX_UNACKED_RECEIVED) {
+            this.sendAck();
+         }
+         else {
+            this.scheduleAck();
+         }
+      }
+
+      switch (mode) {
+         case UNRELIABLE:
+            this.deliver(packetId, datagram);
+            break;
+
+         case UNRELIABLE_SEQUENCED:
+            if (this.latestSequencedId >= 0 && !PNSequence.isNewer(messageId, this.latestSequencedId)) {
+               this.staleDropped++;
+               return;
+            }
+            this.latestSequencedId = messageId;
+            this.deliver(packetId, datagram);
+            break;
+
+         case RELIABLE_UNORDERED:
+            this.receiveUnordered(messageId, packetId, datagram);
+            break;
+
+         case RELIABLE_ORDERED:
+            this.receiveOrdered(messageId, packetId, datagram);
+            break;
+      }
+   }
+
+   private void receiveUnordered(int messageId, int packetId, ByteBuffer payload) {
+      if (this.unorderedNewest >= 0) {
+         if (PNSequence.distance(messageId, this.unorderedNewest) <= -RELIABLE_WINDOW) return;
+         if (this.unorderedReceived[messageId & (RELIABLE_WINDOW - 1)] == messageId) return;
+      }
+      this.unorderedReceived[messageId & (RELIABLE_WINDOW - 1)] = messageId;
+      if (this.unorderedNewest < 0 || PNSequence.isNewer(messageId, this.unorderedNewest)) {
+         this.unorderedNewest = messageId;
+      }
+      this.deliver(packetId, payload);
+   }
+
+   private void receiveOrdered(int messageId, int packetId, ByteBuffer payload) {
+      int ahead = PNSequence.distance(messageId, this.orderedExpected);
+      if (ahead < 0 || ahead >= RELIABLE_WINDOW) return;
+
+      if (ahead > 0) {
+         // Hold on to it until the ones before it arrive
+         int slot = messageId & (RELIABLE_WINDOW - 1);
+         if (this.orderedPending[slot] == null) {
+            PNBuffer held = this.pool.acquire(PNVarInt.MAX_BYTES + payload.remaining());
+            PNVarInt.write(held.memory(), packetId);
+            held.memory().put(payload).flip();
+            this.orderedPending[slot] = held;
+         }
+         return;
+      }
+
+      this.deliver(packetId, payload);
+      this.orderedExpected = PNSequence.next(this.orderedExpected);
+
+      PNBuffer held;
+      while (!this.isClosed() &&
+         (held = this.orderedPending[this.orderedExpected & (RELIABLE_WINDOW - 1)]) != null) {
+         this.orderedPending[this.orderedExpected & (RELIABLE_WINDOW - 1)] = null;
+         try {
+            ByteBuffer memory = held.memory();
+            this.deliver(PNVarInt.read(memory), memory);
+         }
+         catch (PNProtocolException e) {
+            // We wrote it ourselves
+            throw new IllegalStateException(e);
+         }
+         finally {
+            held.release();
+         }
+         this.orderedExpected = PNSequence.next(this.orderedExpected);
+      }
+   }
+
+   private void deliver(int packetId, ByteBuffer payload) {
+      this.packetsReceived++;
+
+      PNPacketHandler handler = this.packetHandler;
+      if (handler == null) {
+         PN.debug(this, () -> "Dropping datagram packet " + packetId + " with no packet handler set");
+         return;
+      }
+
+      try {
+         handler.handle(packetId, payload);
+      }
+      catch (RuntimeException e) {
+         PN.error(e, this, "Packet handler failed on datagram packet " + packetId);
+      }
+   }
+
+   /**
+    * Records a received sequence for acking.
+    *
+    * @return Returns false if it was received before or is too old to tell
+    */
+   private boolean markReceived(int sequence) {
+      if (this.remoteSequence < 0) {
+         this.remoteSequence = sequence;
+         return true;
+      }
+
+      int ahead = PNSequence.distance(sequence, this.remoteSequence);
+      if (ahead > 0) {
+         // The old newest becomes bit ahead - 1
+         if (ahead < 32) {
+            this.receivedBits = (this.receivedBits << ahead) | (1 << (ahead - 1));
+         }
+         else {
+            this.receivedBits = ahead == 32 ? 1 << 31 : 0;
+         }
+         this.remoteSequence = sequence;
+         return true;
+      }
+
+      int bit = -ahead - 1;
+      if (bit < 0 || bit >= 32 || (this.receivedBits & (1 << bit)) != 0) return false;
+      this.receivedBits |= 1 << bit;
+      return true;
+   }
+
+   private void processAcks(int ack, int ackBits) {
+      long now = System.nanoTime();
+      this.ackSent(ack, now);
+      for (int i = 0; i < 32; i++) {
+         if ((ackBits & (1 << i)) != 0) {
+            this.ackSent((ack - 1 - i) & PNSequence.MASK, now);
+         }
+      }
+
+      // Acks cover the newest sequence and the 32 before it, so a datagram further behind will never be acked
+      if (!PNSequence.isNewer(this.nextSequence, ack)) return;
+      while (PNSequence.distance(ack, this.lossSequence) > 32) {
+         int slot = this.lossSequence & (SENT_WINDOW - 1);
+         if (this.sentSequences[slot] == this.lossSequence && !this.sentAcked[slot]) {
+            this.datagramsLost++;
+         }
+         this.lossSequence = PNSequence.next(this.lossSequence);
+      }
+   }
+
+   private void ackSent(int sequence, long now) {
+      int slot = sequence & (SENT_WINDOW - 1);
+      if (this.sentSequences[slot] != sequence || this.sentAcked[slot]) return;
+      this.sentAcked[slot] = true;
+
+      // Every datagram has its own sequence, resends included, so every ack is a clean sample
+      this.updateRtt(now - this.sentTimes[slot]);
+
+      int mode = this.sentModes[slot];
+      if (mode >= 0) {
+         SendWindow window = this.sendWindows[mode];
+         if (window.ack(this.sentMessageIds[slot])) {
+            this.sendBacklog(PNDeliveryMode.of(mode), window);
+         }
+      }
+   }
+
+   /**
+    * Folds a round trip time sample into the estimate and derives the retransmit timeout from it, as in RFC 6298.
+    */
+   private void updateRtt(long sampleNanos) {
+      if (this.smoothedRttNanos < 0) {
+         this.smoothedRttNanos = sampleNanos;
+         this.rttVarianceNanos = sampleNanos / 2;
+      }
+      else {
+         this.rttVarianceNanos = (3 * this.rttVarianceNanos + Math.abs(this.smoothedRttNanos - sampleNanos)) / 4;
+         this.smoothedRttNanos = (7 * this.smoothedRttNanos + sampleNanos) / 8;
+      }
+      long rto = this.smoothedRttNanos + 4 * this.rttVarianceNanos;
+      this.rtoNanos = Math.min(Math.max(rto, MIN_RTO_NANOS), MAX_RTO_NANOS);
+   }
+
+   /**
+    * Sets the most bytes of reliable packets that may wait for room in the window. Reliable sends beyond it are
+    * refused.
+    */
+   public synchronized void setMaxBacklogBytes(int maxBacklogBytes) {
+      if (maxBacklogBytes < 0) {
+         throw new IllegalArgumentException("Max backlog bytes must not be negative: " + maxBacklogBytes);
+      }
+      this.maxBacklogBytes = maxBacklogBytes;
+   }
+
+   public synchronized int getMaxBacklogBytes() {
+      return this.maxBacklogBytes;
+   }
+
+   public boolean send(int packetId, byte[] payload) {
+      return send(packetId, ByteBuffer.wrap(payload));
+   }
+
+   /**
+    * Sends a packet in the delivery mode chosen for its id.
+    *
+    * @see #send(int, ByteBuffer, PNDeliveryMode)
+    */
+   public boolean send(int packetId, ByteBuffer payload) {
+      return send(packetId, payload, this.getDeliveryMode(packetId));
+   }
+
+   /**
+    * Sends a packet in a single datagram, with the guarantees of the mode. An unreliable packet is dropped if the
+    * socket is full.
+    *
+    * @param payload The payload, from its position to its limit. Its position is not moved. At most
+    *                {@link #MAX_PAYLOAD} bytes.
+    * @return Returns true if the packet was sent, or for reliable packets queued to be. Returns false if the session
+    * is not ready yet or has closed, or if a reliable packet would take the backlog past its maximum.
+    */
+   public synchronized boolean send(int packetId, ByteBuffer payload, PNDeliveryMode mode) {
+      if (payload.remaining() > MAX_PAYLOAD) {
+         throw new IllegalArgumentException("Datagram payload too large: " + payload.remaining() + " > " +
+            MAX_PAYLOAD);
+      }
+      if (!this.ready || this.sendBuffer == null) return false;
+
+      if (!mode.isReliable()) {
+         int messageId = this.nextMessageIds[mode.ordinal()];
+         this.nextMessageIds[mode.ordinal()] = PNSequence.next(messageId);
+
+         ByteBuffer memory = this.beginData(mode, messageId, -1);
+         PNVarInt.write(memory, packetId);
+         memory.put(payload.duplicate());
+         if (!this.finishData(memory)) {
+            this.sendsDropped++;
+            return false;
+         }
+         return true;
+      }
+
+      SendWindow window = this.sendWindows[mode.ordinal()];
+      boolean backlogged = !window.backlog.isEmpty() || window.isFull(this.nextMessageIds[mode.ordinal()]);
+      int length = PNVarInt.size(packetId) + payload.remaining();
+      if (backlogged && this.backlogBytes + length > this.maxBacklogBytes) {
+         // The peer is not acking what is in flight, holding on to more would only grow without bound
+         this.sendsDropped++;
+         return false;
+      }
+
+      // Reliable packets are kept encoded until acked
+      PNBuffer message = this.pool.acquire(length);
+      PNVarInt.write(message.memory(), packetId);
+      message.memory().put(payload.duplicate()).flip();
+
+      if (backlogged) {
+         window.backlog.add(message);
+         this.backlogBytes += length;
+         return true;
+      }
+      this.sendReliable(mode, window, message);
+      return true;
+   }
+
+   private void sendReliable(PNDeliveryMode mode, SendWindow window, PNBuffer message) {
+      int messageId = this.nextMessageIds[mode.ordinal()];
+      this.nextMessageIds[mode.ordinal()] = PNSequence.next(messageId);
+
+      window.add(messageId, message);
+      this.transmit(mode, window, messageId);
+      this.scheduleRetransmit();
+   }
+
+   /**
+    * Sends backlogged packets as the window makes room for them.
+    */
+   private void sendBacklog(PNDeliveryMode mode, SendWindow window) {
+      // Acks can still arrive on the event loop after close() released the send buffer under this same lock
+      if (this.sendBuffer == null) return;
+      while (!window.backlog.isEmpty() && !window.isFull(this.nextMessageIds[mode.ordinal()])) {
+         PNBuffer message = window.backlog.remove();
+         this.backlogBytes -= message.memory().remaining();
+         this.sendReliable(mode, window, message);
+      }
+   }
+
+   /**
+    * Sends a reliable packet held in the window, in a new datagram.
+    */
+   private void transmit(PNDeliveryMode mode, SendWindow window, int messageId) {
+      if (this.sendBuffer == null) return;
+      int slot = messageId & (RELIABLE_WINDOW - 1);
+      ByteBuffer message = window.messages[slot].memory();
+
+      ByteBuffer memory = this.beginData(mode, messageId, messageId);
+      int start = message.position();
+      memory.put(message);
+      message.position(start);
+
+      window.lastSent[slot] = System.nanoTime();
+      window.sends[slot]++;
+      if (!this.finishData(memory)) {
+         // Left for the retransmit timer
+         this.sendsDropped++;
+      }
+   }
+
+   /**
+    * Starts a DATA datagram in the send buffer, recording what it carries for when it is acked.
+    *
+    * @param reliableId The message id of the reliable packet it carries, or -1 for none
+    * @return The send buffer, positioned for the packet id
+    */
+   private ByteBuffer beginData(PNDeliveryMode mode, int messageId, int reliableId) {
+      int sequence = this.nextSequence;
+      this.nextSequence = PNSequence.next(sequence);
+
+      int slot = sequence & (SENT_WINDOW - 1);
+      int old = this.sentSequences[slot];
+      if (old >= 0 && PNSequence.distance(old, this.lossSequence) >= 0) {
+         // Sent a whole window ago without an ack moving past it, the peer may have stopped acking altogether
+         if (!this.sentAcked[slot]) {
+            this.datagramsLost++;
+         }
+         this.lossSequence = PNSequence.next(old);
+      }
+      this.sentSequences[slot] = sequence;
+      this.sentTimes[slot] = System.nanoTime();
+      this.sentAcked[slot] = false;
+      this.sentModes[slot] = (byte)(reliableId >= 0 ? mode.ordinal() : -1);
+      this.sentMessageIds[slot] = reliableId;
+
+      ByteBuffer memory = this.sendBuffer.memory();
+      memory.clear();
+      memory.put(PNProtocol.DATAGRAM_DATA);
+      memory.putShort((short)sequence);
+      boolean hasAck = this.remoteSequence >= 0;
+      memory.putShort((short)(hasAck ? this.remoteSequence : 0));
+      memory.putInt(this.receivedBits);
+      memory.put((byte)(mode.ordinal() | (hasAck ? FLAG_HAS_ACK : 0)));
+      if (mode != PNDeliveryMode.UNRELIABLE) {
+         memory.putShort((short)messageId);
+      }
+      return memory;
+   }
+
+   private boolean finishData(ByteBuffer memory) {
+      memory.flip();
+      // The datagram carries our acks, no need to send them on their own
+      this.ackPending = false;
+      this.receivedSinceAck = 0;
+      if (!this.endpoint.send(memory, this.remoteAddress)) return false;
+      this.packetsSent++;
+      return true;
+   }
+
+   private void scheduleAck() {
+      if (this.ackScheduled) return;
+      this.ackScheduled = true;
+      this.endpoint.getEventLoop().schedule(this.ackTask, ACK_DELAY_NANOS, TimeUnit.NANOSECONDS);
+   }
+
+   private synchronized void sendDelayedAck() {
+      this.ackScheduled = false;
+      this.sendAck();
+   }
+
+   /**
+    * Sends our acks on their own if no data has carried them since the data they ack arrived. Runs on the event loop.
+    */
+   private synchronized void sendAck() {
+      if (!this.ackPending || this.sendBuffer == null) return;
+      this.ackPending = false;
+      this.receivedSinceAck = 0;
+
+      ByteBuffer memory = this.sendBuffer.memory();
+      memory.clear();
+      memory.put(PNProtocol.DATAGRAM_ACK);
+      memory.putShort((short)this.remoteSequence);
+      memory.putInt(this.receivedBits);
+      memory.flip();
+      this.endpoint.send(memory, this.remoteAddress);
+   }
+
+   private void scheduleRetransmit() {
+      if (this.retransmitScheduled) return;
+      this.retransmitScheduled = true;
+      this.endpoint.getEventLoop().schedule(this.retransmitTask, this.rtoNanos, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Resends every reliable packet whose timeout has passed, backing off exponentially for each resend. Runs on the
+    * event loop.
+    */
+   private synchronized void retransmit() {
+      this.retransmitScheduled = false;
+      if (this.sendBuffer == null) return;
+
+      long now = System.nanoTime();
+      long nextDue = Long.MAX_VALUE;
+      for (PNDeliveryMode mode : PNDeliveryMode.values()) {
+         SendWindow window = this.sendWindows[mode.ordinal()];
+         if (window == null || window.inFlight == 0) continue;
+
+         for (int slot = 0; slot < RELIABLE_WINDOW; slot++) {
+            if (window.messages[slot] == null) continue;
+
+            long due = window.lastSent[slot] + this.backoff(window.sends[slot]);
+            if (due - now <= 0) {
+               this.retransmits++;
+               this.transmit(mode, window, window.ids[slot]);
+               due = now + this.backoff(window.sends[slot]);
+            }
+            nextDue = Math.min(nextDue, due);
+         }
+      }
+
+      if (nextDue != Long.MAX_VALUE) {
+         this.retransmitScheduled = true;
+         this.endpoint.getEventLoop().schedule(this.retransmitTask, Math.max(nextDue - now, MIN_RTO_NANOS / 4),
+            TimeUnit.NANOSECONDS);
+      }
+   }
+
+   private long backoff(int sends) {
+      return Math.min(this.rtoNanos << Math.min(Math.max(sends - 1, 0), 6), MAX_RTO_NANOS);
+   }
+
+   void setRemoteAddress(SocketAddress remoteAddress) {
+      this.remoteAddress = remoteAddress;
+   }
+
+   public SocketAddress getRemoteAddress() {
+      return this.remoteAddress;
+   }
+
+   public long getToken() {
+      return this.token;
+   }
+
+   /**
+    * @return Returns true once the handshake has completed and packets can be sent
+    */
+   public boolean isReady() {
+      return this.ready;
+   }
+
+   /**
+    * @return The smoothed round trip time in nanoseconds, or -1 before the first ack
+    */
+   public long getRttNanos() {
+      return this.smoothedRttNanos;
+   }
+
+   /**
+    * @return The variation in the round trip time in nanoseconds
+    */
+   public long getRttVarianceNanos() {
+      return this.rttVarianceNanos;
+   }
+
+   /**
+    * @return The current retransmit timeout in nanoseconds
+    */
+   public long getRtoNanos() {
+      return this.rtoNanos;
+   }
+
+   /**
+    * @return The number of reliable packets sent but not acked yet, backlog included
+    */
+   public synchronized int getUnackedCount() {
+      int count = 0;
+      for (SendWindow window : this.sendWindows) {
+         if (window != null) {
+            count += window.inFlight + window.backlog.size();
+         }
+      }
+      return count;
+   }
+
+   public long getPacketsSent() {
+      return this.packetsSent;
+   }
+
+   public long getPacketsReceived() {
+      return this.packetsReceived;
+   }
+
+   /**
+    * @return The number of packets dropped because a newer one had already arrived
+    */
+   public long getStaleDropped() {
+      return this.staleDropped;
+   }
+
+   /**
+    * @return The number of datagrams dropped because the socket could not take them, and of reliable packets refused
+    * because the backlog was full
+    */
+   public long getSendsDropped() {
+      return this.sendsDropped;
+   }
+
+   /**
+    * @return The number of datagrams we sent that were never acked, counted once the peer's acks move past them
+    */
+   public long getDatagramsLost() {
+      return this.datagramsLost;
+   }
+
+   /**
+    * @return The number of times a reliable packet was resent
+    */
+   public long getRetransmits() {
+      return this.retransmits;
+   }
+
+   public boolean isClosed() {
+      synchronized (closeLock) {
+         return this.closed;
+      }
+   }
+
+   /**
+    * Closes the session and drops everything unsent. A client's session closes its endpoint too.
+    */
+   public void close() {
+      synchronized (closeLock) {
+         if (this.closed) return;
+         this.closed = true;
+         this.ready = false;
+      }
+
+      this.endpoint.remove(this);
+      synchronized (this) {
+         this.sendBuffer.release();
+         this.sendBuffer = null;
+         for (SendWindow window : this.sendWindows) {
+            if (window != null) {
+               window.clear();
+            }
+         }
+         this.backlogBytes = 0;
+      }
+
+      // The packets held for ordering belong to the event loop
+      this.endpoint.getEventLoop().execute(() -> {
+         for (int i = 0; i < RELIABLE_WINDOW; i++) {
+            if (this.orderedPending[i] != null) {
+               this.orderedPending[i].release();
+               this.orderedPending[i] = null;
+            }
+         }
+      });
+   }
+
+   @Override
+   public String toString() {
+      return "PNDatagramSession[" + this.remoteAddress + ", ready: " + this.ready + ", sent: " + this.packetsSent +
+         ", received: " + this.packetsReceived + ", stale: " + this.staleDropped + ", lost: " + this.datagramsLost +
+         ", retransmits: " + this.retransmits + "]";
+   }
+
+   /**
+    * The reliable packets of one mode that have been sent but not acked, by message id modulo the window
+    */
+   private static class SendWindow {
+
+      private final PNBuffer[] messages = new PNBuffer[RELIABLE_WINDOW];
+      private final int[] ids = new int[RELIABLE_WINDOW];
+      private final long[] lastSent = new long[RELIABLE_WINDOW];
+      private final int[] sends = new int[RELIABLE_WINDOW];
+      private int inFlight = 0;
+
+      /**
+       * Packets waiting for room in the window
+       */
+      private final ArrayDeque<PNBuffer> backlog = new ArrayDeque<>();
+
+      /**
+       * @return Returns true if the slot for the message id is still taken by an unacked packet
+       */
+      boolean isFull(int messageId) {
+         return this.messages[messageId & (RELIABLE_WINDOW - 1)] != null;
+      }
+
+      void add(int messageId, PNBuffer message) {
+         int slot = messageId & (RELIABLE_WINDOW - 1);
+         this.messages[slot] = message;
+         this.ids[slot] = messageId;
+         this.sends[slot] = 0;
+         this.inFlight++;
+      }
+
+      /**
+       * @return Returns true if the packet was still unacked
+       */
+      boolean ack(int messageId) {
+         int slot = messageId & (RELIABLE_WINDOW - 1);
+         if (this.messages[slot] == null || this.ids[slot] != messageId) return false;
+         this.messages[slot].release();
+         this.messages[slot] = null;
+         this.inFlight--;
+         return true;
+      }
+
+      void clear() {
+         for (int i = 0; i < RELIABLE_WINDOW; i++) {
+            if (this.messages[i] != null) {
+               this.messages[i].release();
+               this.messages[i] = null;
+            }
+         }
+         this.inFlight = 0;
+
+         PNBuffer message;
+         while ((message = this.backlog.poll()) != null) {
+            message.release();
+         }
+      }
+   }
+}
@@ -0,0 +1,40 @@
+package com.medleystudios.pn.io;
+
+/**
+ * The guarantees a packet sent over a {@link PNDatagramSession} gets. Each mode is its own channel with its own
+ * numbering, so a packet held back in one channel never delays another.
+ */
+public enum PNDeliveryMode {
+   /**
+    * May be lost, duplicated or arrive out of order
+    */
+   UNRELIABLE,
+
+   /**
+    * May be lost, but never arrives after a newer packet sent in this mode. Older packets that arrive late are dropped.
+    */
+   UNRELIABLE_SEQUENCED,
+
+   /**
+    * Resent until acknowledged and delivered exactly once, in whatever order it arrives
+    */
+   RELIABLE_UNORDERED,
+
+   /**
+    * Resent until acknowledged and delivered exactly once, in the order sent
+    */
+   RELIABLE_ORDERED;
+
+   private static final PNDeliveryMode[] values = values();
+
+   public boolean isReliable() {
+      return this == RELIABLE_UNORDERED || this == RELIABLE_ORDERED;
+   }
+
+   /**
+    * @return The mode with the ordinal, or null if there is none
+    */
+   public static PNDeliveryMode of(int ordinal) {
+      return ordinal >= 0 && ordinal < values.length ? values[ordinal] : null;
+   }
+}
@@ -0,0 +1,347 @@
+package com.medleystudios.pn.io;
+
+import com.medleystudios.pn.PN;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A single selector thread which multiplexes the I/O of many channels.
+ * <p>
+ * Every channel registered with an event loop stays on that loop for its whole life, so all readiness callbacks for
+ * a channel run on the same thread. Work that has to touch the selector or a {@link SelectionKey} from another
+ * thread is handed to the loop with {@link #execute(Runnable)}, or with {@link #schedule(Runnable, long, TimeUnit)}
+ * to run it later.
+ */
+public class PNEventLoop implements Runnable {
+
+   private final Object closeLock = new Object();
+
+   private final String name;
+   private final Selector selector;
+   private final ConcurrentLinkedQueue<Runnable> tasks;
+
+   /**
+    * Tasks waiting for their time to run, earliest first. Only touched on the loop's thread.
+    */
+   private final PriorityQueue<ScheduledTask> scheduledTasks;
+   private long nextScheduledSequence = 0;
+
+   /**
+    * Set while a {@link Selector#wakeup()} has been issued that the loop has not observed yet, so that a burst of
+    * submitted tasks only wakes the selector once.
+    */
+   private final AtomicBoolean wakeupPending;
+
+   /**
+    * Coarse timeouts of the loop's connections
+    */
+   private final PNTimingWheel timingWheel;
+
+   private Thread thread;
+   private boolean closed = false;
+
+   public PNEventLoop(String name) throws IOException {
+      this.name = name;
+      this.selector = Selector.open();
+      this.tasks = new ConcurrentLinkedQueue<>();
+      this.scheduledTasks = new PriorityQueue<>();
+      this.wakeupPending = new AtomicBoolean(false);
+      this.timingWheel = new PNTimingWheel(this, PNTimingWheel.DEFAULT_TICK_NANOS, PNTimingWheel.DEFAULT_SLOTS);
+   }
+
+   /**
+    * Starts the loop on its own daemon thread.
+    */
+   public synchronized void start() {
+      if (this.thread != null) {
+         throw new IllegalStateException("Event loop already started " + this);
+      }
+      this.thread = new Thread(this, this.name);
+      this.thread.setDaemon(true);
+      this.thread.start();
+   }
+
+   @Override
+   public void run() {
+      while (!isClosed()) {
+         try {
+            long timeoutMillis = this.nextScheduledTimeout();
+            if (timeoutMillis < 0) {
+               this.selector.select();
+            }
+            else if (timeoutMillis == 0) {
+               this.selector.selectNow();
+            }
+            else {
+               this.selector.select(timeoutMillis);
+            }
+         }
+         catch (IOException e) {
+            PN.error(e, this, "Failed to select! Closing event loop.");
+            break;
+         }
+
+         // Reset before running tasks so a task submitted from now on issues a fresh wakeup
+         this.wakeupPending.set(false);
+
+         processSelectedKeys();
+         runTasks();
+         runScheduledTasks();
+      }
+
+      cleanUp();
+   }
+
+   private void processSelectedKeys() {
+      Set<SelectionKey> selectedKeys = this.selector.selectedKeys();
+      if (selectedKeys.isEmpty()) return;
+
+      Iterator<SelectionKey> iterator = selectedKeys.iterator();
+      while (iterator.hasNext()) {
+         SelectionKey key = iterator.next();
+         iterator.remove();
+
+         Handler handler = (Handler)key.attachment();
+         try {
+            if (key.isValid()) {
+               handler.handleReady(key);
+            }
+         }
+         catch (CancelledKeyException e) {
+            // The channel was closed while we were handling it, nothing left to do
+         }
+         catch (RuntimeException e) {
+            PN.error(e, this, "Channel handler failed! " + handler);
+         }
+      }
+   }
+
+   private void runTasks() {
+      Runnable task;
+      while ((task = this.tasks.poll()) != null) {
+         try {
+            task.run();
+         }
+         catch (RuntimeException e) {
+            PN.error(e, this, "Event loop task failed!");
+         }
+      }
+   }
+
+   /**
+    * @return The milliseconds until the earliest scheduled task is due, 0 if one already is, or -1 if there is none
+    */
+   private long nextScheduledTimeout() {
+      ScheduledTask next = this.scheduledTasks.peek();
+      if (next == null) return -1;
+
+      long delayNanos = next.deadline - System.nanoTime();
+      if (delayNanos <= 0) return 0;
+      // Round up so we do not wake just before the task is due
+      return TimeUnit.NANOSECONDS.toMillis(delayNanos + TimeUnit.MILLISECONDS.toNanos(1) - 1);
+   }
+
+   private void runScheduledTasks() {
+      long now = System.nanoTime();
+      ScheduledTask next;
+      while ((next = this.scheduledTasks.peek()) != null && next.deadline - now <= 0) {
+         this.scheduledTasks.poll();
+         if (next.isCancelled()) continue;
+
+         try {
+            next.task.run();
+         }
+         catch (RuntimeException e) {
+            PN.error(e, this, "Scheduled event loop task failed!");
+         }
+      }
+   }
+
+   /**
+    * Runs a task on this loop's thread once the delay has passed. Tasks due at the same time run in submission order.
+    *
+    * @return A handle the task can be cancelled through
+    */
+   public ScheduledTask schedule(Runnable task, long delay, TimeUnit unit) {
+      ScheduledTask scheduled = new ScheduledTask(task, System.nanoTime() + unit.toNanos(delay));
+      if (inEventLoop()) {
+         this.addScheduled(scheduled);
+      }
+      else {
+         execute(() -> this.addScheduled(scheduled));
+      }
+      return scheduled;
+   }
+
+   private void addScheduled(ScheduledTask scheduled) {
+      if (scheduled.isCancelled()) return;
+      scheduled.sequence = this.nextScheduledSequence++;
+      this.scheduledTasks.add(scheduled);
+   }
+
+   /**
+    * Queues a task to run on this loop's thread.
+    *
+    * @param task The task to run. Tasks run in submission order.
+    */
+   public void execute(Runnable task) {
+      this.tasks.add(task);
+      if (!inEventLoop() && this.wakeupPending.compareAndSet(false, true)) {
+         this.selector.wakeup();
+      }
+   }
+
+   /**
+    * Registers the channel with this loop's selector. The registration itself always runs on the loop's thread,
+    * because registering while the selector is blocked in select would otherwise block the caller.
+    *
+    * @param channel      The channel to register. It is switched into non-blocking mode.
+    * @param interestOps  The initial interest set
+    * @param handler      Receives the readiness callbacks for the channel
+    * @param onRegistered Runs on the loop's thread with the new key once the channel is registered. May be null.
+    */
+   public void register(SelectableChannel channel, int interestOps, Handler handler, KeyHandler onRegistered) {
+      execute(() -> {
+         SelectionKey key;
+         try {
+            channel.configureBlocking(false);
+            key = channel.register(this.selector, interestOps, handler);
+         }
+         catch (ClosedChannelException e) {
+            PN.log(this, "Channel closed before it could be registered " + channel);
+            return;
+         }
+         catch (IOException e) {
+            PN.error(e, this, "Failed to register channel " + channel);
+            return;
+         }
+
+         if (onRegistered != null) {
+            onRegistered.run(key);
+         }
+      });
+   }
+
+   /**
+    * Adds or removes interest in an operation on the key. Safe to call from any thread.
+    */
+   public void setInterest(SelectionKey key, int op, boolean interested) {
+      if (inEventLoop()) {
+         updateInterest(key, op, interested);
+      }
+      else {
+         execute(() -> updateInterest(key, op, interested));
+      }
+   }
+
+   private void updateInterest(SelectionKey key, int op, boolean interested) {
+      if (!key.isValid()) return;
+
+      int ops = key.interestOps();
+      int next = interested ? ops | op : ops & ~op;
+      if (next != ops) {
+         key.interestOps(next);
+      }
+   }
+
+   /**
+    * @return The loop's timing wheel. Only use it on the loop's thread.
+    */
+   public PNTimingWheel getTimingWheel() {
+      return this.timingWheel;
+   }
+
+   /**
+    * @return Returns true if the calling thread is this loop's thread
+    */
+   public boolean inEventLoop() {
+      return Thread.currentThread() == this.thread;
+   }
+
+   public boolean isClosed() {
+      synchronized (closeLock) {
+         return this.closed;
+      }
+   }
+
+   /**
+    * Stops the loop. Channels that are still registered are not closed, that is left to their owners.
+    */
+   public void close() {
+      synchronized (closeLock) {
+         if (this.closed) return;
+         this.closed = true;
+      }
+      this.selector.wakeup();
+   }
+
+   private void cleanUp() {
+      try {
+         this.selector.close();
+      }
+      catch (IOException e) {
+         PN.error(e, this, "Failed to close selector.");
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "PNEventLoop[" + this.name + ", closed: " + isClosed() + "]";
+   }
+
+   /**
+    * A task waiting to run on an event loop at a given time
+    */
+   public static class ScheduledTask implements Comparable<ScheduledTask> {
+
+      private final Runnable task;
+      private final long deadline;
+      private long sequence;
+      private volatile boolean cancelled = false;
+
+      private ScheduledTask(Runnable task, long deadline) {
+         this.task = task;
+         this.deadline = deadline;
+      }
+
+      /**
+       * Stops the task from running if it has not started yet.
+       */
+      public void cancel() {
+         this.cancelled = true;
+      }
+
+      public boolean isCancelled() {
+         return this.cancelled;
+      }
+
+      @Override
+      public int compareTo(ScheduledTask other) {
+         long diff = this.deadline - other.deadline;
+         if (diff != 0) return diff < 0 ? -1 : 1;
+         return Long.compare(this.sequence, other.sequence);
+      }
+   }
+
+   public interface Handler {
+      /**
+       * Runs on the event loop's thread when the key has at least one ready operation.
+       */
+      void handleReady(SelectionKey key);
+   }
+
+   public interface KeyHandler {
+      void run(SelectionKey key);
+   }
+}
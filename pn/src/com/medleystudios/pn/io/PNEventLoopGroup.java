@@ -0,0 +1,68 @@
+package com.medleystudios.pn.io;
+
+import com.medleystudios.pn.PN;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed pool of {@link PNEventLoop}s. Channels are spread over the loops round-robin, so the number of threads
+ * doing I/O stays the same no matter how many connections are open.
+ */
+public class PNEventLoopGroup {
+
+   private static PNEventLoopGroup defaultGroup = null;
+
+   private final PNEventLoop[] loops;
+   private final AtomicInteger nextIndex;
+
+   /**
+    * @param size The number of event loops (and threads) in the group
+    */
+   public PNEventLoopGroup(String name, int size) {
+      if (size <= 0) {
+         throw new IllegalArgumentException("Event loop group size must be positive: " + size);
+      }
+
+      this.loops = new PNEventLoop[size];
+      this.nextIndex = new AtomicInteger(0);
+
+      for (int i = 0; i < size; i++) {
+         try {
+            this.loops[i] = new PNEventLoop(name + "-" + i);
+         }
+         catch (IOException e) {
+            PN.fatalError(e, this, "Failed to open event loop selector");
+         }
+         this.loops[i].start();
+      }
+   }
+
+   /**
+    * @return The group shared by every connection that does not specify its own. Sized to the number of available
+    * processors and created on first use.
+    */
+   public synchronized static PNEventLoopGroup getDefault() {
+      if (defaultGroup == null) {
+         defaultGroup = new PNEventLoopGroup("pn-event-loop", Runtime.getRuntime().availableProcessors());
+      }
+      return defaultGroup;
+   }
+
+   /**
+    * @return The next loop to hand a channel to
+    */
+   public PNEventLoop next() {
+      return this.loops[Math.floorMod(this.nextIndex.getAndIncrement(), this.loops.length)];
+   }
+
+   public int size() {
+      return this.loops.length;
+   }
+
+   public void close() {
+      for (int i = 0; i < this.loops.length; i++) {
+         this.loops[i].close();
+      }
+   }
+}
@@ -0,0 +1,19 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+
+public interface PNFileHandler {
+   /**
+    * Handles one chunk of a file the peer is sending with
+    * {@link PNOutputStreamWriter#sendFile(int, java.nio.file.Path, long, long)}. The chunks of a stream arrive in
+    * order and back to back, so the offset of the next one is always this offset plus this chunk's length.
+    * <p>
+    * The data is a window straight into the receive buffer, from its position to its limit. It is only valid for the
+    * duration of the call.
+    *
+    * @param streamId The id the sender sent the file with
+    * @param offset   Where in the file the chunk belongs
+    * @param data     The chunk's data
+    */
+   void handle(int streamId, long offset, ByteBuffer data);
+}
@@ -0,0 +1,220 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Puts messages sent in {@link PNProtocol#FRAGMENT}s back together.
+ * <p>
+ * The first fragment of a transfer carries the message's total length, but the buffer a message is put together in
+ * only grows as its fragments actually arrive, doubling each time, so a peer cannot make us hold memory for data it
+ * never sends. Every buffer of every transfer in progress counts against a single limit, beyond which the peer is in
+ * breach of the protocol.
+ * <p>
+ * Not thread-safe. Owned by a {@link PNInputStreamReader}.
+ */
+public class PNFragmentAssembler {
+
+   /**
+    * The default largest message a peer may send in fragments, which is also the default largest a
+    * {@link PNOutputStreamWriter} sends. Larger data, such as a map or an asset, is better sent as a file.
+    */
+   public static final int DEFAULT_MAX_MESSAGE_LENGTH = 4 * 1024 * 1024;
+
+   /**
+    * The default most bytes of buffers all transfers in progress may hold together. Twice the largest message, so that
+    * a message can be grown while others are in progress.
+    */
+   public static final int DEFAULT_MAX_BUFFERED_BYTES = 2 * DEFAULT_MAX_MESSAGE_LENGTH;
+
+   /**
+    * The most transfers a peer may have in progress at once
+    */
+   public static final int MAX_TRANSFERS = 16;
+
+   private final PNBufferPool pool;
+   private int maxMessageLength;
+   private int maxBufferedBytes;
+
+   // The transfers in progress and their ids, the first transferCount slots of each. Few enough to search in order.
+   private final int[] transferIds = new int[MAX_TRANSFERS];
+   private final Transfer[] transfers = new Transfer[MAX_TRANSFERS];
+   private int transferCount = 0;
+
+   /**
+    * The capacity of the buffers the transfers in progress hold
+    */
+   private long bufferedBytes = 0;
+
+   public PNFragmentAssembler(PNBufferPool pool) {
+      this(pool, DEFAULT_MAX_MESSAGE_LENGTH, DEFAULT_MAX_BUFFERED_BYTES);
+   }
+
+   public PNFragmentAssembler(PNBufferPool pool, int maxMessageLength, int maxBufferedBytes) {
+      this.pool = pool;
+      this.setLimits(maxMessageLength, maxBufferedBytes);
+   }
+
+   /**
+    * @param maxMessageLength The largest message a peer may send in fragments
+    * @param maxBufferedBytes The most bytes of buffers all transfers in progress may hold together
+    */
+   public void setLimits(int maxMessageLength, int maxBufferedBytes) {
+      if (maxMessageLength <= 0 || maxBufferedBytes < maxMessageLength) {
+         throw new IllegalArgumentException("Invalid limits " + maxMessageLength + ", " + maxBufferedBytes);
+      }
+      this.maxMessageLength = maxMessageLength;
+      this.maxBufferedBytes = maxBufferedBytes;
+   }
+
+   /**
+    * Adds a fragment to its message, handing the message to the handler if that completes it.
+    *
+    * @param fragment The payload of a {@link PNProtocol#FRAGMENT} packet
+    * @throws PNProtocolException If the fragment does not fit the transfer it belongs to, or the transfers in
+    *                             progress would hold more than their limit
+    */
+   public void receive(ByteBuffer fragment, PNPacketHandler handler) throws PNProtocolException {
+      int transferId = PNVarInt.read(fragment);
+      int offset = PNVarInt.read(fragment);
+
+      int slot = this.slotOf(transferId);
+      Transfer transfer;
+      if (offset == 0) {
+         int packetId = PNVarInt.read(fragment);
+         int length = PNVarInt.read(fragment);
+         if (length < 0 || length > this.maxMessageLength) {
+            throw new PNProtocolException("Fragmented message length " + length + " exceeds maximum " +
+               this.maxMessageLength);
+         }
+         if (slot >= 0) {
+            throw new PNProtocolException("Transfer " + transferId + " started twice");
+         }
+         if (this.transferCount == MAX_TRANSFERS) {
+            throw new PNProtocolException("Too many transfers in progress: " + MAX_TRANSFERS);
+         }
+
+         transfer = new Transfer(packetId, this.acquire(Math.min(length, fragment.remaining())), length);
+         slot = this.transferCount++;
+         this.transferIds[slot] = transferId;
+         this.transfers[slot] = transfer;
+      }
+      else {
+         if (slot < 0) {
+            throw new PNProtocolException("Fragment for unknown transfer " + transferId);
+         }
+         transfer = this.transfers[slot];
+      }
+
+      int received = transfer.buffer.memory().position();
+      if (offset != received) {
+         throw new PNProtocolException("Fragment of transfer " + transferId + " at " + offset + ", expected " +
+            received);
+      }
+      if (fragment.remaining() > transfer.length - offset) {
+         throw new PNProtocolException("Fragment overruns transfer " + transferId + " of length " + transfer.length);
+      }
+      if (fragment.remaining() > transfer.buffer.memory().remaining()) {
+         this.grow(transfer, received + fragment.remaining());
+      }
+      ByteBuffer memory = transfer.buffer.memory();
+      memory.put(fragment);
+
+      if (memory.position() < transfer.length) return;
+
+      this.removeSlot(slot);
+      memory.flip();
+      try {
+         handler.handle(transfer.packetId, memory);
+      }
+      finally {
+         this.release(transfer.buffer);
+      }
+   }
+
+   /**
+    * Moves the transfer to a buffer holding at least the given number of bytes, doubling its size where the message
+    * has room for it.
+    */
+   private void grow(Transfer transfer, int minCapacity) throws PNProtocolException {
+      PNBuffer old = transfer.buffer;
+      int capacity = (int)Math.min(transfer.length, Math.max(minCapacity, 2L * old.capacity()));
+      if (this.bufferedBytes - old.capacity() + PNBufferPool.sizeFor(capacity) > this.maxBufferedBytes) {
+         // Only ask for what is needed before giving up
+         capacity = minCapacity;
+      }
+
+      PNBuffer grown = this.acquire(capacity);
+      ByteBuffer memory = old.memory();
+      memory.flip();
+      grown.memory().put(memory);
+      transfer.buffer = grown;
+      this.release(old);
+   }
+
+   private PNBuffer acquire(int capacity) throws PNProtocolException {
+      long size = PNBufferPool.sizeFor(capacity);
+      if (this.bufferedBytes + size > this.maxBufferedBytes) {
+         throw new PNProtocolException("Fragmented messages in progress would hold more than " +
+            this.maxBufferedBytes + " bytes");
+      }
+      PNBuffer buffer = this.pool.acquire(capacity);
+      this.bufferedBytes += buffer.capacity();
+      return buffer;
+   }
+
+   private void release(PNBuffer buffer) {
+      this.bufferedBytes -= buffer.capacity();
+      buffer.release();
+   }
+
+   private int slotOf(int transferId) {
+      for (int i = 0; i < this.transferCount; i++) {
+         if (this.transferIds[i] == transferId) return i;
+      }
+      return -1;
+   }
+
+   private void removeSlot(int slot) {
+      int last = --this.transferCount;
+      this.transferIds[slot] = this.transferIds[last];
+      this.transfers[slot] = this.transfers[last];
+      this.transfers[last] = null;
+   }
+
+   /**
+    * @return The number of messages partly received
+    */
+   public int getTransferCount() {
+      return this.transferCount;
+   }
+
+   /**
+    * @return The bytes of buffers held by the messages partly received
+    */
+   public long getBufferedBytes() {
+      return this.bufferedBytes;
+   }
+
+   /**
+    * Drops every partly received message.
+    */
+   public void close() {
+      while (this.transferCount > 0) {
+         Transfer transfer = this.transfers[this.transferCount - 1];
+         this.removeSlot(this.transferCount - 1);
+         this.release(transfer.buffer);
+      }
+   }
+
+   private static class Transfer {
+      private final int packetId;
+      private final int length;
+      private PNBuffer buffer;
+
+      private Transfer(int packetId, PNBuffer buffer, int length) {
+         this.packetId = packetId;
+         this.buffer = buffer;
+         this.length = length;
+      }
+   }
+}
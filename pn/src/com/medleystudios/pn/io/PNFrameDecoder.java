@@ -0,0 +1,105 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Splits a byte stream into packets.
+ * <p>
+ * Each frame on the wire is a varint length followed by that many bytes: a varint packet id and then the payload.
+ * <pre>
+ *    [length: varint][packet id: varint][payload: length - size(packet id) bytes]
+ * </pre>
+ * Frames are decoded in place; the handler sees the payload through the receive buffer itself, so nothing is copied.
+ * A frame cut off by the end of the buffer stays there until the rest of it is read. {@link PNFrameEncoder} writes
+ * the other side.
+ */
+public class PNFrameDecoder {
+
+   /**
+    * The default upper bound on a frame's length, which stops a peer from making us buffer without limit
+    */
+   public static final int DEFAULT_MAX_FRAME_LENGTH = 1 << 20;
+
+   private final int maxFrameLength;
+
+   /**
+    * The total size, header included, of the frame the last decode stopped at, or 0 if its header was incomplete too
+    */
+   private int pendingFrameSize = 0;
+
+   public PNFrameDecoder() {
+      this(DEFAULT_MAX_FRAME_LENGTH);
+   }
+
+   public PNFrameDecoder(int maxFrameLength) {
+      this.maxFrameLength = maxFrameLength;
+   }
+
+   /**
+    * Hands every complete frame between the buffer's position and limit to the handler. The position is left at the
+    * start of the first incomplete frame.
+    *
+    * @return The number of packets decoded
+    * @throws PNProtocolException If a frame is malformed or longer than the maximum frame length
+    */
+   public int decode(ByteBuffer in, PNPacketHandler handler) throws PNProtocolException {
+      int decoded = 0;
+      int limit = in.limit();
+
+      this.pendingFrameSize = 0;
+
+      while (in.position() < limit) {
+         int start = in.position();
+
+         long length = PNVarInt.peek(in, start, limit);
+         if (length == PNVarInt.INCOMPLETE) break;
+         if (length == PNVarInt.MALFORMED) {
+            throw new PNProtocolException("Malformed frame length");
+         }
+
+         int frameLength = PNVarInt.valueOf(length);
+         int frameStart = start + PNVarInt.sizeOf(length);
+         if (frameLength < 1 || frameLength > this.maxFrameLength) {
+            throw new PNProtocolException("Invalid frame length " + frameLength);
+         }
+
+         int frameEnd = frameStart + frameLength;
+         if (frameEnd > limit) {
+            this.pendingFrameSize = frameEnd - start;
+            break;
+         }
+
+         long packetId = PNVarInt.peek(in, frameStart, frameEnd);
+         if (packetId < 0 || PNVarInt.valueOf(packetId) < 0) {
+            throw new PNProtocolException("Malformed packet id");
+         }
+
+         // Expose only the payload to the handler, then put the buffer back the way it was
+         in.limit(frameEnd);
+         in.position(frameStart + PNVarInt.sizeOf(packetId));
+         try {
+            handler.handle(PNVarInt.valueOf(packetId), in);
+         }
+         finally {
+            in.limit(limit);
+            in.position(frameEnd);
+         }
+         decoded++;
+      }
+
+      return decoded;
+   }
+
+   /**
+    * @return The size of the incomplete frame the last {@link #decode(ByteBuffer, PNPacketHandler)} stopped at, or 0
+    * if not even its length had arrived yet. The receive buffer has to be at least this big for the frame to ever
+    * complete.
+    */
+   public int getPendingFrameSize() {
+      return this.pendingFrameSize;
+   }
+
+   public int getMaxFrameLength() {
+      return this.maxFrameLength;
+   }
+}
@@ -0,0 +1,83 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes packets in the frame format {@link PNFrameDecoder} reads.
+ */
+public class PNFrameEncoder {
+
+   /**
+    * The most bytes a frame header can take: a varint length and a varint packet id
+    */
+   public static final int MAX_HEADER_SIZE = PNVarInt.MAX_BYTES * 2;
+
+   private PNFrameEncoder() {
+   }
+
+   /**
+    * @return The number of bytes the header of a frame carrying the packet id and payload takes
+    */
+   public static int headerSize(int packetId, int payloadLength) {
+      int frameLength = PNVarInt.size(packetId) + payloadLength;
+      return PNVarInt.size(frameLength) + PNVarInt.size(packetId);
+   }
+
+   /**
+    * Checks that a frame carrying the packet id and payload is one {@link PNFrameDecoder} accepts by default.
+    *
+    * @throws IllegalArgumentException If the packet id is negative or the frame is longer than
+    *                                  {@link PNFrameDecoder#DEFAULT_MAX_FRAME_LENGTH}; send a payload that large in
+    *                                  fragments instead
+    */
+   public static void checkFrame(int packetId, int payloadLength) {
+      if (packetId < 0) {
+         throw new IllegalArgumentException("Packet id must not be negative: " + packetId);
+      }
+      if (payloadLength > PNFrameDecoder.DEFAULT_MAX_FRAME_LENGTH - PNVarInt.size(packetId)) {
+         throw new IllegalArgumentException("Payload of " + payloadLength + " bytes is too large for a frame");
+      }
+   }
+
+   /**
+    * Writes the header of a frame carrying the packet id and payload into the array.
+    *
+    * @return The index just past the header
+    */
+   public static int writeHeader(byte[] dst, int offset, int packetId, int payloadLength) {
+      int frameLength = PNVarInt.size(packetId) + payloadLength;
+      offset = PNVarInt.write(dst, offset, frameLength);
+      return PNVarInt.write(dst, offset, packetId);
+   }
+
+   /**
+    * Writes the header of a frame carrying the packet id and payload at the buffer's position, advancing it.
+    */
+   public static void writeHeader(ByteBuffer dst, int packetId, int payloadLength) {
+      int frameLength = PNVarInt.size(packetId) + payloadLength;
+      PNVarInt.write(dst, frameLength);
+      PNVarInt.write(dst, packetId);
+   }
+
+   /**
+    * Encodes a whole frame into a single pooled buffer, ready to be queued on any number of writers with
+    * {@link PNOutputStreamWriter#writeShared(PNBuffer)}.
+    *
+    * @param payload The payload, from its position to its limit. Its position is not moved.
+    * @return A buffer holding the frame between position 0 and its limit. The caller owns one reference.
+    */
+   public static PNBuffer encode(PNBufferPool pool, int packetId, ByteBuffer payload) {
+      int length = payload.remaining();
+      checkFrame(packetId, length);
+      PNBuffer frame = pool.acquire(headerSize(packetId, length) + length);
+      ByteBuffer memory = frame.memory();
+      writeHeader(memory, packetId, length);
+      memory.put(payload.duplicate());
+      memory.flip();
+      return frame;
+   }
+
+   public static PNBuffer encode(PNBufferPool pool, int packetId, byte[] payload, int offset, int length) {
+      return encode(pool, packetId, ByteBuffer.wrap(payload, offset, length));
+   }
+}
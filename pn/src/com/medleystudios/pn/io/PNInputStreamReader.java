@@ -1,21 +1,82 @@
 package com.medleystudios.pn.io;
 
 import com.medleystudios.pn.PN;
+import com.medleystudios.pn.util.PNTokenBucket;
 import com.medleystudios.pn.util.PNUtil;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
 import java.util.Arrays;
-import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
 
-public class PNInputStreamReader implements Runnable {
+/**
+ * Reads everything the peer sends on a connection's {@link SocketChannel}. The channel is non-blocking; its
+ * {@link PNEventLoop} calls {@link #consume()} whenever it becomes readable.
+ * <p>
+ * Bytes are read straight into a single receive buffer and split into packets by a {@link PNFrameDecoder}. Complete
+ * packets go to the registered {@link PNPacketHandler}; a partial packet waits in the buffer for the rest of it.
+ * <p>
+ * Reading can be limited to a number of bytes per second, and each packet id to a number of packets per second.
+ * While over its byte rate, or while paused by the application, the reader stops selecting for reads, so the peer's
+ * data backs up in the kernel and TCP slows the peer down. Packets over their id's rate are dropped.
+ */
+public class PNInputStreamReader {
 
    private final Object closeLock = new Object();
-   private final Object readLock = new Object();
+
+   /**
+    * The most reads to perform per readiness event, so one busy connection cannot starve the others on its loop
+    */
+   private static final int MAX_READS_PER_CONSUME = 16;
 
    private boolean reachedEnd = false;
    private boolean closed = false;
-   private InputStream in;
+   private SocketChannel channel;
+   private PNEventLoop eventLoop;
+
+   /**
+    * The key of the channel on the event loop. Null until the channel is registered.
+    */
+   private SelectionKey selectionKey = null;
+
+   /**
+    * Why reading is paused, if it is. Reading resumes once every reason is gone.
+    */
+   private static final int PAUSED_BY_RATE = 1;
+   private static final int PAUSED_BY_APPLICATION = 2;
+   private int pausedBy = 0;
+
+   /**
+    * Limits the bytes read per second, or null for no limit
+    */
+   private PNTokenBucket readRate = null;
+   private boolean readResumeScheduled = false;
+   private final Runnable readResumeTask = this::resumeAfterRate;
+
+   /**
+    * The packet ids with a rate limit, sorted, and the bucket of each
+    */
+   private int[] limitedPacketIds = new int[0];
+   private PNTokenBucket[] packetRates = new PNTokenBucket[0];
+   private volatile long droppedPackets = 0;
+
+   /**
+    * Totals, written under the reader's lock and readable without it
+    */
+   private volatile long bytesRead = 0;
+   private volatile long packetsRead = 0;
+
+   /**
+    * When bytes were last read, for idle detection
+    */
+   private volatile long lastReadNanos = System.nanoTime();
+
+   /**
+    * When reading last resumed after a pause, so the time spent paused does not count as idle
+    */
+   private volatile long resumedNanos = this.lastReadNanos;
 
    /**
     * Runs when we close the input stream
@@ -24,119 +85,435 @@ public class PNInputStreamReader implements Runnable {
 
    private String errorMessage = null;
 
-   // We need constant read/write time for each data chunk and we also need FIFO, so a Queue is the perfect data type
-   // to store the data chunks
    /**
-    * Represents the size of each read-chunk. Bounded from above by MTU for Ethernet (1500 bytes)
+    * Represents the starting size of the receive buffer. Bounded from above by MTU for Ethernet (1500 bytes)
     */
    private static final int CHUNK_SIZE = 1024;
-   private LinkedList<byte[]> chunks;
-   private final byte[] buffer = new byte[CHUNK_SIZE];
+
+   private final PNBufferPool pool;
+
+   /**
+    * Holds received bytes that have not been decoded yet, between index 0 and its position. Swapped for a bigger
+    * pooled buffer when a single frame does not fit. Null once released on close.
+    */
+   private PNBuffer receiveBuffer;
+   private final PNFrameDecoder decoder;
+   private final PNPacketHandler dispatcher = this::handlePacket;
+   private PNPacketHandler packetHandler = null;
 
    /**
-    * The next index at which to begin reading from the back chunk
+    * Receives packets with ids reserved by {@link PNProtocol}
     */
-   private int backChunkReaderIndex;
+   private PNPacketHandler controlHandler = null;
 
    /**
-    * @param in       The input stream to read from
-    * @param onClosed Runs when the input stream closes.
+    * Reassembles messages the peer sent in fragments
     */
-   public PNInputStreamReader(InputStream in, Runnable onClosed) {
-      this.in = in;
+   private final PNFragmentAssembler assembler;
+   private final PNPacketHandler deliverer = this::deliverAssembled;
+
+   /**
+    * True while packets are being handed out, during which the receive buffer must stay put even if a handler closes
+    * the reader
+    */
+   private boolean processing = false;
+
+   /**
+    * @param channel   The non-blocking channel to read from
+    * @param eventLoop The loop the channel is registered with
+    * @param pool      The pool the receive buffer is drawn from
+    * @param onClosed  Runs when the reader closes.
+    */
+   public PNInputStreamReader(SocketChannel channel, PNEventLoop eventLoop, PNBufferPool pool, Runnable onClosed) {
+      this.channel = channel;
+      this.eventLoop = eventLoop;
+      this.pool = pool;
       this.onClosed = onClosed;
 
-      this.chunks = new LinkedList<>();
-      this.backChunkReaderIndex = 0;
+      this.receiveBuffer = pool.acquire(CHUNK_SIZE);
+      this.decoder = new PNFrameDecoder();
+      this.assembler = new PNFragmentAssembler(pool);
+   }
+
+   /**
+    * Sets the handler complete packets are delivered to. Runs on the connection's event loop. Packets that arrive
+    * while no handler is set are dropped.
+    */
+   public synchronized void setPacketHandler(PNPacketHandler packetHandler) {
+      this.packetHandler = packetHandler;
+   }
+
+   /**
+    * Sets the handler control packets, those with ids reserved by {@link PNProtocol}, are delivered to instead of the
+    * packet handler. Runs on the connection's event loop.
+    */
+   public synchronized void setControlHandler(PNPacketHandler controlHandler) {
+      this.controlHandler = controlHandler;
+   }
+
+   /**
+    * Called by the connection once its channel is registered with the event loop.
+    */
+   public synchronized void setSelectionKey(SelectionKey selectionKey) {
+      this.selectionKey = selectionKey;
+      this.updateReadInterest();
+   }
+
+   /**
+    * Limits how fast the peer's data is read.
+    *
+    * @param bytesPerSecond The sustained rate
+    * @param burst          The number of bytes that may be read back to back above that rate
+    */
+   public synchronized void setReadRate(double bytesPerSecond, int burst) {
+      if (this.readRate == null) {
+         this.readRate = new PNTokenBucket(bytesPerSecond, burst);
+      }
+      else {
+         this.readRate.setRate(bytesPerSecond, burst);
+      }
+   }
+
+   /**
+    * Lifts the limit set by {@link #setReadRate(double, int)}.
+    */
+   public synchronized void removeReadRate() {
+      this.readRate = null;
+      this.resume(PAUSED_BY_RATE);
+   }
+
+   /**
+    * Limits the messages the peer sends in fragments, which are put together in buffers held by this connection. A
+    * message over the limit is a breach of the protocol and closes the connection, so it should be at least the
+    * peer writer's {@link PNOutputStreamWriter#setMaxFragmentedLength(int) max fragmented length}. Defaults to
+    * {@link PNFragmentAssembler#DEFAULT_MAX_MESSAGE_LENGTH} and twice that.
+    *
+    * @param maxMessageLength The largest message the peer may send in fragments
+    * @param maxBufferedBytes The most bytes the messages partly received may hold together
+    * @see PNFragmentAssembler
+    */
+   public synchronized void setFragmentLimits(int maxMessageLength, int maxBufferedBytes) {
+      this.assembler.setLimits(maxMessageLength, maxBufferedBytes);
+   }
+
+   /**
+    * Limits how many packets with the given id are handled per second. Packets over the limit are dropped. A
+    * fragmented message counts once, when it is complete.
+    *
+    * @param packetsPerSecond The sustained rate
+    * @param burst            The number of packets that may arrive back to back above that rate
+    */
+   public synchronized void setPacketRate(int packetId, double packetsPerSecond, int burst) {
+      int index = Arrays.binarySearch(this.limitedPacketIds, packetId);
+      if (index >= 0) {
+         this.packetRates[index].setRate(packetsPerSecond, burst);
+         return;
+      }
+
+      index = -index - 1;
+      int count = this.limitedPacketIds.length;
+      int[] ids = new int[count + 1];
+      PNTokenBucket[] rates = new PNTokenBucket[count + 1];
+      System.arraycopy(this.limitedPacketIds, 0, ids, 0, index);
+      System.arraycopy(this.packetRates, 0, rates, 0, index);
+      ids[index] = packetId;
+      rates[index] = new PNTokenBucket(packetsPerSecond, burst);
+      System.arraycopy(this.limitedPacketIds, index, ids, index + 1, count - index);
+      System.arraycopy(this.packetRates, index, rates, index + 1, count - index);
+      this.limitedPacketIds = ids;
+      this.packetRates = rates;
+   }
+
+   /**
+    * @return The number of packets dropped for going over their id's rate
+    */
+   public long getDroppedPackets() {
+      return this.droppedPackets;
+   }
+
+   /**
+    * Stops reading until {@link #resumeReading()}, for example while the application's queue is full. Packets already
+    * read are still handed out. Safe to call from any thread.
+    */
+   public synchronized void pauseReading() {
+      this.pause(PAUSED_BY_APPLICATION);
+   }
+
+   public synchronized void resumeReading() {
+      this.resume(PAUSED_BY_APPLICATION);
+   }
+
+   public synchronized boolean isReadingPaused() {
+      return this.pausedBy != 0;
+   }
+
+   private void pause(int reason) {
+      if (this.pausedBy == 0) {
+         this.pausedBy = reason;
+         this.updateReadInterest();
+      }
+      else {
+         this.pausedBy |= reason;
+      }
+   }
+
+   private void resume(int reason) {
+      if ((this.pausedBy & reason) == 0) return;
+      this.pausedBy &= ~reason;
+      if (this.pausedBy == 0) {
+         this.resumedNanos = System.nanoTime();
+         this.updateReadInterest();
+      }
    }
 
-   @Override
-   public void run() {
-      // consume blocks because it has an InputStream.read() call
-      while (consume()) ;
+   private void updateReadInterest() {
+      if (this.selectionKey != null && !this.isClosed()) {
+         this.eventLoop.setInterest(this.selectionKey, SelectionKey.OP_READ, this.pausedBy == 0);
+      }
    }
 
    /**
-    * TODO
-    * We need some way to packet-ize the data.
-    * Probably not meant for either InputStreamReader or InputStreamWriter.
-    * Maybe this should go in PNConnection?
-    * Do we need a totally different class for packets?
+    * Resumes reading once the read rate's bucket has refilled. Runs on the event loop.
     */
-   public void process() {
+   private synchronized void resumeAfterRate() {
+      this.readResumeScheduled = false;
+      this.resume(PAUSED_BY_RATE);
+   }
 
+   /**
+    * Reads whatever is available on the channel without blocking. Called by the event loop when the channel is
+    * readable.
+    *
+    * @return Returns true if the channel may still be read from, false otherwise
+    */
+   public boolean consume() {
+      for (int i = 0; i < MAX_READS_PER_CONSUME; i++) {
+         int read = readOnce();
+         if (read < 0) return false;
+         if (read == 0) break;
+      }
+      return true;
    }
 
    /**
-    * @return Returns true if it should continue to consume, false otherwise
+    * @return Returns the number of bytes read, which may be 0, or -1 if the reader can no longer read
     */
-   private boolean consume() {
+   private synchronized int readOnce() {
       int read = -1;
 
       // synchronized to this and closeLock
-      if (isClosed()) return false;
+      if (isClosed()) return -1;
+
+      if (this.pausedBy != 0) return 0;
+      if (this.readRate != null) {
+         long waitNanos = this.readRate.nanosUntilAvailable(1);
+         if (waitNanos > 0) {
+            this.pause(PAUSED_BY_RATE);
+            if (!this.readResumeScheduled) {
+               this.readResumeScheduled = true;
+               this.eventLoop.schedule(this.readResumeTask, waitNanos, TimeUnit.NANOSECONDS);
+            }
+            return 0;
+         }
+      }
 
       IOException errorIO = null;
 
-      synchronized (readLock) {
+      try {
+         read = this.channel.read(this.receiveBuffer.memory());
+      }
+      catch (IOException e) {
+         errorIO = e;
+      }
+
+      if (errorIO != null) {
+         // One of the reasons an IOException may have been thrown is if we intentionally closed the channel
+         // We have to check if this reader ran close()
+         if (isClosed()) {
+            PN.log(this, "SocketChannel.read stopped due to intentional close.");
+         }
+         else {
+            PN.error(errorIO, this, "Failed to read data! Closing input stream.");
+            this.setErrorMessage(errorIO.getMessage());
+            this.close();
+         }
+         return -1;
+      }
+
+      if (read == -1) {
+         // reached end of stream
+         PN.log(this, "Reached end of input stream! Closing input stream.");
+         this.reachedEnd = true;
+         this.close();
+         return -1;
+      }
+
+      if (read == 0) {
+         return 0;
+      }
+      this.lastReadNanos = System.nanoTime();
+      this.bytesRead += read;
+
+      if (this.readRate != null) {
+         // The bytes are already read, so the bucket may go into debt and keep us paused for longer
+         this.readRate.consume(read);
+      }
+
+      if (PN.isTraceEnabled()) {
+         ByteBuffer memory = this.receiveBuffer.memory();
+         int end = memory.position();
+         int bytesRead = read;
+         PN.trace(this, () -> "Received bytes [len: " + bytesRead + ", buffered: " + end + ", data: " +
+            PNUtil.toHexString(memory, end - bytesRead, end) + "]");
+      }
+
+      try {
+         this.processing = true;
+         this.process();
+      }
+      catch (PNProtocolException e) {
+         PN.error(e, this, "Received malformed data! Closing input stream.");
+         this.setErrorMessage(e.getMessage());
+         this.close();
+      }
+      finally {
+         this.processing = false;
+      }
+
+      if (isClosed()) {
+         // A handler closed us while we were still using the buffer
+         this.releaseBuffer();
+         return -1;
+      }
+      return read;
+   }
+
+   /**
+    * Decodes and dispatches every complete packet in the receive buffer, then makes room for the next read.
+    */
+   private void process() throws PNProtocolException {
+      ByteBuffer memory = this.receiveBuffer.memory();
+      memory.flip();
+      try {
+         this.decoder.decode(memory, this.dispatcher);
+      }
+      finally {
+         memory.compact();
+      }
+
+      int pendingFrameSize = this.decoder.getPendingFrameSize();
+      if (pendingFrameSize > memory.capacity()) {
+         PNBuffer grown = this.pool.acquire(pendingFrameSize);
+         memory.flip();
+         grown.memory().put(memory);
+         this.receiveBuffer.release();
+         this.receiveBuffer = grown;
+      }
+   }
+
+   private void handlePacket(int packetId, ByteBuffer payload) {
+      // A previous handler closed the connection, the rest of the buffer is moot
+      if (isClosed()) return;
+      this.packetsRead++;
+
+      if (packetId != PNProtocol.FRAGMENT && !this.allowPacket(packetId)) return;
+
+      if (packetId == PNProtocol.FRAGMENT) {
          try {
-            // blocks until data is received, we reach the end, or an exception is thrown
-            read = this.in.read(buffer, 0, buffer.length);
+            this.assembler.receive(payload, this.deliverer);
          }
-         catch (IOException e) {
-            errorIO = e;
+         catch (PNProtocolException e) {
+            PN.error(e, this, "Received malformed fragment! Closing input stream.");
+            this.setErrorMessage(e.getMessage());
+            this.close();
          }
+         return;
+      }
 
-         synchronized (this) {
-            if (errorIO != null) {
-               // One of the reasons an IOException may have been thrown is if we intentionally closed the stream
-               // We have to check if this stream ran close()
-               if (isClosed()) {
-                  PN.log(this, "InputStream.read stopped blocking due to intentional close.");
-               }
-               else {
-                  PN.error(errorIO, this, "Failed to read data! Closing input stream.");
-                  this.setErrorMessage(errorIO.getMessage());
-                  this.close();
-               }
-               return false;
-            }
-            else {
-               // successful read
-               if (read == -1) {
-                  // reached end of stream
-                  PN.log(this, "Reached end of input stream! Closing input stream.");
-                  this.reachedEnd = true;
-                  this.close();
-                  return true;
-               }
-               else {
-                  // consume data
-                  byte[] back = this.chunks.peekLast();
-                  if (back == null) {
-                     back = new byte[CHUNK_SIZE];
-                     this.chunks.add(back);
-                  }
-                  for (int i = 0; i < read; i++) {
-                     back[backChunkReaderIndex++] = buffer[i];
-                     if (backChunkReaderIndex >= CHUNK_SIZE) {
-                        back = new byte[CHUNK_SIZE];
-                        this.chunks.add(back);
-                        backChunkReaderIndex = 0;
-                     }
-                  }
-                  byte[][] chunks = new byte[this.chunks.size()][];
-                  for (int i = 0; i < chunks.length; i++) {
-                     chunks[i] = this.chunks.get(i);
-                  }
-                  PN.log(this, "Received bytes [len: " + read + ", data: " + PNUtil.toString(chunks) + "]");
-                  return true;
-               }
-            }
+      this.deliver(packetId, payload);
+   }
+
+   private void deliverAssembled(int packetId, ByteBuffer payload) {
+      if (this.allowPacket(packetId)) {
+         this.deliver(packetId, payload);
+      }
+   }
+
+   /**
+    * @return Returns false if the packet is over its id's rate and must be dropped
+    */
+   private boolean allowPacket(int packetId) {
+      if (this.limitedPacketIds.length == 0) return true;
+
+      int index = Arrays.binarySearch(this.limitedPacketIds, packetId);
+      if (index < 0 || this.packetRates[index].tryAcquire()) return true;
+
+      this.droppedPackets++;
+      // Checked here so a flood of dropped packets does not allocate a message for each while debug is off
+      if (PN.isDebugEnabled()) {
+         PN.debug(this, "Dropping packet " + packetId + " over its rate limit");
+      }
+      return false;
+   }
+
+   /**
+    * Hands a whole packet to the handler for its id.
+    */
+   private void deliver(int packetId, ByteBuffer payload) {
+      PNPacketHandler handler = this.packetHandler;
+      if (PNProtocol.isControl(packetId) && this.controlHandler != null) {
+         handler = this.controlHandler;
+      }
+      else if (handler == null) {
+         if (PN.isDebugEnabled()) {
+            PN.debug(this, "Dropping packet " + packetId + " with no packet handler set");
          }
+         return;
+      }
+
+      try {
+         handler.handle(packetId, payload);
+      }
+      catch (RuntimeException e) {
+         PN.error(e, this, "Packet handler failed on packet " + packetId);
+      }
+   }
+
+   private void releaseBuffer() {
+      if (this.receiveBuffer != null) {
+         this.receiveBuffer.release();
+         this.receiveBuffer = null;
       }
    }
 
+   /**
+    * @return The {@link System#nanoTime()} bytes were last read at, or the reader was created at if none have been
+    */
+   public long getLastReadNanos() {
+      return this.lastReadNanos;
+   }
+
+   /**
+    * @return How long the peer has sent nothing while we were reading: 0 while reading is paused, by the application
+    * or the read rate, and otherwise the time since bytes were last read or reading last resumed
+    */
+   public synchronized long getReadIdleNanos(long now) {
+      if (this.pausedBy != 0) return 0;
+      long since = this.lastReadNanos - this.resumedNanos > 0 ? this.lastReadNanos : this.resumedNanos;
+      return now - since;
+   }
+
+   public long getBytesRead() {
+      return this.bytesRead;
+   }
+
+   /**
+    * @return The number of frames read, each fragment and control packet counted
+    */
+   public long getPacketsRead() {
+      return this.packetsRead;
+   }
+
    public synchronized boolean didReachEnd() {
       return this.reachedEnd;
    }
@@ -156,7 +533,7 @@ public class PNInputStreamReader implements Runnable {
    }
 
    /**
-    * Closes the input stream reader and the underlying {@link InputStream}
+    * Closes the input stream reader and the underlying {@link SocketChannel}
     */
    public void close() {
       close(true);
@@ -179,12 +556,12 @@ public class PNInputStreamReader implements Runnable {
     * that the error will not be stored, which is how you can check if the close operation went as expected depending
     * on whether or not you choose to close the underlying stream on this call.
     * <p>
-    * To see a more direct reason for the option to not close the underlying stream, see {@link #consume()}'s
+    * To see a more direct reason for the option to not close the underlying stream, see {@link #readOnce()}'s
     * implementation.
     *
-    * @param closeStream Set true to close the underlying {@link InputStream}. Set false to not close the underlying
-    *                    {@link InputStream}, but perform the rest of the close operation. Setting this to false is
-    *                    useful in case you know the {@link InputStream} will be closed by a different call after this
+    * @param closeStream Set true to close the underlying {@link SocketChannel}. Set false to not close the underlying
+    *                    {@link SocketChannel}, but perform the rest of the close operation. Setting this to false is
+    *                    useful in case you know the {@link SocketChannel} will be closed by a different call after this
     *                    call.
     */
    public synchronized void close(boolean closeStream) {
@@ -194,13 +571,18 @@ public class PNInputStreamReader implements Runnable {
 
          if (closeStream == true) {
             try {
-               this.in.close();
+               this.channel.close();
             }
             catch (IOException e) {
                PN.error(e, this, "Failed to close input stream.");
             }
          }
 
+         if (!this.processing) {
+            this.releaseBuffer();
+         }
+         this.assembler.close();
+
          if (this.onClosed != null) {
             this.onClosed.run();
             this.onClosed = null;
@@ -0,0 +1,34 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A packet with a fixed layout, encoded straight into and decoded straight out of buffers. Classes implementing it
+ * are normally generated from a schema by {@link com.medleystudios.pn.codec.PNCodecGenerator}.
+ * <p>
+ * A message is a mutable holder meant to be reused: fill it in and hand it to
+ * {@link PNOutputStreamWriter#writeMessage(PNMessage)}, or decode each received payload into the same instance.
+ * Neither direction allocates.
+ */
+public interface PNMessage {
+
+   int getPacketId();
+
+   /**
+    * @return The exact number of bytes {@link #encode(ByteBuffer)} writes for the current values
+    */
+   int encodedSize();
+
+   /**
+    * Encodes the message at the buffer's position, advancing it. The buffer must have {@link #encodedSize()} bytes
+    * remaining.
+    */
+   void encode(ByteBuffer dst);
+
+   /**
+    * Decodes a payload at the buffer's position into this message, advancing it.
+    *
+    * @throws PNProtocolException If the payload is truncated or does not fit the message
+    */
+   void decode(ByteBuffer src) throws PNProtocolException;
+}
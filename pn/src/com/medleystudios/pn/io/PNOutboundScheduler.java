@@ -0,0 +1,281 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Decides what a connection sends each tick, so that a burst of low value chatter never holds up what matters.
+ * Messages are queued with a {@link PNPriority}, each class in order of arrival, and on every {@link #tick()} they are
+ * handed to the {@link PNOutputStreamWriter} most important class first, for as long as the connection's budget of
+ * bytes per tick lasts. Whatever does not fit waits for the next tick.
+ * <p>
+ * {@link PNPriority#CRITICAL} messages always go on the next tick. Other messages go while any of the budget is left,
+ * however large they are, so nothing is stuck behind a budget smaller than itself. Both can overdraw the budget, and
+ * so can data sent past the scheduler that is {@link #charge(int) charged} to it, such as datagrams; the following
+ * ticks then pay it back. On average a connection gets no more than its budget. A message that waits too many ticks is
+ * raised a class, up to {@link PNPriority#HIGH}, so a steady stream of more important messages cannot starve it.
+ * <p>
+ * Queued messages are framed into pooled buffers, so the caller's payload can be reused as soon as it is queued. The
+ * buffers are handed to the writer as they are. {@link PNPriority#CRITICAL} and {@link PNPriority#HIGH} messages are
+ * never dropped by the writer's {@link PNOutputStreamWriter.SlowConsumerPolicy#DROP_OLDEST} policy.
+ */
+public class PNOutboundScheduler {
+
+   /**
+    * No budget: everything queued goes on the next tick
+    */
+   public static final int UNLIMITED = Integer.MAX_VALUE;
+
+   public static final int DEFAULT_MAX_WAIT_TICKS = 10;
+
+   private final PNOutputStreamWriter writer;
+   private final PNBufferPool pool;
+
+   private final ArrayDeque<Pending>[] queues;
+   private final long[] queuedBytes;
+   private final ArrayDeque<Pending> free = new ArrayDeque<>();
+
+   private int bytesPerTick = UNLIMITED;
+   private int maxWaitTicks = DEFAULT_MAX_WAIT_TICKS;
+
+   /**
+    * The bytes that can still be sent this tick. Negative when overdrawn.
+    */
+   private long credit = UNLIMITED;
+   private long tick = 0;
+   private boolean closed = false;
+
+   private long bytesSent = 0;
+   private long bytesCharged = 0;
+   private long deferredMessages = 0;
+   private long raisedMessages = 0;
+
+   @SuppressWarnings({"unchecked", "rawtypes"})
+   public PNOutboundScheduler(PNOutputStreamWriter writer, PNBufferPool pool) {
+      this.writer = writer;
+      this.pool = pool;
+      this.queues = new ArrayDeque[PNPriority.values().length];
+      this.queuedBytes = new long[this.queues.length];
+      for (int i = 0; i < this.queues.length; i++) {
+         this.queues[i] = new ArrayDeque<>();
+      }
+   }
+
+   /**
+    * @param bytesPerTick The bytes the connection may send per tick, framing included, or {@link #UNLIMITED}
+    */
+   public synchronized void setBudget(int bytesPerTick) {
+      if (bytesPerTick <= 0) {
+         throw new IllegalArgumentException("Budget must be positive: " + bytesPerTick);
+      }
+      this.bytesPerTick = bytesPerTick;
+      this.credit = Math.min(this.credit, bytesPerTick);
+   }
+
+   public synchronized int getBudget() {
+      return this.bytesPerTick;
+   }
+
+   /**
+    * @param maxWaitTicks The ticks a message waits before it is raised a class
+    */
+   public synchronized void setMaxWaitTicks(int maxWaitTicks) {
+      if (maxWaitTicks <= 0) {
+         throw new IllegalArgumentException("Max wait must be positive: " + maxWaitTicks);
+      }
+      this.maxWaitTicks = maxWaitTicks;
+   }
+
+   public synchronized int getMaxWaitTicks() {
+      return this.maxWaitTicks;
+   }
+
+   /**
+    * Queues a packet to be sent on a tick, framed the way {@link PNFrameDecoder} expects.
+    *
+    * @param payload The payload, from its position to its limit. It is copied, and its position is not moved.
+    * @throws IllegalArgumentException If the frame is larger than the largest pooled buffer; send such a payload
+    *                                  with {@link PNOutputStreamWriter#writeFragmented(int, ByteBuffer)} instead
+    */
+   public synchronized void queue(PNPriority priority, int packetId, ByteBuffer payload) {
+      int length = payload.remaining();
+      PNBuffer frame = this.acquireFrame(packetId, length);
+      if (frame == null) return;
+
+      frame.memory().put(payload.duplicate()).flip();
+      this.enqueue(priority, frame);
+   }
+
+   /**
+    * Queues a message to be sent on a tick. The message can be reused as soon as this returns.
+    *
+    * @throws IllegalArgumentException If the encoded message is larger than the largest pooled buffer
+    */
+   public synchronized void queue(PNPriority priority, PNMessage message) {
+      PNBuffer frame = this.acquireFrame(message.getPacketId(), message.encodedSize());
+      if (frame == null) return;
+
+      ByteBuffer memory = frame.memory();
+      message.encode(memory);
+      memory.flip();
+      this.enqueue(priority, frame);
+   }
+
+   /**
+    * @return A pooled buffer holding the frame's header, or null if the scheduler is closed
+    */
+   private PNBuffer acquireFrame(int packetId, int length) {
+      int frameLength = PNFrameEncoder.headerSize(packetId, length) + length;
+      if (frameLength > PNBufferPool.MAX_SIZE) {
+         throw new IllegalArgumentException("Frame of " + frameLength + " bytes is too large to schedule");
+      }
+      if (this.closed) return null;
+
+      PNBuffer frame = this.pool.acquire(frameLength);
+      PNFrameEncoder.writeHeader(frame.memory(), packetId, length);
+      return frame;
+   }
+
+   private void enqueue(PNPriority priority, PNBuffer frame) {
+      Pending pending = this.free.pollLast();
+      if (pending == null) {
+         pending = new Pending();
+      }
+      pending.frame = frame;
+      pending.length = frame.memory().remaining();
+      pending.queuedTick = this.tick;
+
+      int index = priority.ordinal();
+      this.queues[index].add(pending);
+      this.queuedBytes[index] += pending.length;
+   }
+
+   /**
+    * Takes bytes sent past the scheduler, such as over the connection's datagram channel, out of the budget.
+    */
+   public synchronized void charge(int bytes) {
+      this.credit -= bytes;
+      this.bytesCharged += bytes;
+   }
+
+   /**
+    * @return The bytes of this tick's budget left for messages of the priority, after what is queued ahead of them
+    */
+   public synchronized int getAvailableBytes(PNPriority priority) {
+      long available = this.credit;
+      for (int i = 0; i < priority.ordinal(); i++) {
+         available -= this.queuedBytes[i];
+      }
+      return (int)Math.max(0, Math.min(available, Integer.MAX_VALUE));
+   }
+
+   /**
+    * Hands the writer what fits in this tick's budget and starts the next tick. Call it once per tick after
+    * everything for the tick is queued, and before the writer's queue is sent.
+    */
+   public synchronized void tick() {
+      if (this.closed) return;
+
+      this.raiseWaiting();
+      for (int i = 0; i < this.queues.length; i++) {
+         ArrayDeque<Pending> queue = this.queues[i];
+         boolean critical = i == PNPriority.CRITICAL.ordinal();
+         while (!queue.isEmpty() && (critical || this.credit > 0)) {
+            Pending pending = queue.poll();
+            this.queuedBytes[i] -= pending.length;
+            this.credit -= pending.length;
+            this.bytesSent += pending.length;
+            // The frame is ours alone, so hand it over rather than have the writer make a view of it
+            this.writer.writeOwned(pending.frame, i > PNPriority.HIGH.ordinal());
+            pending.frame = null;
+            this.free.add(pending);
+         }
+         this.deferredMessages += queue.size();
+      }
+
+      this.credit = Math.min(this.credit + this.bytesPerTick, this.bytesPerTick);
+      this.tick++;
+   }
+
+   /**
+    * Moves the messages that have waited too long up a class, behind the messages already there
+    */
+   private void raiseWaiting() {
+      for (int i = PNPriority.LOW.ordinal(); i > PNPriority.HIGH.ordinal(); i--) {
+         ArrayDeque<Pending> queue = this.queues[i];
+         while (!queue.isEmpty() && this.tick - queue.peek().queuedTick >= this.maxWaitTicks) {
+            Pending pending = queue.poll();
+            pending.queuedTick = this.tick;
+            this.queuedBytes[i] -= pending.length;
+            this.queues[i - 1].add(pending);
+            this.queuedBytes[i - 1] += pending.length;
+            this.raisedMessages++;
+         }
+      }
+   }
+
+   private void recycle(Pending pending) {
+      pending.frame.release();
+      pending.frame = null;
+      this.free.add(pending);
+   }
+
+   public synchronized long getQueuedBytes(PNPriority priority) {
+      return this.queuedBytes[priority.ordinal()];
+   }
+
+   public synchronized int getQueuedMessages(PNPriority priority) {
+      return this.queues[priority.ordinal()].size();
+   }
+
+   /**
+    * @return The bytes handed to the writer
+    */
+   public synchronized long getBytesSent() {
+      return this.bytesSent;
+   }
+
+   public synchronized long getBytesCharged() {
+      return this.bytesCharged;
+   }
+
+   /**
+    * @return How many times a message was left waiting at the end of a tick
+    */
+   public synchronized long getDeferredMessages() {
+      return this.deferredMessages;
+   }
+
+   public synchronized long getRaisedMessages() {
+      return this.raisedMessages;
+   }
+
+   /**
+    * Drops everything queued and refuses anything queued after, for when the connection closes.
+    */
+   public synchronized void close() {
+      if (this.closed) return;
+      this.closed = true;
+
+      for (int i = 0; i < this.queues.length; i++) {
+         while (!this.queues[i].isEmpty()) {
+            this.recycle(this.queues[i].poll());
+         }
+         this.queuedBytes[i] = 0;
+      }
+      this.free.clear();
+   }
+
+   @Override
+   public synchronized String toString() {
+      return "PNOutboundScheduler[budget: " + (this.bytesPerTick == UNLIMITED ? "unlimited" : this.bytesPerTick +
+         "B") + ", credit: " + this.credit + "B, queued: " + this.queues[0].size() + "/" + this.queues[1].size() +
+         "/" + this.queues[2].size() + "/" + this.queues[3].size() + ", deferred: " + this.deferredMessages + "]";
+   }
+
+   private static class Pending {
+      private PNBuffer frame;
+      private int length;
+      private long queuedTick;
+   }
+}
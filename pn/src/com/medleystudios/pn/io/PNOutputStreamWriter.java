@@ -1,18 +1,149 @@
 package com.medleystudios.pn.io;
 
 import com.medleystudios.pn.PN;
+import com.medleystudios.pn.util.PNTokenBucket;
 import com.medleystudios.pn.util.PNUtil;
 
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.util.LinkedList;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
-public class PNOutputStreamWriter implements Runnable {
+/**
+ * Queues outbound data for a connection's {@link SocketChannel} and writes it out.
+ * <p>
+ * {@link #write(byte[])} sends straight away on the calling thread when the socket can take the data. Only when the
+ * socket's send buffer fills up does the writer ask its {@link PNEventLoop} to watch for writability, and
+ * {@link #flush()} then finishes the job on the loop. An idle writer costs nothing.
+ * <p>
+ * A {@link #cork() corked} writer only queues, so that everything written during a tick goes out in one batch.
+ * <p>
+ * Messages too large to hold up everything behind them are sent with {@link #writeFragmented(int, ByteBuffer)}. They
+ * wait beside the queue and are fed into it a fragment at a time whenever it runs low, taking turns with each other,
+ * so packets written meanwhile only ever wait behind a fragment or two. Files sent with
+ * {@link #sendFile(int, Path, long, long)} take their turn in the same way, a chunk at a time, and go from the file to
+ * the socket with {@link FileChannel#transferTo} so that their data is never copied into the queue. All of this bulk
+ * data is paced by a token bucket, since once it reaches the socket's send buffer nothing can get ahead of it.
+ * <p>
+ * The queue is bounded. Past its high water mark the writer reports itself unwritable to its
+ * {@link WritabilityListener} until it drains to its low water mark, so producers can hold back. A write that would
+ * take it past its maximum is dealt with by its {@link SlowConsumerPolicy}.
+ */
+public class PNOutputStreamWriter {
 
    private final Object closeLock = new Object();
 
    private boolean closed = false;
-   private OutputStream out;
+   private SocketChannel channel;
+   private PNEventLoop eventLoop;
+
+   /**
+    * The key of the channel on the event loop. Null until the channel is registered.
+    */
+   private SelectionKey selectionKey = null;
+
+   /**
+    * True while the event loop is watching the channel for writability on our behalf. While set, queued data is
+    * left for {@link #flush()} rather than written by the producer.
+    */
+   private boolean awaitingWritable = false;
+
+   /**
+    * True while writes are only queued, to be sent together by {@link #sendQueued()} or {@link #uncork()}
+    */
+   private boolean corked = false;
+
+   /**
+    * The default most bytes a corked writer holds back before sending anyway
+    */
+   public static final int DEFAULT_MAX_BATCH_BYTES = 16 * 1024;
+
+   /**
+    * While corked, the queue is sent as soon as it holds this many bytes
+    */
+   private int maxBatchBytes = DEFAULT_MAX_BATCH_BYTES;
+
+   /**
+    * While corked, the longest data may wait in the queue before it is sent, or 0 to wait for an explicit send
+    */
+   private long maxBatchDelayNanos = 0;
+
+   /**
+    * True while a send is scheduled on the event loop to honour the max batch delay
+    */
+   private boolean batchSendScheduled = false;
+   private final Runnable batchSendTask = this::sendBatch;
+
+   public enum SlowConsumerPolicy {
+      DROP_OLDEST,   // Drop the oldest packets that have not started going out, for state that newer packets replace
+      DISCONNECT,    // Close the connection
+      BLOCK,         // Make the producer wait for room, except on the event loop where that would never come
+   }
+
+   /**
+    * The default bounds on the queue, in bytes
+    */
+   public static final int DEFAULT_LOW_WATER_MARK = 32 * 1024;
+   public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+   public static final int DEFAULT_MAX_QUEUED_BYTES = 4 * 1024 * 1024;
+
+   private int lowWaterMark = DEFAULT_LOW_WATER_MARK;
+   private int highWaterMark = DEFAULT_HIGH_WATER_MARK;
+   private int maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+   private SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.DISCONNECT;
+
+   /**
+    * The largest message {@link #writeFragmented(int, ByteBuffer)} sends
+    */
+   private int maxFragmentedLength = PNFragmentAssembler.DEFAULT_MAX_MESSAGE_LENGTH;
+
+   private boolean writable = true;
+   private WritabilityListener writabilityListener = null;
+   private FlushListener flushListener = null;
+
+   /**
+    * The number of producers waiting for room under the BLOCK policy
+    */
+   private int blockedProducers = 0;
+
+   private volatile long droppedPackets = 0;
+   private volatile long droppedBytes = 0;
+
+   /**
+    * Totals and the backlog, written under the writer's lock and readable without it
+    */
+   private volatile long bytesWritten = 0;
+   private volatile long packetsWritten = 0;
+   private volatile long backlogBytes = 0;
+
+   /**
+    * When bytes were last written, and when the writer last had to wait for the socket with no progress since, or 0
+    * if it is not waiting. For idle and dead peer detection.
+    */
+   private volatile long lastWriteNanos = System.nanoTime();
+   private volatile long stalledSinceNanos = 0;
+
+   // The length of every frame in the queue, oldest first, so that whole packets can be dropped. The top bit says
+   // whether the frame may be dropped at all
+   private static final long DROPPABLE = 1L << 32;
+   private static final long FRAME_LENGTH_MASK = DROPPABLE - 1;
+   private long[] frames = new long[64];
+   private int frameHead = 0;
+   private int frameCount = 0;
+
+   /**
+    * How much of the oldest frame has been sent
+    */
+   private long headFrameSent = 0;
 
    private String errorMessage = null;
 
@@ -21,111 +152,1056 @@ public class PNOutputStreamWriter implements Runnable {
     */
    private Runnable onClosed;
 
-   // We need constant read/write time for each data chunk and we also need FIFO, so a Queue is the perfect data type
-   // to store the data chunks
+   // The queue is a ring of pooled chunks. Each chunk's unsent bytes lie between its position and limit, so the
+   // chunks can be handed to a gathering write as they are. Shared frames queued by writeShared are read-only views
+   // and are never appended to
    /**
     * Represents the size of each write-chunk. Bounded from above by MTU for Ethernet (1500 bytes)
     */
    private static final int CHUNK_SIZE = 1024;
-   private LinkedList<byte[]> chunks;
 
    /**
-    * The index at which to begin reading data from the front chunk
+    * The most chunks to hand to a single gathering write
+    */
+   private static final int MAX_GATHER = 64;
+
+   private final PNBufferPool pool;
+   private ArrayDeque<PNBuffer> chunks;
+   private final ByteBuffer[] gather = new ByteBuffer[MAX_GATHER];
+
+   /**
+    * The number of queued bytes that have not been sent yet
+    */
+   private long queuedBytes = 0;
+
+   /**
+    * Fragmented messages and files still being sent, in turn
+    */
+   private final ArrayDeque<Bulk> bulk = new ArrayDeque<>();
+   private int nextTransferId = 0;
+
+   /**
+    * Bulk data is only added to the queue while it holds less than this, so that it never builds up in front of other
+    * packets
+    */
+   private static final int BULK_LOW_WATER = PNProtocol.FRAGMENT_DATA_SIZE * 2;
+
+   /**
+    * The most file data sent in one {@link PNProtocol#FILE_CHUNK}
+    */
+   private static final int FILE_CHUNK_SIZE = 16 * 1024;
+
+   /**
+    * The default rate bulk data is sent at, and how much of it may go out back to back
+    */
+   public static final double DEFAULT_BULK_BYTES_PER_SECOND = 32 * 1024 * 1024;
+   public static final int DEFAULT_BULK_BURST = 64 * 1024;
+
+   /**
+    * The least time to wait before pumping more bulk data once the bucket runs dry
+    */
+   private static final long MIN_BULK_WAIT_NANOS = 100_000;
+
+   private final PNTokenBucket bulkRate = new PNTokenBucket(DEFAULT_BULK_BYTES_PER_SECOND, DEFAULT_BULK_BURST);
+   private boolean bulkPumpScheduled = false;
+   private final Runnable bulkPumpTask = this::resumeBulk;
+
+   /**
+    * The number of bytes of fragmented messages held until their turn
     */
-   private int frontChunkReaderIndex;
+   private long fragmentBytes = 0;
 
    /**
-    * The next index at which to write data in the back chunk
+    * The file whose chunk is queued right after the first chunksBeforeFile chunks, or null. Its data is not in the
+    * queue's chunks but is counted in queuedBytes. Only one file chunk is queued at a time.
     */
-   private int backChunkWriterIndex;
+   private FileStream queuedFile = null;
+   private long queuedFileRemaining = 0;
+   private int chunksBeforeFile = 0;
 
-   public PNOutputStreamWriter(OutputStream out, Runnable onClosed) {
-      this.out = out;
-      this.chunks = new LinkedList<>();
-      this.frontChunkReaderIndex = 0;
-      this.backChunkWriterIndex = 0;
+   /**
+    * Scratch space for encoding frame headers
+    */
+   private final byte[] headerScratch = new byte[PNFrameEncoder.MAX_HEADER_SIZE];
+   private final byte[] bulkScratch = new byte[PNVarInt.MAX_BYTES * 4];
+
+   /**
+    * Where the back chunk's unsent bytes start while it is open for appending
+    */
+   private int backUnsentStart;
+
+   /**
+    * @param channel   The non-blocking channel to write to
+    * @param eventLoop The loop the channel is registered with
+    * @param pool      The pool chunks are drawn from and returned to
+    * @param onClosed  Runs when the writer closes.
+    */
+   public PNOutputStreamWriter(SocketChannel channel, PNEventLoop eventLoop, PNBufferPool pool, Runnable onClosed) {
+      this.channel = channel;
+      this.eventLoop = eventLoop;
+      this.pool = pool;
+      this.chunks = new ArrayDeque<>();
       this.onClosed = onClosed;
    }
 
-   @Override
-   public void run() {
-      start();
-      loop();
+   /**
+    * Called by the connection once its channel is registered with the event loop.
+    */
+   public synchronized void setSelectionKey(SelectionKey selectionKey) {
+      this.selectionKey = selectionKey;
+      if (this.hasQueued()) {
+         this.writeNow();
+      }
+   }
+
+   /**
+    * @return The number of bytes queued but not yet sent
+    */
+   public synchronized long getQueuedBytes() {
+      return this.queuedBytes;
+   }
+
+   /**
+    * @return The number of bytes waiting to be sent, fragmented messages not yet in the queue included. This is what
+    * the queue's bounds apply to.
+    */
+   public long getBacklogBytes() {
+      return this.backlogBytes;
+   }
+
+   public long getBytesWritten() {
+      return this.bytesWritten;
+   }
+
+   /**
+    * @return The number of frames sent in full, each fragment and control packet counted
+    */
+   public long getPacketsWritten() {
+      return this.packetsWritten;
+   }
+
+   /**
+    * Bounds the queue.
+    *
+    * @param lowWaterMark   The writer becomes writable again once its backlog is down to this
+    * @param highWaterMark  The writer becomes unwritable once its backlog is over this
+    * @param maxQueuedBytes Writes that would take the backlog over this are dealt with by the slow consumer policy
+    */
+   public synchronized void setQueueLimits(int lowWaterMark, int highWaterMark, int maxQueuedBytes) {
+      if (lowWaterMark < 0 || lowWaterMark > highWaterMark || highWaterMark > maxQueuedBytes) {
+         throw new IllegalArgumentException("Queue limits must be ordered low <= high <= max: " + lowWaterMark +
+            ", " + highWaterMark + ", " + maxQueuedBytes);
+      }
+      this.lowWaterMark = lowWaterMark;
+      this.highWaterMark = highWaterMark;
+      this.maxQueuedBytes = maxQueuedBytes;
+      this.updateWritability();
+   }
+
+   /**
+    * Sets the largest message {@link #writeFragmented(int, ByteBuffer)} sends. The peer's reader closes the connection
+    * over a message larger than its own limit, so this should be no more than that, see
+    * {@link PNInputStreamReader#setFragmentLimits(int, int)}. Defaults to
+    * {@link PNFragmentAssembler#DEFAULT_MAX_MESSAGE_LENGTH}.
+    */
+   public synchronized void setMaxFragmentedLength(int maxFragmentedLength) {
+      if (maxFragmentedLength <= 0) {
+         throw new IllegalArgumentException("Max fragmented length must be positive: " + maxFragmentedLength);
+      }
+      this.maxFragmentedLength = maxFragmentedLength;
+   }
+
+   public synchronized int getMaxFragmentedLength() {
+      return this.maxFragmentedLength;
+   }
+
+   public synchronized int getLowWaterMark() {
+      return this.lowWaterMark;
+   }
+
+   public synchronized int getHighWaterMark() {
+      return this.highWaterMark;
+   }
+
+   public synchronized int getMaxQueuedBytes() {
+      return this.maxQueuedBytes;
    }
 
-   private synchronized void start() {
+   public synchronized void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+      this.slowConsumerPolicy = policy;
    }
 
-   private void loop() {
-      while (true) {
+   public synchronized SlowConsumerPolicy getSlowConsumerPolicy() {
+      return this.slowConsumerPolicy;
+   }
+
+   /**
+    * Sets the listener told whenever the writer becomes writable or unwritable. It is called with the writer locked,
+    * on whichever thread changed the backlog, so it should only take note.
+    */
+   public synchronized void setWritabilityListener(WritabilityListener listener) {
+      this.writabilityListener = listener;
+   }
+
+   /**
+    * Sets the listener told whenever queued data is about to be handed to the socket. It is called with the writer
+    * locked, on whichever thread is sending, so it should only take note.
+    */
+   public synchronized void setFlushListener(FlushListener listener) {
+      this.flushListener = listener;
+   }
+
+   /**
+    * @return Returns false while the backlog is above the high water mark and has not yet drained to the low one
+    */
+   public synchronized boolean isWritable() {
+      return this.writable;
+   }
+
+   /**
+    * @return The {@link System#nanoTime()} bytes were last written at, or the writer was created at if none have been
+    */
+   public long getLastWriteNanos() {
+      return this.lastWriteNanos;
+   }
+
+   /**
+    * @return How long the writer has been waiting for the socket to take more of its queue without it taking any, or 0
+    * if it is not waiting
+    */
+   public long getStalledNanos() {
+      long since = this.stalledSinceNanos;
+      return since == 0 ? 0 : System.nanoTime() - since;
+   }
+
+   /**
+    * @return The number of packets dropped under the DROP_OLDEST policy
+    */
+   public long getDroppedPackets() {
+      return this.droppedPackets;
+   }
+
+   public long getDroppedBytes() {
+      return this.droppedBytes;
+   }
+
+   private void updateWritability() {
+      long backlog = this.queuedBytes + this.fragmentBytes;
+      this.backlogBytes = backlog;
+      if (this.writable && backlog > this.highWaterMark) {
+         this.writable = false;
+      }
+      else if (!this.writable && backlog <= this.lowWaterMark) {
+         this.writable = true;
+      }
+      else {
+         return;
+      }
+
+      if (this.writabilityListener != null) {
          try {
-            Thread.sleep(2);
-         }
-         catch (InterruptedException e) {
-            PN.fatalError(e, this, "Unable to sleep thread");
-         }
-
-         synchronized (this) {
-            if (isClosed()) break;
-
-            int chunksSize = this.chunks.size();
-            int length = (backChunkWriterIndex - frontChunkReaderIndex) + (chunksSize - 1) * CHUNK_SIZE;
-            if (length <= 0) continue;
-
-            boolean writeSuccessful = false;
-
-            while (chunksSize > 0) {
-               byte[] front = this.chunks.peek();
-               int writeLength = chunksSize == 1 ? backChunkWriterIndex - frontChunkReaderIndex
-                  : front.length - frontChunkReaderIndex;
-               try {
-                  this.out.write(front, frontChunkReaderIndex, writeLength);
-                  chunksSize--;
-                  writeSuccessful = true;
-                  this.frontChunkReaderIndex += writeLength;
-                  if (this.frontChunkReaderIndex >= CHUNK_SIZE) {
-                     this.frontChunkReaderIndex -= CHUNK_SIZE;
-                     this.chunks.remove();
-                  }
-               }
-               catch (IOException e) {
-                  PN.error(e, this, "Failed to write data! Closing output stream.");
-                  this.setErrorMessage(e.getMessage());
-                  this.close();
-                  break;
-               }
+            this.writabilityListener.writabilityChanged(this.writable);
+         }
+         catch (RuntimeException e) {
+            PN.error(e, this, "Writability listener failed");
+         }
+      }
+   }
+
+   /**
+    * Makes room for a write of the given length according to the slow consumer policy.
+    *
+    * @return Returns false if the write must not go ahead
+    */
+   private boolean admit(long length) {
+      if (this.isClosed()) return false;
+
+      long excess = this.queuedBytes + this.fragmentBytes + length - this.maxQueuedBytes;
+      if (excess <= 0) return true;
+
+      switch (this.slowConsumerPolicy) {
+         case DROP_OLDEST:
+            if (this.dropOldest(excess)) return true;
+            break;
+         case BLOCK:
+            return this.awaitRoom(length);
+         default:
+            break;
+      }
+
+      PN.log(this, "Send queue would exceed " + this.maxQueuedBytes + " bytes, disconnecting slow consumer");
+      this.setErrorMessage("Slow consumer: send queue exceeded " + this.maxQueuedBytes + " bytes");
+      this.close();
+      return false;
+   }
+
+   /**
+    * Waits until the write fits, or the queue is empty if it never will.
+    */
+   private boolean awaitRoom(long length) {
+      // The event loop is what makes room, so it must never wait for it
+      if (this.eventLoop.inEventLoop()) return true;
+
+      // Anything held back by the cork has to go out for there to be room
+      this.send();
+
+      this.blockedProducers++;
+      try {
+         long backlog;
+         while (!this.isClosed() && (backlog = this.queuedBytes + this.fragmentBytes) > 0 &&
+            backlog + length > this.maxQueuedBytes) {
+            this.wait();
+         }
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+         return false;
+      }
+      finally {
+         this.blockedProducers--;
+      }
+      return !this.isClosed();
+   }
+
+   /**
+    * Drops whole packets that have not started going out, oldest first, until at least the given number of bytes is
+    * freed. Gives up without dropping anything if a packet that must not be dropped is in the way first.
+    */
+   private boolean dropOldest(long excess) {
+      // The oldest frame is kept if part of it has gone out already
+      int first = this.headFrameSent > 0 ? 1 : 0;
+      long start = first == 1 ? (this.frameAt(0) & FRAME_LENGTH_MASK) - this.headFrameSent : 0;
+
+      long dropped = 0;
+      int count = 0;
+      while (dropped < excess && first + count < this.frameCount) {
+         long frame = this.frameAt(first + count);
+         if ((frame & DROPPABLE) == 0) break;
+         dropped += frame & FRAME_LENGTH_MASK;
+         count++;
+      }
+      if (dropped < excess) return false;
+
+      this.discard(start, dropped);
+      this.removeFrames(first, count);
+      this.queuedBytes -= dropped;
+      this.droppedPackets += count;
+      this.droppedBytes += dropped;
+      return true;
+   }
+
+   /**
+    * Cuts a run of bytes out of the queue.
+    *
+    * @param start  Where the run starts, counted from the first unsent byte
+    * @param length The number of bytes in the run
+    */
+   private void discard(long start, long length) {
+      long end = start + length;
+      long cursor = 0;
+      int index = 0;
+      Iterator<PNBuffer> iterator = this.chunks.iterator();
+      while (iterator.hasNext() && cursor < end) {
+         if (this.queuedFile != null && index == this.chunksBeforeFile) {
+            // The queued file chunk's data sits between the chunks here
+            cursor += this.queuedFileRemaining;
+         }
+
+         PNBuffer chunk = iterator.next();
+         ByteBuffer memory = chunk.memory();
+         int chunkLength = memory.remaining();
+         int from = (int) (Math.max(start, cursor) - cursor);
+         int to = (int) (Math.min(end, cursor + chunkLength) - cursor);
+         cursor += chunkLength;
+
+         if (from >= to) {
+            index++;
+            continue;
+         }
+
+         int base = memory.position();
+         if (from == 0 && to == chunkLength) {
+            iterator.remove();
+            chunk.release();
+            if (this.queuedFile != null && index < this.chunksBeforeFile) {
+               this.chunksBeforeFile--;
+            }
+            continue;
+         }
+
+         if (from == 0) {
+            memory.position(base + to);
+         }
+         else if (to == chunkLength) {
+            memory.limit(base + from);
+         }
+         else {
+            // Only writable chunks hold more than one frame, so only they are cut in the middle
+            ByteBuffer tail = memory.duplicate();
+            tail.position(base + to);
+            ByteBuffer target = memory.duplicate();
+            target.position(base + from);
+            target.put(tail);
+            memory.limit(memory.limit() - (to - from));
+         }
+         index++;
+      }
+   }
+
+   private long frameAt(int index) {
+      return this.frames[(this.frameHead + index) & (this.frames.length - 1)];
+   }
+
+   /**
+    * Records a frame that has just been appended to the queue.
+    */
+   private void addFrame(long length, boolean droppable) {
+      if (this.frameCount == this.frames.length) {
+         long[] grown = new long[this.frames.length * 2];
+         for (int i = 0; i < this.frameCount; i++) {
+            grown[i] = this.frameAt(i);
+         }
+         this.frames = grown;
+         this.frameHead = 0;
+      }
+      this.frames[(this.frameHead + this.frameCount) & (this.frames.length - 1)] =
+         length | (droppable ? DROPPABLE : 0);
+      this.frameCount++;
+   }
+
+   /**
+    * Forgets count frames starting at index, which is 0 or 1.
+    */
+   private void removeFrames(int index, int count) {
+      long kept = this.frameAt(0);
+      this.frameHead = (this.frameHead + index + count) & (this.frames.length - 1);
+      this.frameCount -= index + count;
+      if (index == 1) {
+         this.frameHead = (this.frameHead - 1) & (this.frames.length - 1);
+         this.frames[this.frameHead] = kept;
+         this.frameCount++;
+      }
+   }
+
+   /**
+    * Forgets the frames the given number of newly sent bytes complete.
+    */
+   private void frameSent(long written) {
+      this.headFrameSent += written;
+      while (this.frameCount > 0) {
+         long length = this.frameAt(0) & FRAME_LENGTH_MASK;
+         if (this.headFrameSent < length) break;
+         this.headFrameSent -= length;
+         this.frameHead = (this.frameHead + 1) & (this.frames.length - 1);
+         this.frameCount--;
+         this.packetsWritten++;
+      }
+   }
+
+   /**
+    * Holds back writes so they can be sent as one batch. Until the writer is uncorked, data is only queued and goes
+    * out when {@link #sendQueued()} is called, for example once per tick, or when the batch reaches one of the limits
+    * set by {@link #setBatchLimits(int, long, TimeUnit)}.
+    */
+   public synchronized void cork() {
+      this.corked = true;
+   }
+
+   /**
+    * Goes back to sending writes as they come, starting with anything queued while corked.
+    */
+   public synchronized void uncork() {
+      if (!this.corked) return;
+      this.corked = false;
+      this.send();
+   }
+
+   public synchronized boolean isCorked() {
+      return this.corked;
+   }
+
+   /**
+    * Bounds how much and how long a corked writer holds back, so batching never costs more than the given latency.
+    *
+    * @param maxBatchBytes The queue is sent as soon as it holds this many bytes
+    * @param maxDelay      The longest queued data waits before it is sent. 0 waits for {@link #sendQueued()}.
+    */
+   public synchronized void setBatchLimits(int maxBatchBytes, long maxDelay, TimeUnit unit) {
+      if (maxBatchBytes <= 0) {
+         throw new IllegalArgumentException("Max batch size must be positive: " + maxBatchBytes);
+      }
+      if (maxDelay < 0) {
+         throw new IllegalArgumentException("Max batch delay must not be negative: " + maxDelay);
+      }
+      this.maxBatchBytes = maxBatchBytes;
+      this.maxBatchDelayNanos = unit.toNanos(maxDelay);
+   }
+
+   public synchronized int getMaxBatchBytes() {
+      return this.maxBatchBytes;
+   }
+
+   public synchronized long getMaxBatchDelayNanos() {
+      return this.maxBatchDelayNanos;
+   }
+
+   /**
+    * Sends whatever is queued, whether or not the writer is corked.
+    */
+   public synchronized void sendQueued() {
+      if (this.hasQueued()) {
+         this.send();
+      }
+   }
+
+   /**
+    * Writes as much queued data as the socket will take without blocking. Called by the event loop when the channel
+    * is writable. Interest in writability is dropped once the queue is empty.
+    */
+   public synchronized void flush() {
+      long lastWrite = this.lastWriteNanos;
+      boolean drained = this.writeQueued();
+      this.updateWritability();
+      if (!drained) {
+         if (this.lastWriteNanos != lastWrite) {
+            this.stalledSinceNanos = this.lastWriteNanos;
+         }
+         return;
+      }
+
+      if (this.awaitingWritable) {
+         this.stalledSinceNanos = 0;
+         this.awaitingWritable = false;
+         this.eventLoop.setInterest(this.selectionKey, SelectionKey.OP_WRITE, false);
+      }
+   }
+
+   /**
+    * Sends the queued data, unless the writer is corked and the batch is within its limits.
+    */
+   private void writeNow() {
+      if (this.corked) {
+         if (this.queuedBytes >= this.maxBatchBytes) {
+            this.send();
+         }
+         else if (this.maxBatchDelayNanos > 0 && !this.batchSendScheduled && this.queuedBytes > 0) {
+            // A scheduled send may go out earlier than this batch needs it to, but never later
+            this.batchSendScheduled = true;
+            this.eventLoop.schedule(this.batchSendTask, this.maxBatchDelayNanos, TimeUnit.NANOSECONDS);
+         }
+         this.updateWritability();
+         return;
+      }
+      this.send();
+   }
+
+   /**
+    * Sends a batch that has waited out the max batch delay. Runs on the event loop.
+    */
+   private synchronized void sendBatch() {
+      this.batchSendScheduled = false;
+      if (this.hasQueued()) {
+         this.send();
+      }
+   }
+
+   /**
+    * Tries to send the queued data immediately, falling back to waiting for writability if the socket is full.
+    */
+   private void send() {
+      // Otherwise data is already waiting on the event loop and will be picked up with the rest of the queue
+      if (!this.awaitingWritable && this.selectionKey != null) {
+         if (!this.writeQueued() && !this.isClosed()) {
+            this.stalledSinceNanos = System.nanoTime();
+            this.awaitingWritable = true;
+            this.eventLoop.setInterest(this.selectionKey, SelectionKey.OP_WRITE, true);
+         }
+      }
+      this.updateWritability();
+   }
+
+   /**
+    * Sends as many queued chunks as the socket will take in one gathering write per pass.
+    *
+    * @return Returns true if the whole queue was written, false if the socket is full or the writer closed
+    */
+   private boolean writeQueued() {
+      if (isClosed()) return false;
+
+      if (this.flushListener != null) {
+         this.flushListener.flushing();
+      }
+      this.pumpBulk();
+      while (this.queuedBytes > 0) {
+         long written;
+         if (this.queuedFile != null && this.chunksBeforeFile == 0) {
+            written = this.writeFileChunk();
+            if (written < 0) return false;
+         }
+         else {
+            // Stop short of a queued file chunk, its header is the last chunk before it
+            int maxCount = this.queuedFile != null ? Math.min(this.chunksBeforeFile, MAX_GATHER) : MAX_GATHER;
+            int count = 0;
+            for (PNBuffer chunk : this.chunks) {
+               if (count == maxCount) break;
+               this.gather[count++] = chunk.memory();
+            }
+
+            try {
+               written = this.channel.write(this.gather, 0, count);
+            }
+            catch (IOException e) {
+               PN.error(e, this, "Failed to write data! Closing output stream.");
+               this.setErrorMessage(e.getMessage());
+               this.close();
+               return false;
             }
+            finally {
+               Arrays.fill(this.gather, 0, count, null);
+            }
+         }
 
-            if (writeSuccessful == true) {
-               try {
-                  this.out.flush();
-               }
-               catch (IOException e) {
-                  PN.error(e, this, "Failed to flush data! Closing output stream.");
-                  this.setErrorMessage(e.getMessage());
-                  this.close();
-               }
+         this.queuedBytes -= written;
+         this.frameSent(written);
+         if (written > 0) {
+            this.lastWriteNanos = System.nanoTime();
+            this.bytesWritten += written;
+         }
+         if (this.blockedProducers > 0 && written > 0) {
+            this.notifyAll();
+         }
+
+         // Chunks are written in order, so drained chunks are always at the front
+         while (!this.chunks.isEmpty() && !this.chunks.peek().memory().hasRemaining()) {
+            this.chunks.remove().release();
+            if (this.queuedFile != null) {
+               this.chunksBeforeFile--;
             }
          }
+
+         if (this.queuedBytes > 0 && written == 0) {
+            // The socket's send buffer is full
+            return false;
+         }
+         this.pumpBulk();
+      }
+
+      return true;
+   }
+
+   /**
+    * Sends as much of the queued file chunk as the socket will take, straight from the file.
+    *
+    * @return Returns the number of bytes sent, or -1 if the writer had to close
+    */
+   private long writeFileChunk() {
+      FileStream stream = this.queuedFile;
+      long written;
+      try {
+         written = stream.file.transferTo(stream.position, this.queuedFileRemaining, this.channel);
+         if (written == 0 && stream.position >= stream.file.size()) {
+            throw new EOFException("File shrank while being sent, at " + stream.position);
+         }
+      }
+      catch (IOException e) {
+         // The chunk's header has gone out, so there is no way to carry on without its data
+         PN.error(e, this, "Failed to send file! Closing output stream.");
+         this.setErrorMessage(e.getMessage());
+         this.queuedFile = null;
+         stream.fail(e);
+         this.close();
+         return -1;
+      }
+
+      stream.position += written;
+      this.queuedFileRemaining -= written;
+      if (this.queuedFileRemaining == 0) {
+         this.queuedFile = null;
+         if (stream.position == stream.end) {
+            stream.finish();
+         }
+      }
+      return written;
+   }
+
+   private void scheduleBulk(int length) {
+      if (this.bulkPumpScheduled) return;
+      this.bulkPumpScheduled = true;
+      long waitNanos = Math.max(this.bulkRate.nanosUntilAvailable(length), MIN_BULK_WAIT_NANOS);
+      this.eventLoop.schedule(this.bulkPumpTask, waitNanos, TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Carries on sending bulk data once the bucket has refilled. Runs on the event loop. Anything else queued goes out
+    * with it, even if the writer is corked.
+    */
+   private synchronized void resumeBulk() {
+      this.bulkPumpScheduled = false;
+      if (!this.bulk.isEmpty()) {
+         this.send();
+      }
+   }
+
+   /**
+    * Sets the rate fragmented messages and files are sent at.
+    *
+    * @param bytesPerSecond The sustained rate
+    * @param burst          The number of bytes that may be sent back to back above that rate
+    */
+   public synchronized void setBulkRate(double bytesPerSecond, int burst) {
+      this.bulkRate.setRate(bytesPerSecond, burst);
+   }
+
+   private boolean hasQueued() {
+      return this.queuedBytes > 0 || !this.bulk.isEmpty();
+   }
+
+   /**
+    * Tops the queue up with the next piece of each pending fragmented message or file in turn while it is low.
+    */
+   private void pumpBulk() {
+      int skipped = 0;
+      while (this.queuedBytes < BULK_LOW_WATER && skipped < this.bulk.size()) {
+         Bulk next = this.bulk.peek();
+         if (!next.isReady()) {
+            this.bulk.add(this.bulk.remove());
+            skipped++;
+            continue;
+         }
+
+         int length = next.nextLength();
+         if (!this.bulkRate.tryAcquire(length)) {
+            this.scheduleBulk(length);
+            return;
+         }
+         this.bulk.remove();
+         skipped = 0;
+
+         if (next.queueNext()) {
+            this.bulk.add(next);
+         }
       }
    }
 
+   /**
+    * Queues raw bytes. Peers decode the stream as frames, so this is only useful for bytes that already form one;
+    * prefer {@link #writePacket(int, byte[])}.
+    */
    public synchronized void write(byte[] bytes) {
-      if (this.isClosed()) return;
+      if (!this.admit(bytes.length)) return;
+
+      this.append(bytes, 0, bytes.length);
+      this.addFrame(bytes.length, false);
+      this.writeNow();
+   }
+
+   /**
+    * Queues a packet, framed the way {@link PNFrameDecoder} expects.
+    */
+   public void writePacket(int packetId, byte[] payload) {
+      writePacket(packetId, payload, 0, payload.length);
+   }
+
+   /**
+    * Queues a packet whose payload is length bytes of the array starting at offset, framed the way
+    * {@link PNFrameDecoder} expects.
+    *
+    * @throws IllegalArgumentException If the frame would be larger than the peer accepts; send such a payload with
+    *                                  {@link #writeFragmented(int, ByteBuffer)} instead
+    */
+   public synchronized void writePacket(int packetId, byte[] payload, int offset, int length) {
+      PNFrameEncoder.checkFrame(packetId, length);
+      if (!this.admit(PNFrameEncoder.headerSize(packetId, length) + length)) return;
+
+      int headerLength = this.appendHeader(packetId, length);
+      this.append(payload, offset, length);
+      this.addFrame(headerLength + length, !PNProtocol.isControl(packetId));
+      this.writeNow();
+   }
+
+   /**
+    * Queues a packet, framed the way {@link PNFrameDecoder} expects, such as one packed into a pooled buffer with a
+    * {@link com.medleystudios.pn.codec.PNBitWriter}.
+    *
+    * @param payload The payload, from its position to its limit. It is copied, and its position is not moved.
+    * @throws IllegalArgumentException If the frame would be larger than the peer accepts; send such a payload with
+    *                                  {@link #writeFragmented(int, ByteBuffer)} instead
+    */
+   public synchronized void writePacket(int packetId, ByteBuffer payload) {
+      int length = payload.remaining();
+      PNFrameEncoder.checkFrame(packetId, length);
+      if (!this.admit(PNFrameEncoder.headerSize(packetId, length) + length)) return;
+
+      int headerLength = this.appendHeader(packetId, length);
+      int position = payload.position();
+      this.append(payload);
+      payload.position(position);
+      this.addFrame(headerLength + length, !PNProtocol.isControl(packetId));
+      this.writeNow();
+   }
 
-      byte[] back = chunks.peekLast();
-      if (back == null) {
-         back = new byte[CHUNK_SIZE];
-         chunks.add(back);
+   /**
+    * Queues a message, encoding it straight into the queue without an intermediate copy. The message can be reused as
+    * soon as this returns.
+    *
+    * @throws IllegalArgumentException If the encoded message is larger than the largest pooled buffer; send such a
+    *                                  message with {@link #writeFragmented(int, ByteBuffer)} instead
+    * @throws IllegalStateException    If the message does not encode to the size it reports. Whatever the encoder
+    *                                  throws is passed on too. Either way nothing is queued.
+    */
+   public synchronized void writeMessage(PNMessage message) {
+      int packetId = message.getPacketId();
+      int length = message.encodedSize();
+      int headerLength = PNFrameEncoder.headerSize(packetId, length);
+      if (headerLength + length > PNBufferPool.MAX_SIZE) {
+         throw new IllegalArgumentException("Message of " + length + " bytes is too large to encode in place");
       }
-      for (int i = 0; i < bytes.length; i++) {
-         back[backChunkWriterIndex++] = bytes[i];
-         if (backChunkWriterIndex == CHUNK_SIZE) {
-            back = new byte[CHUNK_SIZE];
-            chunks.add(back);
-            backChunkWriterIndex = 0;
+      PNFrameEncoder.checkFrame(packetId, length);
+      if (!this.admit(headerLength + length)) return;
+
+      // The payload is encoded first and the frame only committed once it is whole, so an encoder that fails leaves
+      // the queue as it was
+      ByteBuffer memory = this.openBack(headerLength + length, true);
+      int start = memory.position();
+      memory.position(start + headerLength);
+      boolean encoded = false;
+      try {
+         message.encode(memory);
+         if (memory.position() != start + headerLength + length) {
+            throw new IllegalStateException(message.getClass().getName() + " encoded " +
+               (memory.position() - start - headerLength) + " bytes, reported " + length);
          }
+         encoded = true;
+      }
+      finally {
+         if (!encoded) {
+            memory.position(start);
+            this.closeBack(memory);
+         }
+      }
+
+      PNFrameEncoder.writeHeader(this.headerScratch, 0, packetId, length);
+      memory.position(start);
+      memory.put(this.headerScratch, 0, headerLength);
+      memory.position(start + headerLength + length);
+      this.closeBack(memory);
+      this.queuedBytes += headerLength + length;
+      this.addFrame(headerLength + length, !PNProtocol.isControl(packetId));
+      this.writeNow();
+   }
+
+   public void writeFragmented(int packetId, byte[] payload) {
+      writeFragmented(packetId, ByteBuffer.wrap(payload));
+   }
+
+   /**
+    * Queues a large message to be sent in fragments, interleaved with whatever else is written. The receiving reader
+    * puts it back together and hands it on as a single packet. Packets written after this may arrive before it.
+    *
+    * @param payload The payload, from its position to its limit. It is copied, and its position is not moved.
+    * @throws IllegalArgumentException If the payload is larger than the {@link #setMaxFragmentedLength(int) max
+    *                                  fragmented length}, which the peer would close the connection over
+    */
+   public synchronized void writeFragmented(int packetId, ByteBuffer payload) {
+      if (payload.remaining() > this.maxFragmentedLength) {
+         throw new IllegalArgumentException("Fragmented message of " + payload.remaining() +
+            " bytes exceeds maximum " + this.maxFragmentedLength);
       }
+      if (!this.admit(payload.remaining())) return;
+
+      PNBuffer data = this.pool.acquire(payload.remaining());
+      data.memory().put(payload.duplicate()).flip();
+      this.fragmentBytes += payload.remaining();
+      this.bulk.add(new Transfer(this.nextTransferId, packetId, data));
+      this.nextTransferId = (this.nextTransferId + 1) & Integer.MAX_VALUE;
+      this.writeNow();
+   }
+
+   /**
+    * Sends part of a file in {@link PNProtocol#FILE_CHUNK}s, interleaved with whatever else is written. The data goes
+    * from the file to the socket without passing through the queue. A transfer that was cut short can be resumed by
+    * sending the rest from where the peer got to.
+    *
+    * @param streamId Tells the peer's {@link PNFileHandler} what the chunks belong to
+    * @param offset   Where in the file to start
+    * @param length   The number of bytes to send
+    * @return Completes once the last byte is handed to the socket, or exceptionally if the file cannot be read or the
+    * writer closes first
+    */
+   public CompletableFuture<Void> sendFile(int streamId, Path path, long offset, long length) {
+      if (streamId < 0) {
+         throw new IllegalArgumentException("Stream id must not be negative: " + streamId);
+      }
+      if (offset < 0 || length < 0) {
+         throw new IllegalArgumentException("Invalid file range: " + offset + ", " + length);
+      }
+
+      CompletableFuture<Void> future = new CompletableFuture<>();
+      FileChannel file;
+      try {
+         file = FileChannel.open(path, StandardOpenOption.READ);
+         if (offset + length > file.size()) {
+            file.close();
+            throw new EOFException("Range " + offset + " + " + length + " is beyond the end of " + path);
+         }
+      }
+      catch (IOException e) {
+         future.completeExceptionally(e);
+         return future;
+      }
+
+      FileStream stream = new FileStream(streamId, file, offset, offset + length, future);
+      synchronized (this) {
+         if (this.isClosed()) {
+            stream.fail(new IOException("Writer closed"));
+         }
+         else if (length == 0) {
+            stream.finish();
+         }
+         else {
+            this.bulk.add(stream);
+            this.writeNow();
+         }
+      }
+      return future;
+   }
+
+   /**
+    * Queues an already encoded frame, such as one from {@link PNFrameEncoder#encode}, without copying it. The writer
+    * takes its own reference to the frame, so the caller keeps theirs and may queue the same frame on any number of
+    * writers. The frame's data is never copied, though each writer does make a small read-only view of it to keep
+    * its own place in it.
+    * <p>
+    * Like any packet, the frame may be dropped under {@link SlowConsumerPolicy#DROP_OLDEST} unless it is a control
+    * packet.
+    *
+    * @param frame The frame, from its position to its limit
+    * @throws IllegalArgumentException If the frame does not start with a frame header
+    */
+   public void writeShared(PNBuffer frame) {
+      ByteBuffer memory = frame.memory();
+      long length = PNVarInt.peek(memory, memory.position(), memory.limit());
+      long packetId = length < 0 ? length :
+         PNVarInt.peek(memory, memory.position() + PNVarInt.sizeOf(length), memory.limit());
+      if (packetId < 0) {
+         throw new IllegalArgumentException("Not a frame: " + frame);
+      }
+      this.writeShared(frame, !PNProtocol.isControl(PNVarInt.valueOf(packetId)));
+   }
+
+   /**
+    * Queues an already encoded frame like {@link #writeShared(PNBuffer)}.
+    *
+    * @param droppable Whether {@link SlowConsumerPolicy#DROP_OLDEST} may drop the frame
+    */
+   public synchronized void writeShared(PNBuffer frame, boolean droppable) {
+      int length = frame.memory().remaining();
+      if (!this.admit(length)) return;
+
+      this.chunks.add(frame.retainedDuplicate());
+      this.queuedBytes += length;
+      this.addFrame(length, droppable);
+      this.writeNow();
+   }
+
+   /**
+    * Queues an encoded frame whose only reference the caller hands over, so the frame itself joins the queue with no
+    * view or copy made. The caller must not touch the frame afterwards.
+    *
+    * @param frame     The frame, between position 0 and its limit
+    * @param droppable Whether {@link SlowConsumerPolicy#DROP_OLDEST} may drop the frame
+    */
+   synchronized void writeOwned(PNBuffer frame, boolean droppable) {
+      int length = frame.memory().remaining();
+      if (!this.admit(length)) {
+         frame.release();
+         return;
+      }
+
+      this.chunks.add(frame);
+      this.queuedBytes += length;
+      this.addFrame(length, droppable);
+      this.writeNow();
+   }
+
+   /**
+    * Appends a frame header for a payload of the given length.
+    *
+    * @return The length of the header
+    */
+   private int appendHeader(int packetId, int length) {
+      int headerEnd = PNFrameEncoder.writeHeader(this.headerScratch, 0, packetId, length);
+      this.append(this.headerScratch, 0, headerEnd);
+      return headerEnd;
+   }
+
+   /**
+    * Copies the bytes onto the back of the queue, filling the back chunk before taking new ones from the pool.
+    */
+   private void append(byte[] bytes, int offset, int length) {
+      this.queuedBytes += length;
+
+      while (length > 0) {
+         ByteBuffer memory = this.openBack(length, false);
+         int copyLength = Math.min(length, memory.remaining());
+         memory.put(bytes, offset, copyLength);
+         this.closeBack(memory);
+
+         offset += copyLength;
+         length -= copyLength;
+      }
+   }
+
+   /**
+    * Copies the bytes between the buffer's position and limit onto the back of the queue, moving its position.
+    */
+   private void append(ByteBuffer bytes) {
+      int length = bytes.remaining();
+      this.queuedBytes += length;
+
+      int bytesLimit = bytes.limit();
+      while (length > 0) {
+         ByteBuffer memory = this.openBack(length, false);
+         int copyLength = Math.min(length, memory.remaining());
+         bytes.limit(bytes.position() + copyLength);
+         memory.put(bytes);
+         bytes.limit(bytesLimit);
+         this.closeBack(memory);
+
+         length -= copyLength;
+      }
+   }
+
+   /**
+    * Opens up the free space after the back chunk's unsent bytes for copying into, taking a new chunk from the pool if
+    * there is none. {@link #closeBack(ByteBuffer)} must follow.
+    *
+    * @param length     The number of bytes left to append, to size a new chunk by
+    * @param contiguous Whether all of them must fit in the back chunk, for encoding in place
+    */
+   private ByteBuffer openBack(int length, boolean contiguous) {
+      PNBuffer back = this.chunks.peekLast();
+      if (back == null || back.isReadOnly() || back.memory().limit() == back.capacity() ||
+         (contiguous && back.capacity() - back.memory().limit() < length) ||
+         (this.queuedFile != null && this.chunks.size() == this.chunksBeforeFile)) {
+         // Nothing may be appended to a chunk that a file chunk is queued behind
+         // Size the new chunk for what is left so a large payload does not turn into many small chunks
+         back = this.pool.acquire(Math.min(Math.max(length, CHUNK_SIZE), PNBufferPool.MAX_SIZE));
+         back.memory().limit(0);
+         this.chunks.add(back);
+      }
+
+      ByteBuffer memory = back.memory();
+      this.backUnsentStart = memory.position();
+      memory.position(memory.limit()).limit(memory.capacity());
+      return memory;
+   }
+
+   /**
+    * Closes the back chunk's window back over its unsent bytes, the ones just copied in included.
+    */
+   private void closeBack(ByteBuffer memory) {
+      memory.limit(memory.position()).position(this.backUnsentStart);
    }
 
    public synchronized String getErrorMessage() {
@@ -143,7 +1219,7 @@ public class PNOutputStreamWriter implements Runnable {
    }
 
    /**
-    * Closes the output stream writer and the underlying {@link OutputStream}
+    * Closes the output stream writer and the underlying {@link SocketChannel}
     */
    public void close() {
       close(true);
@@ -155,9 +1231,9 @@ public class PNOutputStreamWriter implements Runnable {
     * Allows you to specify whether or not to close the underlying stream, which may prevent from closing the
     * underlying stream more than once in case it will be closed by a subsequent call.
     *
-    * @param closeStream Set true to close the underlying {@link OutputStream}. Set false to not close the underlying
-    *                    {@link OutputStream}, but perform the rest of the close operation. Setting this to false is
-    *                    useful in case you know the {@link OutputStream} will be closed by a subsequent.
+    * @param closeStream Set true to close the underlying {@link SocketChannel}. Set false to not close the underlying
+    *                    {@link SocketChannel}, but perform the rest of the close operation. Setting this to false is
+    *                    useful in case you know the {@link SocketChannel} will be closed by a subsequent.
     */
    public synchronized void close(boolean closeStream) {
       synchronized (closeLock) {
@@ -166,17 +1242,204 @@ public class PNOutputStreamWriter implements Runnable {
 
          if (closeStream == true) {
             try {
-               this.out.close();
+               this.channel.close();
             }
             catch (IOException e) {
                PN.error(e, this, "Failed to close output stream.");
             }
          }
 
+         // Nothing queued can be sent any more
+         PNBuffer chunk;
+         while ((chunk = this.chunks.poll()) != null) {
+            chunk.release();
+         }
+         Bulk pending;
+         while ((pending = this.bulk.poll()) != null) {
+            pending.abort();
+         }
+         if (this.queuedFile != null) {
+            this.queuedFile.abort();
+            this.queuedFile = null;
+         }
+         this.queuedBytes = 0;
+         this.frameCount = 0;
+         this.backlogBytes = 0;
+
+         // Blocked producers have nothing left to wait for
+         this.notifyAll();
+
          if (this.onClosed != null) {
             this.onClosed.run();
             this.onClosed = null;
          }
       }
    }
+
+   public interface WritabilityListener {
+      void writabilityChanged(boolean writable);
+   }
+
+   public interface FlushListener {
+      void flushing();
+   }
+
+   /**
+    * Data sent a piece at a time, taking turns with everything else being sent that way
+    */
+   private abstract class Bulk {
+      /**
+       * @return Returns false if the next piece has to wait its turn
+       */
+      boolean isReady() {
+         return true;
+      }
+
+      /**
+       * @return The number of bytes of data in the next piece
+       */
+      abstract int nextLength();
+
+      /**
+       * Appends the next piece to the queue.
+       *
+       * @return Returns true if there are more pieces to come
+       */
+      abstract boolean queueNext();
+
+      /**
+       * Gives up on sending the rest.
+       */
+      abstract void abort();
+   }
+
+   /**
+    * A message being sent in fragments. Its unsent data lies between its position and limit.
+    */
+   private class Transfer extends Bulk {
+      private final int id;
+      private final int packetId;
+      private final PNBuffer data;
+
+      private Transfer(int id, int packetId, PNBuffer data) {
+         this.id = id;
+         this.packetId = packetId;
+         this.data = data;
+      }
+
+      @Override
+      int nextLength() {
+         return Math.min(this.data.memory().remaining(), PNProtocol.FRAGMENT_DATA_SIZE);
+      }
+
+      @Override
+      boolean queueNext() {
+         ByteBuffer memory = this.data.memory();
+         int offset = memory.position();
+         int length = this.nextLength();
+
+         // Fragment header, then the frame header around it
+         byte[] scratch = PNOutputStreamWriter.this.bulkScratch;
+         int fragmentHeaderEnd = PNVarInt.write(scratch, 0, this.id);
+         fragmentHeaderEnd = PNVarInt.write(scratch, fragmentHeaderEnd, offset);
+         if (offset == 0) {
+            fragmentHeaderEnd = PNVarInt.write(scratch, fragmentHeaderEnd, this.packetId);
+            fragmentHeaderEnd = PNVarInt.write(scratch, fragmentHeaderEnd, memory.limit());
+         }
+         int headerLength = appendHeader(PNProtocol.FRAGMENT, fragmentHeaderEnd + length);
+         append(scratch, 0, fragmentHeaderEnd);
+
+         int limit = memory.limit();
+         memory.limit(offset + length);
+         append(memory);
+         memory.limit(limit);
+         addFrame(headerLength + fragmentHeaderEnd + length, false);
+         fragmentBytes -= length;
+
+         if (memory.hasRemaining()) return true;
+         this.data.release();
+         return false;
+      }
+
+      @Override
+      void abort() {
+         fragmentBytes -= this.data.memory().remaining();
+         this.data.release();
+      }
+   }
+
+   /**
+    * Part of a file being sent in chunks. Bytes from position to end are still to go.
+    */
+   private class FileStream extends Bulk {
+      private final int id;
+      private final FileChannel file;
+      private long position;
+      private final long end;
+      private final CompletableFuture<Void> future;
+
+      private FileStream(int id, FileChannel file, long position, long end, CompletableFuture<Void> future) {
+         this.id = id;
+         this.file = file;
+         this.position = position;
+         this.end = end;
+         this.future = future;
+      }
+
+      @Override
+      boolean isReady() {
+         return queuedFile == null;
+      }
+
+      @Override
+      int nextLength() {
+         return (int) Math.min(this.end - this.position, FILE_CHUNK_SIZE);
+      }
+
+      @Override
+      boolean queueNext() {
+         int length = this.nextLength();
+
+         byte[] scratch = PNOutputStreamWriter.this.bulkScratch;
+         int chunkHeaderEnd = PNVarInt.write(scratch, 0, this.id);
+         for (int shift = 56; shift >= 0; shift -= 8) {
+            scratch[chunkHeaderEnd++] = (byte) (this.position >>> shift);
+         }
+         int headerLength = appendHeader(PNProtocol.FILE_CHUNK, chunkHeaderEnd + length);
+         append(scratch, 0, chunkHeaderEnd);
+         addFrame(headerLength + chunkHeaderEnd + length, false);
+
+         // The data follows straight from the file once the chunks before it are written
+         queuedFile = this;
+         queuedFileRemaining = length;
+         chunksBeforeFile = chunks.size();
+         queuedBytes += length;
+
+         return this.position + length < this.end;
+      }
+
+      @Override
+      void abort() {
+         this.fail(new IOException("Writer closed"));
+      }
+
+      private void finish() {
+         this.closeFile();
+         this.future.complete(null);
+      }
+
+      private void fail(Throwable cause) {
+         this.closeFile();
+         this.future.completeExceptionally(cause);
+      }
+
+      private void closeFile() {
+         try {
+            this.file.close();
+         }
+         catch (IOException e) {
+            PN.error(e, PNOutputStreamWriter.this, "Failed to close file after sending it.");
+         }
+      }
+   }
 }
@@ -0,0 +1,16 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+
+public interface PNPacketHandler {
+   /**
+    * Handles one complete packet.
+    * <p>
+    * The payload is a window straight into the receive buffer, from its position to its limit. It is only valid for
+    * the duration of the call; copy out anything that has to outlive it.
+    *
+    * @param packetId The id the sender wrote the packet with
+    * @param payload  The packet's payload
+    */
+   void handle(int packetId, ByteBuffer payload);
+}
@@ -0,0 +1,245 @@
+package com.medleystudios.pn.io;
+
+import com.medleystudios.pn.PN;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds received packets until another thread is ready for them, such as a simulation that handles its input once
+ * per tick.
+ * <p>
+ * Set as a reader's {@link PNPacketHandler}, it copies each packet into a pooled buffer as it arrives. A later
+ * {@link #drain(PNPacketHandler)} hands the batch to the consumer while new packets collect in a second buffer, so
+ * the event loop never waits on the consumer. The two buffers are reused, so a steady stream of packets allocates
+ * nothing.
+ * <p>
+ * The queue is full once it holds {@link #setMaxBytes(int) max bytes}, which its {@link FullListener} hears about so
+ * that reading can be paused until the next drain. A reader only stops between reads, so packets are still taken past
+ * that point; they are dropped only beyond twice the limit, which is also what keeps datagrams, which cannot be
+ * paused, in check. A single packet larger than that, such as a message put together from fragments, is still taken
+ * while the queue is empty.
+ */
+public class PNPacketQueue implements PNPacketHandler {
+
+   /**
+    * The size of each packet's entry header: the packet id and the payload length
+    */
+   private static final int ENTRY_HEADER_SIZE = 8;
+
+   private static final int INITIAL_CAPACITY = 1024;
+
+   /**
+    * The default number of bytes of packets the queue holds before it is full
+    */
+   public static final int DEFAULT_MAX_BYTES = 1024 * 1024;
+
+   private final PNBufferPool pool;
+
+   /**
+    * Packets received since the last drain, between index 0 and the position. Null until the first packet.
+    */
+   private PNBuffer incoming = null;
+
+   /**
+    * The buffer of the previous drain, kept to become the next incoming buffer. Null while a drain is using it.
+    */
+   private PNBuffer spare = null;
+
+   private volatile int count = 0;
+   private boolean closed = false;
+
+   private int maxBytes = DEFAULT_MAX_BYTES;
+   private boolean full = false;
+   private FullListener fullListener = null;
+   private volatile long droppedPackets = 0;
+
+   public PNPacketQueue(PNBufferPool pool) {
+      this.pool = pool;
+   }
+
+   /**
+    * Copies the packet onto the queue. Runs on the reader's event loop.
+    */
+   @Override
+   public void handle(int packetId, ByteBuffer payload) {
+      FullListener listener;
+      synchronized (this) {
+         if (this.closed) return;
+
+         int length = payload.remaining();
+         int queued = this.incoming != null ? this.incoming.memory().position() : 0;
+         if (queued > 0 && (long) queued + ENTRY_HEADER_SIZE + length > 2L * this.maxBytes) {
+            this.droppedPackets++;
+            if (PN.isDebugEnabled()) {
+               PN.debug(this, "Dropping packet " + packetId + ", queue is over twice its limit");
+            }
+            return;
+         }
+
+         this.ensureWritable(ENTRY_HEADER_SIZE + length);
+
+         ByteBuffer memory = this.incoming.memory();
+         memory.putInt(packetId);
+         memory.putInt(length);
+         memory.put(payload);
+         this.count++;
+
+         if (this.full || memory.position() < this.maxBytes) return;
+         this.full = true;
+         listener = this.fullListener;
+      }
+      this.notifyFull(listener, true);
+   }
+
+   /**
+    * Sets the listener told when the queue becomes full, and when a drain empties it again. It is called on the
+    * thread that filled or drained the queue, without the queue locked, so when packets arrive on more than one thread,
+    * as datagrams do, the calls can overtake each other. A listener that must end up in step should act on
+    * {@link #isFull()} rather than on the value it is passed.
+    */
+   public synchronized void setFullListener(FullListener listener) {
+      this.fullListener = listener;
+   }
+
+   public synchronized void setMaxBytes(int maxBytes) {
+      if (maxBytes <= 0) {
+         throw new IllegalArgumentException("Max bytes must be positive: " + maxBytes);
+      }
+      this.maxBytes = maxBytes;
+   }
+
+   public synchronized int getMaxBytes() {
+      return this.maxBytes;
+   }
+
+   public synchronized boolean isFull() {
+      return this.full;
+   }
+
+   /**
+    * @return The number of packets dropped for arriving when the queue was over twice its limit
+    */
+   public long getDroppedPackets() {
+      return this.droppedPackets;
+   }
+
+   private void notifyFull(FullListener listener, boolean full) {
+      if (listener == null) return;
+      try {
+         listener.fullChanged(full);
+      }
+      catch (RuntimeException e) {
+         PN.error(e, this, "Full listener failed");
+      }
+   }
+
+   private void ensureWritable(int length) {
+      if (this.incoming == null) {
+         if (this.spare != null && this.spare.capacity() >= length) {
+            this.incoming = this.spare;
+            this.spare = null;
+         }
+         else {
+            this.incoming = this.pool.acquire(Math.max(length, INITIAL_CAPACITY));
+         }
+         return;
+      }
+
+      ByteBuffer memory = this.incoming.memory();
+      if (memory.remaining() >= length) return;
+
+      PNBuffer grown = this.pool.acquire(Math.max(memory.position() + length, memory.capacity() * 2));
+      memory.flip();
+      grown.memory().put(memory);
+      this.incoming.release();
+      this.incoming = grown;
+   }
+
+   /**
+    * @return The number of packets waiting to be drained
+    */
+   public int size() {
+      return this.count;
+   }
+
+   /**
+    * Hands every queued packet to the handler, in the order received, on the calling thread. Packets that arrive
+    * during the drain wait for the next one. Like a reader, the payload passed to the handler is only valid until it
+    * returns.
+    *
+    * @return The number of packets handed out
+    */
+   public int drain(PNPacketHandler handler) {
+      PNBuffer batch;
+      int count;
+      FullListener listener = null;
+      synchronized (this) {
+         if (this.count == 0) return 0;
+         batch = this.incoming;
+         count = this.count;
+         this.incoming = null;
+         this.count = 0;
+         if (this.full) {
+            this.full = false;
+            listener = this.fullListener;
+         }
+      }
+      this.notifyFull(listener, false);
+
+      ByteBuffer memory = batch.memory();
+      int end = memory.position();
+      int position = 0;
+      try {
+         while (position < end) {
+            // The previous packet's window narrowed the limit
+            memory.limit(end);
+            int packetId = memory.getInt(position);
+            int length = memory.getInt(position + 4);
+            int payloadStart = position + ENTRY_HEADER_SIZE;
+            position = payloadStart + length;
+
+            memory.limit(position).position(payloadStart);
+            try {
+               handler.handle(packetId, memory);
+            }
+            catch (RuntimeException e) {
+               PN.error(e, this, "Packet handler failed on packet " + packetId);
+            }
+         }
+      }
+      finally {
+         memory.clear();
+         synchronized (this) {
+            if (this.closed || this.spare != null) {
+               batch.release();
+            }
+            else {
+               this.spare = batch;
+            }
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Stops taking packets. Packets already queued can still be drained once, after which their buffer goes back to the
+    * pool.
+    */
+   public synchronized void close() {
+      if (this.closed) return;
+      this.closed = true;
+
+      if (this.spare != null) {
+         this.spare.release();
+         this.spare = null;
+      }
+      if (this.incoming != null && this.count == 0) {
+         this.incoming.release();
+         this.incoming = null;
+      }
+   }
+
+   public interface FullListener {
+      void fullChanged(boolean full);
+   }
+}
@@ -0,0 +1,36 @@
+package com.medleystudios.pn.io;
+
+/**
+ * How much a message queued on a {@link PNOutboundScheduler} matters, from most to least. When a connection's budget
+ * runs short, the less important classes wait for the more important ones.
+ */
+public enum PNPriority {
+   /**
+    * Sent on the next tick whatever the budget, such as the result of a player's action
+    */
+   CRITICAL,
+
+   /**
+    * Gameplay state the client needs promptly
+    */
+   HIGH,
+
+   /**
+    * Regular updates, such as entity snapshots
+    */
+   NORMAL,
+
+   /**
+    * Chatter that can wait, such as chat, scores and cosmetics
+    */
+   LOW;
+
+   private static final PNPriority[] values = values();
+
+   /**
+    * @return The next more important class, or this one if there is none
+    */
+   public PNPriority raise() {
+      return this == CRITICAL ? this : values[this.ordinal() - 1];
+   }
+}
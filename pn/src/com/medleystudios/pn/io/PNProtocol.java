@@ -0,0 +1,75 @@
+package com.medleystudios.pn.io;
+
+/**
+ * Packet ids and datagram layouts PlexNet uses for its own control traffic.
+ * <p>
+ * Packet ids from {@link #CONTROL_ID_START} to {@link #CONTROL_ID_END} are reserved. A reader hands packets with
+ * these ids to the connection instead of the application's packet handler.
+ */
+public class PNProtocol {
+
+   public static final int CONTROL_ID_START = 0x3FF0;
+   public static final int CONTROL_ID_END = 0x3FFF;
+
+   /**
+    * Sent by the server over TCP to offer a datagram channel. Payload: the session token (8 bytes) and the server's
+    * UDP port (varint).
+    */
+   public static final int UDP_OFFER = 0x3FF0;
+
+   /**
+    * A piece of a message too large to send in one go. Payload: the transfer id (varint) and the offset of the piece
+    * in the message (varint); the first piece adds the message's packet id (varint) and total length (varint). The
+    * rest is the piece's data. Pieces of a transfer arrive in order but may be interleaved with other packets.
+    */
+   public static final int FRAGMENT = 0x3FF1;
+
+   /**
+    * A chunk of a file being sent. Payload: the stream id (varint) and the offset of the chunk in the file (8 bytes),
+    * then the chunk's data. Chunks of a stream arrive in order but may be interleaved with other packets.
+    */
+   public static final int FILE_CHUNK = 0x3FF2;
+
+   /**
+    * Asks the peer to answer with a {@link #PONG}, keeping an idle connection alive and measuring the round trip.
+    * Payload: the sender's {@link System#nanoTime()} (8 bytes), which the pong echoes back.
+    */
+   public static final int PING = 0x3FF3;
+   public static final int PONG = 0x3FF4;
+
+   /**
+    * The most message data in a single fragment, so that a fragment's frame fits in one Ethernet-sized TCP segment
+    */
+   public static final int FRAGMENT_DATA_SIZE = 1400;
+
+   /**
+    * The first byte of every datagram says what kind it is
+    */
+   public static final byte DATAGRAM_HELLO = 1;     // client to server: the session token (8 bytes)
+   public static final byte DATAGRAM_WELCOME = 2;   // server to client: the session token (8 bytes)
+   public static final byte DATAGRAM_DATA = 3;      // either way: see below
+   public static final byte DATAGRAM_ACK = 4;       // either way: ack (2 bytes), ack bits (4 bytes)
+
+   /**
+    * A DATA datagram starts with its sequence (2 bytes), the newest sequence received from the peer (2 bytes) and a
+    * bit for each of the 32 sequences before that saying whether it was received too (4 bytes). Then comes the
+    * {@link PNDeliveryMode} ordinal (1 byte), a message id (2 bytes) for every mode but UNRELIABLE, the packet id
+    * (varint) and the payload.
+    */
+   public static final int DATAGRAM_DATA_HEADER_SIZE = 1 + 2 + 2 + 4 + 1 + 2 + PNVarInt.MAX_BYTES;
+
+   /**
+    * The largest datagram we send. Small enough to get through any path without IP fragmentation.
+    */
+   public static final int MAX_DATAGRAM_SIZE = 1200;
+
+   private PNProtocol() {
+   }
+
+   /**
+    * @return Returns true if the packet id is reserved for control packets
+    */
+   public static boolean isControl(int packetId) {
+      return packetId >= CONTROL_ID_START && packetId <= CONTROL_ID_END;
+   }
+}
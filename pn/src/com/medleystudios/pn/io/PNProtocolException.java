@@ -0,0 +1,16 @@
+package com.medleystudios.pn.io;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a peer sends data that does not follow the PlexNet wire format. The connection cannot recover from
+ * this and has to be closed.
+ */
+public class PNProtocolException extends IOException {
+
+   private static final long serialVersionUID = 1L;
+
+   public PNProtocolException(String message) {
+      super(message);
+   }
+}
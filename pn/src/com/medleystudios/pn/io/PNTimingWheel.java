@@ -0,0 +1,202 @@
+package com.medleystudios.pn.io;
+
+import com.medleystudios.pn.PN;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A hashed timing wheel for the many coarse timeouts of an event loop's connections, such as idle timeouts.
+ * <p>
+ * Time is cut into ticks and each timeout hangs in the slot of the tick it is due, in a doubly linked list, so
+ * scheduling and cancelling are constant time however many timeouts there are. Each tick the wheel looks at the
+ * timeouts in one slot only, expiring those that are due and leaving those a rotation or more away. Timeouts fire up
+ * to a tick late, never early.
+ * <p>
+ * A {@link Timeout} is created once and can be scheduled again and again, so rearming one allocates nothing. The
+ * wheel only advances while it holds timeouts, by one task on its event loop per tick.
+ * <p>
+ * Not thread-safe. Owned by a {@link PNEventLoop}; only use it on that loop's thread.
+ */
+public class PNTimingWheel {
+
+   public static final long DEFAULT_TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+   public static final int DEFAULT_SLOTS = 512;
+
+   private final PNEventLoop eventLoop;
+   private final long tickNanos;
+
+   /**
+    * The first timeout of each slot's list
+    */
+   private final Timeout[] slots;
+   private final int mask;
+
+   private final long startNanos;
+
+   /**
+    * The last tick the wheel has processed
+    */
+   private long tick = 0;
+   private int size = 0;
+
+   private boolean advanceScheduled = false;
+   private final Runnable advanceTask = this::advance;
+
+   /**
+    * @param tickNanos The length of a tick, the wheel's resolution
+    * @param slots     The number of slots, rounded up to a power of two. Timeouts further away than this many ticks
+    *                  are passed over once per rotation until they are due.
+    */
+   public PNTimingWheel(PNEventLoop eventLoop, long tickNanos, int slots) {
+      if (tickNanos <= 0 || slots <= 0) {
+         throw new IllegalArgumentException("Tick and slots must be positive: " + tickNanos + ", " + slots);
+      }
+      this.eventLoop = eventLoop;
+      this.tickNanos = tickNanos;
+
+      int length = Integer.highestOneBit(slots);
+      if (length < slots) {
+         length <<= 1;
+      }
+      this.slots = new Timeout[length];
+      this.mask = length - 1;
+      this.startNanos = System.nanoTime();
+   }
+
+   /**
+    * Creates a timeout that runs the task on the event loop each time it expires. It is not scheduled yet.
+    */
+   public Timeout newTimeout(Runnable task) {
+      return new Timeout(task);
+   }
+
+   /**
+    * Schedules the timeout to expire after the delay, rescheduling it if it already was.
+    */
+   public void schedule(Timeout timeout, long delay, TimeUnit unit) {
+      if (timeout.isScheduled()) {
+         this.unlink(timeout);
+      }
+
+      long now = System.nanoTime();
+      long elapsedTicks = (now - this.startNanos) / this.tickNanos;
+
+      // Round up, so a timeout never fires early
+      long deadline = now - this.startNanos + unit.toNanos(delay);
+      long deadlineTick = Math.max((deadline + this.tickNanos - 1) / this.tickNanos,
+         Math.max(elapsedTicks, this.tick) + 1);
+
+      timeout.deadlineTick = deadlineTick;
+      timeout.slot = (int) (deadlineTick & this.mask);
+      timeout.next = this.slots[timeout.slot];
+      if (timeout.next != null) {
+         timeout.next.prev = timeout;
+      }
+      this.slots[timeout.slot] = timeout;
+      this.size++;
+
+      this.scheduleAdvance();
+   }
+
+   /**
+    * @return The number of timeouts scheduled
+    */
+   public int size() {
+      return this.size;
+   }
+
+   private void unlink(Timeout timeout) {
+      if (timeout.prev != null) {
+         timeout.prev.next = timeout.next;
+      }
+      else {
+         this.slots[timeout.slot] = timeout.next;
+      }
+      if (timeout.next != null) {
+         timeout.next.prev = timeout.prev;
+      }
+      timeout.prev = null;
+      timeout.next = null;
+      timeout.slot = -1;
+      this.size--;
+   }
+
+   private void scheduleAdvance() {
+      if (this.advanceScheduled || this.size == 0) return;
+      this.advanceScheduled = true;
+
+      long nextTickNanos = this.startNanos + (this.tick + 1) * this.tickNanos;
+      this.eventLoop.schedule(this.advanceTask, Math.max(nextTickNanos - System.nanoTime(), 0),
+         TimeUnit.NANOSECONDS);
+   }
+
+   /**
+    * Expires whatever is due in the ticks that have passed. Runs on the event loop.
+    */
+   private void advance() {
+      this.advanceScheduled = false;
+
+      long target = (System.nanoTime() - this.startNanos) / this.tickNanos;
+      // After a stall, one rotation visits every slot, which is all that is needed to catch up
+      if (target - this.tick > this.slots.length) {
+         this.tick = target - this.slots.length;
+      }
+
+      while (this.tick < target) {
+         this.tick++;
+         this.expire((int) (this.tick & this.mask));
+      }
+
+      this.scheduleAdvance();
+   }
+
+   private void expire(int slot) {
+      Timeout timeout = this.slots[slot];
+      while (timeout != null) {
+         Timeout next = timeout.next;
+         if (timeout.deadlineTick <= this.tick) {
+            this.unlink(timeout);
+            try {
+               // The task may reschedule this timeout or cancel others, which is why next was read first
+               timeout.task.run();
+            }
+            catch (RuntimeException e) {
+               PN.error(e, this, "Timeout task failed!");
+            }
+            // A cancelled next timeout has been unlinked, so start over from the slot's head
+            if (next != null && next.slot != slot) {
+               next = this.slots[slot];
+            }
+         }
+         timeout = next;
+      }
+   }
+
+   @Override
+   public String toString() {
+      return "PNTimingWheel[tick: " + TimeUnit.NANOSECONDS.toMillis(this.tickNanos) + "ms, slots: " +
+         this.slots.length + ", timeouts: " + this.size + "]";
+   }
+
+   public class Timeout {
+      private final Runnable task;
+      private long deadlineTick;
+      private int slot = -1;
+      private Timeout prev;
+      private Timeout next;
+
+      private Timeout(Runnable task) {
+         this.task = task;
+      }
+
+      public boolean isScheduled() {
+         return this.slot >= 0;
+      }
+
+      public void cancel() {
+         if (this.isScheduled()) {
+            unlink(this);
+         }
+      }
+   }
+}
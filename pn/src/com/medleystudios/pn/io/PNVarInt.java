@@ -0,0 +1,111 @@
+package com.medleystudios.pn.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Unsigned LEB128 variable-length integers. Small values, which is what lengths and packet ids almost always are,
+ * take a single byte.
+ */
+public class PNVarInt {
+
+   /**
+    * The most bytes a 32-bit varint can take
+    */
+   public static final int MAX_BYTES = 5;
+
+   /**
+    * Returned by {@link #peek(ByteBuffer, int, int)} when the varint continues past the limit
+    */
+   public static final long INCOMPLETE = -1L;
+
+   /**
+    * Returned by {@link #peek(ByteBuffer, int, int)} when the varint is longer than {@link #MAX_BYTES} or does not fit
+    * in 32 bits
+    */
+   public static final long MALFORMED = -2L;
+
+   private PNVarInt() {
+   }
+
+   /**
+    * @return The number of bytes needed to encode the value
+    */
+   public static int size(int value) {
+      if ((value & (~0 << 7)) == 0) return 1;
+      if ((value & (~0 << 14)) == 0) return 2;
+      if ((value & (~0 << 21)) == 0) return 3;
+      if ((value & (~0 << 28)) == 0) return 4;
+      return 5;
+   }
+
+   /**
+    * Encodes the value into the array.
+    *
+    * @return The index just past the last byte written
+    */
+   public static int write(byte[] dst, int offset, int value) {
+      while ((value & ~0x7F) != 0) {
+         dst[offset++] = (byte)((value & 0x7F) | 0x80);
+         value >>>= 7;
+      }
+      dst[offset++] = (byte)value;
+      return offset;
+   }
+
+   /**
+    * Encodes the value at the buffer's position, advancing it.
+    */
+   public static void write(ByteBuffer dst, int value) {
+      while ((value & ~0x7F) != 0) {
+         dst.put((byte)((value & 0x7F) | 0x80));
+         value >>>= 7;
+      }
+      dst.put((byte)value);
+   }
+
+   /**
+    * Decodes a varint at the buffer's position, advancing it.
+    *
+    * @throws PNProtocolException If the varint is malformed or runs past the buffer's limit
+    */
+   public static int read(ByteBuffer src) throws PNProtocolException {
+      long peeked = peek(src, src.position(), src.limit());
+      if (peeked < 0) {
+         throw new PNProtocolException(peeked == INCOMPLETE ? "Truncated varint" : "Malformed varint");
+      }
+      src.position(src.position() + sizeOf(peeked));
+      return valueOf(peeked);
+   }
+
+   /**
+    * Decodes a varint at an absolute index without moving the buffer's position.
+    *
+    * @param index The index of the first byte
+    * @param limit The index the varint must end before
+    * @return {@link #INCOMPLETE}, {@link #MALFORMED}, or the value and its encoded size packed into a long, which
+    * {@link #valueOf(long)} and {@link #sizeOf(long)} unpack
+    */
+   public static long peek(ByteBuffer src, int index, int limit) {
+      int value = 0;
+      for (int i = 0; i < MAX_BYTES; i++) {
+         if (index + i >= limit) return INCOMPLETE;
+
+         byte b = src.get(index + i);
+         // The last byte only has room for the top 4 bits
+         if (i == MAX_BYTES - 1 && (b & 0xF0) != 0) return MALFORMED;
+         value |= (b & 0x7F) << (7 * i);
+         if ((b & 0x80) == 0) {
+            return ((long)(i + 1) << 32) | (value & 0xFFFFFFFFL);
+         }
+      }
+      return MALFORMED;
+   }
+
+   public static int valueOf(long peeked) {
+      return (int)peeked;
+   }
+
+   public static int sizeOf(long peeked) {
+      return (int)(peeked >>> 32);
+   }
+}
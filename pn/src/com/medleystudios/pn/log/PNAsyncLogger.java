@@ -0,0 +1,308 @@
+package com.medleystudios.pn.log;
+
+import com.medleystudios.pn.PN;
+
+import java.io.IOException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Moves the cost of writing log lines off the threads that log them.
+ * <p>
+ * Callers claim a slot in a bounded ring with a single CAS and fill it in; a single writer thread drains the ring,
+ * formats the lines and hands them to the {@link PNLogSink}s in batches. The slots are preallocated, so logging
+ * allocates nothing beyond the message itself. If the ring is full the line is dropped and counted rather than
+ * making the caller wait.
+ */
+public class PNAsyncLogger implements Runnable {
+
+   /**
+    * The most lines formatted into one batch before it is handed to the sinks
+    */
+   private static final int MAX_BATCH = 256;
+
+   private static final long IDLE_PARK_NANOS = 50_000_000L;
+
+   /**
+    * How long {@link #flush()} waits for the writer before looking again, should a wakeup be missed
+    */
+   private static final long FLUSH_WAIT_MILLIS = 10;
+
+   private final int capacity;
+   private final int mask;
+
+   // The ring. A slot at index i is free for the producer at position p when sequences[i] == p, and holds a
+   // published line for the consumer at position p when sequences[i] == p + 1.
+   private final AtomicLongArray sequences;
+   private final long[] times;
+   private final String[] tags;
+   private final String[] sources;
+   private final String[] messages;
+   private final Throwable[] throwables;
+
+   private final AtomicLong tail;
+   private long head = 0;
+
+   private final AtomicLong dropped;
+   private final CopyOnWriteArrayList<PNLogSink> sinks;
+   private final PNTimestampFormatter timestampFormatter;
+   private final StringBuilder batch;
+
+   private final Thread thread;
+   private volatile boolean writerParked = false;
+   private volatile boolean closed = false;
+
+   /**
+    * The position the writer has written out everything before, for {@link #flush()}
+    */
+   private volatile long written = 0;
+   private final AtomicInteger flushWaiters = new AtomicInteger();
+   private final Object flushLock = new Object();
+
+   /**
+    * @param capacity The number of lines that can be waiting at once. Rounded up to a power of two.
+    */
+   public PNAsyncLogger(int capacity) {
+      int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+      this.capacity = size;
+      this.mask = size - 1;
+
+      this.sequences = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+         this.sequences.set(i, i);
+      }
+      this.times = new long[size];
+      this.tags = new String[size];
+      this.sources = new String[size];
+      this.messages = new String[size];
+      this.throwables = new Throwable[size];
+
+      this.tail = new AtomicLong(0);
+      this.dropped = new AtomicLong(0);
+      this.sinks = new CopyOnWriteArrayList<>();
+      this.timestampFormatter = new PNTimestampFormatter();
+      this.batch = new StringBuilder(MAX_BATCH * 128);
+
+      this.thread = new Thread(this, "pn-log-writer");
+      this.thread.setDaemon(true);
+      this.thread.start();
+   }
+
+   public void addSink(PNLogSink sink) {
+      this.sinks.add(sink);
+   }
+
+   public void removeSink(PNLogSink sink) {
+      this.sinks.remove(sink);
+   }
+
+   /**
+    * Queues a line without blocking.
+    *
+    * @param tag       The line's tag, e.g. LOG or ERROR
+    * @param source    The name of whatever logged the line. May be null.
+    * @param message   The message
+    * @param throwable A throwable whose stack trace follows the line. May be null.
+    * @return True if the line was queued, false if it was dropped because the ring is full
+    */
+   public boolean log(String tag, String source, String message, Throwable throwable) {
+      long time = System.currentTimeMillis();
+
+      long position = this.tail.get();
+      while (true) {
+         int index = (int)position & this.mask;
+         long diff = this.sequences.get(index) - position;
+
+         if (diff == 0) {
+            if (this.tail.compareAndSet(position, position + 1)) break;
+            position = this.tail.get();
+         }
+         else if (diff < 0) {
+            // The writer has not freed this slot from the previous lap yet, the ring is full
+            this.dropped.incrementAndGet();
+            return false;
+         }
+         else {
+            position = this.tail.get();
+         }
+      }
+
+      int index = (int)position & this.mask;
+      this.times[index] = time;
+      this.tags[index] = tag;
+      this.sources[index] = source;
+      this.messages[index] = message;
+      this.throwables[index] = throwable;
+      // A full volatile store, so the read of writerParked below cannot be ordered before it. Otherwise the writer
+      // could park without seeing this line while we miss that it parked.
+      this.sequences.set(index, position + 1);
+
+      if (this.writerParked) {
+         LockSupport.unpark(this.thread);
+      }
+      return true;
+   }
+
+   @Override
+   public void run() {
+      while (!this.closed) {
+         boolean wrote = this.drain();
+         this.written = this.head;
+         if (this.flushWaiters.get() > 0) {
+            synchronized (this.flushLock) {
+               this.flushLock.notifyAll();
+            }
+         }
+         if (!wrote) {
+            this.writerParked = true;
+            // Check again now that producers can see we are parked, otherwise we could miss their unpark
+            if (!this.hasPending()) {
+               LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            this.writerParked = false;
+         }
+      }
+      this.drain();
+      this.written = this.head;
+      this.closeSinks();
+   }
+
+   private boolean hasPending() {
+      return this.sequences.get((int)this.head & this.mask) == this.head + 1;
+   }
+
+   /**
+    * Writes out everything currently in the ring.
+    *
+    * @return True if anything was written
+    */
+   private boolean drain() {
+      boolean wrote = false;
+
+      while (true) {
+         int count = 0;
+         this.batch.setLength(0);
+
+         long droppedLines = this.dropped.getAndSet(0);
+         if (droppedLines > 0) {
+            this.batch.append("LOG: ");
+            this.timestampFormatter.format(System.currentTimeMillis(), this.batch);
+            this.batch.append(' ').append(getClass().getName()).append(" Dropped ").append(droppedLines)
+               .append(" log lines, the log ring was full\n");
+         }
+
+         while (count < MAX_BATCH && this.hasPending()) {
+            int index = (int)this.head & this.mask;
+            this.format(index);
+
+            this.tags[index] = null;
+            this.sources[index] = null;
+            this.messages[index] = null;
+            this.throwables[index] = null;
+            this.sequences.lazySet(index, this.head + this.capacity);
+            this.head++;
+            count++;
+         }
+
+         if (this.batch.length() == 0) return wrote;
+
+         this.writeBatch();
+         wrote = true;
+      }
+   }
+
+   private void format(int index) {
+      this.batch.append(this.tags[index]).append(": ");
+      this.timestampFormatter.format(this.times[index], this.batch);
+      this.batch.append(' ');
+      if (this.sources[index] != null) {
+         this.batch.append(this.sources[index]).append(' ');
+      }
+      this.batch.append(this.messages[index]).append('\n');
+
+      if (this.throwables[index] != null) {
+         this.batch.append(PN.getThrowableLog(this.throwables[index]));
+      }
+   }
+
+   private void writeBatch() {
+      for (PNLogSink sink : this.sinks) {
+         try {
+            sink.write(this.batch);
+            sink.flush();
+         }
+         catch (IOException e) {
+            // Nowhere to log this but the console itself
+            System.err.println("Log sink failed, removing it: " + sink);
+            e.printStackTrace();
+            this.sinks.remove(sink);
+         }
+      }
+   }
+
+   /**
+    * Waits until the writer has written out every line queued so far. Blocks the caller, so only use it when the
+    * process is about to stop.
+    */
+   public void flush() {
+      if (Thread.currentThread() == this.thread) return;
+
+      long target = this.tail.get();
+      this.flushWaiters.incrementAndGet();
+      try {
+         synchronized (this.flushLock) {
+            while (this.written < target && this.thread.isAlive()) {
+               LockSupport.unpark(this.thread);
+               this.flushLock.wait(FLUSH_WAIT_MILLIS);
+            }
+         }
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+      finally {
+         this.flushWaiters.decrementAndGet();
+      }
+   }
+
+   /**
+    * Writes out what is queued, then stops the writer thread and closes the sinks.
+    */
+   public void close() {
+      this.closed = true;
+      LockSupport.unpark(this.thread);
+      try {
+         this.thread.join(1000);
+      }
+      catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   private void closeSinks() {
+      for (PNLogSink sink : this.sinks) {
+         try {
+            sink.close();
+         }
+         catch (IOException e) {
+            System.err.println("Failed to close log sink " + sink);
+            e.printStackTrace();
+         }
+      }
+   }
+
+   /**
+    * @return The number of lines dropped because the ring was full, since the writer last reported them
+    */
+   public long getDroppedCount() {
+      return this.dropped.get();
+   }
+
+   @Override
+   public String toString() {
+      return "PNAsyncLogger[capacity: " + this.capacity + ", sinks: " + this.sinks + "]";
+   }
+}
@@ -0,0 +1,28 @@
+package com.medleystudios.pn.log;
+
+import java.io.PrintStream;
+
+/**
+ * Writes log lines to {@link System#out}.
+ * <p>
+ * We are not writing to System.err because its first println goes on the same line as System.out's current line in
+ * the console.
+ */
+public class PNConsoleLogSink implements PNLogSink {
+
+   @Override
+   public void write(CharSequence lines) {
+      PrintStream out = System.out;
+      out.append(lines);
+   }
+
+   @Override
+   public void flush() {
+      System.out.flush();
+   }
+
+   @Override
+   public void close() {
+      flush();
+   }
+}
@@ -0,0 +1,18 @@
+package com.medleystudios.pn.log;
+
+import java.io.IOException;
+
+/**
+ * Somewhere formatted log lines end up. Sinks are only ever called from the logger's writer thread, so they do not
+ * need to be thread-safe.
+ */
+public interface PNLogSink {
+   /**
+    * Writes a batch of complete, newline-terminated lines.
+    */
+   void write(CharSequence lines) throws IOException;
+
+   void flush() throws IOException;
+
+   void close() throws IOException;
+}
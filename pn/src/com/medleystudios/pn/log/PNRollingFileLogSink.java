@@ -0,0 +1,96 @@
+package com.medleystudios.pn.log;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Appends log lines to a file, rolling it over once it grows past a size limit. The current file is always at the
+ * given path; older files get ".1", ".2", ... appended, with ".1" being the most recent. Writes are buffered and only
+ * reach the file when the logger flushes a batch.
+ */
+public class PNRollingFileLogSink implements PNLogSink {
+
+   private static final int BUFFER_SIZE = 64 * 1024;
+
+   private final Path path;
+   private final long maxFileBytes;
+   private final int maxBackups;
+
+   private Writer writer;
+   private long fileBytes;
+
+   /**
+    * @param path         The file to log to. Its directory must exist.
+    * @param maxFileBytes The size at which the file is rolled over
+    * @param maxBackups   The number of rolled over files to keep
+    */
+   public PNRollingFileLogSink(Path path, long maxFileBytes, int maxBackups) throws IOException {
+      this.path = path;
+      this.maxFileBytes = maxFileBytes;
+      this.maxBackups = maxBackups;
+      this.open();
+   }
+
+   private void open() throws IOException {
+      this.fileBytes = Files.exists(this.path) ? Files.size(this.path) : 0;
+      this.writer = new BufferedWriter(new OutputStreamWriter(Files.newOutputStream(this.path,
+         StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8), BUFFER_SIZE);
+   }
+
+   @Override
+   public void write(CharSequence lines) throws IOException {
+      if (this.fileBytes >= this.maxFileBytes) {
+         this.roll();
+      }
+
+      this.writer.append(lines);
+      // Log lines are nearly always ASCII, so counting chars is close enough to count bytes
+      this.fileBytes += lines.length();
+   }
+
+   private void roll() throws IOException {
+      this.writer.close();
+
+      for (int i = this.maxBackups - 1; i >= 1; i--) {
+         Path from = backup(i);
+         if (Files.exists(from)) {
+            Files.move(from, backup(i + 1), StandardCopyOption.REPLACE_EXISTING);
+         }
+      }
+      if (this.maxBackups > 0) {
+         Files.move(this.path, backup(1), StandardCopyOption.REPLACE_EXISTING);
+      }
+      else {
+         Files.deleteIfExists(this.path);
+      }
+
+      this.open();
+   }
+
+   private Path backup(int index) {
+      return this.path.resolveSibling(this.path.getFileName() + "." + index);
+   }
+
+   @Override
+   public void flush() throws IOException {
+      this.writer.flush();
+   }
+
+   @Override
+   public void close() throws IOException {
+      this.writer.close();
+   }
+
+   @Override
+   public String toString() {
+      return "PNRollingFileLogSink[" + this.path + ", maxFileBytes: " + this.maxFileBytes + ", maxBackups: " +
+         this.maxBackups + "]";
+   }
+}
@@ -0,0 +1,34 @@
+package com.medleystudios.pn.log;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Formats epoch millis as ISO8601 in UTC, e.g. 2018-11-17T08:48:00.123Z.
+ * <p>
+ * Everything up to the seconds only changes once a second, so it is formatted once and reused; each call just
+ * appends the milliseconds. Not thread-safe.
+ */
+public class PNTimestampFormatter {
+
+   private static final DateTimeFormatter SECONDS_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.").withZone(ZoneOffset.UTC);
+
+   private long cachedSecond = Long.MIN_VALUE;
+   private String cachedPrefix = null;
+
+   public void format(long epochMillis, StringBuilder out) {
+      long second = Math.floorDiv(epochMillis, 1000L);
+      if (second != this.cachedSecond) {
+         this.cachedSecond = second;
+         this.cachedPrefix = SECONDS_FORMAT.format(Instant.ofEpochSecond(second));
+      }
+
+      int millis = (int)Math.floorMod(epochMillis, 1000L);
+      out.append(this.cachedPrefix);
+      if (millis < 100) out.append('0');
+      if (millis < 10) out.append('0');
+      out.append(millis).append('Z');
+   }
+}
@@ -0,0 +1,414 @@
+package com.medleystudios.pn.replication;
+
+import com.medleystudios.pn.conn.PNConnection;
+import com.medleystudios.pn.interest.PNInterestSet;
+import com.medleystudios.pn.interest.PNSpatialGrid;
+import com.medleystudios.pn.io.PNDatagramSession;
+import com.medleystudios.pn.io.PNDeliveryMode;
+import com.medleystudios.pn.io.PNOutboundScheduler;
+import com.medleystudios.pn.io.PNPriority;
+import com.medleystudios.pn.io.PNProtocolException;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Sends each client the part of the world it is interested in. Every tick, each viewer's {@link PNInterestSet} is
+ * updated from the {@link PNSpatialGrid}, the entities in it are picked out of the world snapshot, and what changed
+ * since the client's baseline goes out through its {@link PNSnapshotEncoder}. Entities leaving a client's interest
+ * are sent as removed, and ones entering it in full.
+ * <p>
+ * Each snapshot is sized to what is left of the connection's {@link PNOutboundScheduler} budget. When the entities
+ * that changed do not all fit, the most important go and the rest are deferred: an entity the client has keeps the
+ * values it has, and a new one is left out. Every tick an entity waits, its priority is added to what it has
+ * accumulated, and the entities sent are picked by the total, so even the least important ones get their turn
+ * eventually.
+ * <p>
+ * Snapshots go over the connection's datagram channel when it is ready and they fit in a datagram, and are scheduled
+ * over TCP otherwise. The client decodes them with a {@link PNSnapshotDecoder} and sends its acknowledgements back,
+ * which the server hands to {@link Viewer#handleAck(ByteBuffer)}.
+ * <p>
+ * Not thread-safe; use it from the server's tick.
+ */
+public class PNReplicator {
+
+   private final PNSnapshotLayout layout;
+   private final PNSpatialGrid grid;
+   private final int packetId;
+   private final List<Viewer> viewers = new ArrayList<>();
+   private final int fullEntityBits;
+
+   private Prioritizer prioritizer = this::defaultPriority;
+   private PNPriority priority = PNPriority.NORMAL;
+
+   private ByteBuffer scratch = ByteBuffer.allocate(PNDatagramSession.MAX_PAYLOAD);
+
+   // Per entity of the viewer's interest in the world: its index in the world and in the baseline, or -1, and the
+   // bits it would take to send, 0 if unchanged, or -1 once deferred
+   private int[] worldIndices = new int[64];
+   private int[] baselineIndices = new int[64];
+   private int[] costs = new int[64];
+
+   /**
+    * The changed entities ordered by accumulated priority, each the priority's bits above its index
+    */
+   private long[] order = new long[64];
+
+   /**
+    * @param grid     Where the world's entities are, kept up to date by the caller
+    * @param packetId The packet id snapshots are sent with
+    */
+   public PNReplicator(PNSnapshotLayout layout, PNSpatialGrid grid, int packetId) {
+      this.layout = layout;
+      this.grid = grid;
+      this.packetId = packetId;
+
+      int fullEntityBits = 0;
+      for (int field = 0; field < layout.getFieldCount(); field++) {
+         fullEntityBits += layout.getFieldBits(field);
+      }
+      this.fullEntityBits = fullEntityBits;
+   }
+
+   /**
+    * Sets how much it matters that each entity reaches each viewer. By default, the closer the entity the more it
+    * matters.
+    */
+   public void setPrioritizer(Prioritizer prioritizer) {
+      this.prioritizer = prioritizer;
+   }
+
+   /**
+    * Sets the class snapshots are scheduled with, which decides what budget is left for them.
+    */
+   public void setPriority(PNPriority priority) {
+      this.priority = priority;
+   }
+
+   public PNPriority getPriority() {
+      return this.priority;
+   }
+
+   /**
+    * Starts replicating to the connection. The viewer is removed once the connection closes.
+    *
+    * @param radius      Entities this close to the viewer are sent to it
+    * @param leaveRadius Entities sent to it keep being sent until they are further than this
+    */
+   public Viewer addViewer(PNConnection connection, float radius, float leaveRadius) {
+      Viewer viewer = new Viewer(connection, new PNInterestSet(radius, leaveRadius),
+         new PNSnapshotEncoder(this.layout), new PNSnapshot(this.layout));
+      this.viewers.add(viewer);
+      return viewer;
+   }
+
+   public boolean removeViewer(Viewer viewer) {
+      return this.viewers.remove(viewer);
+   }
+
+   public int getViewerCount() {
+      return this.viewers.size();
+   }
+
+   /**
+    * Sends every viewer its part of the world snapshot, which must hold every entity of the grid that is to be
+    * replicated.
+    */
+   public void replicate(PNSnapshot world) {
+      for (int i = 0; i < this.viewers.size(); i++) {
+         Viewer viewer = this.viewers.get(i);
+         if (viewer.connection.isClosed()) {
+            this.viewers.remove(i--);
+            continue;
+         }
+         this.replicate(world, viewer);
+      }
+   }
+
+   private void replicate(PNSnapshot world, Viewer viewer) {
+      if (viewer.followedEntity >= 0 && this.grid.contains(viewer.followedEntity)) {
+         viewer.x = this.grid.getX(viewer.followedEntity);
+         viewer.y = this.grid.getY(viewer.followedEntity);
+      }
+
+      PNInterestSet interest = viewer.interest;
+      interest.update(this.grid, viewer.x, viewer.y);
+      for (int i = 0; i < interest.getLeftCount(); i++) {
+         viewer.forget(interest.getLeft(i));
+      }
+
+      PNSnapshot baseline = viewer.encoder.baselineFor(world.getTick());
+      PNOutboundScheduler scheduler = viewer.connection.getScheduler();
+      int count = this.measure(world, baseline, viewer);
+      long budgetBits = (long)scheduler.getAvailableBytes(this.priority) * 8 - this.fixedBits(count, baseline);
+      this.fit(world, count, budgetBits, viewer);
+
+      PNSnapshot snapshot = viewer.snapshot.reset(world.getTick());
+      for (int i = 0; i < count; i++) {
+         if (this.costs[i] >= 0) {
+            snapshot.addCopy(world, this.worldIndices[i]);
+         }
+         else if (this.baselineIndices[i] >= 0) {
+            snapshot.addCopy(baseline, this.baselineIndices[i]);
+         }
+      }
+
+      int maxSize = viewer.encoder.maxEncodedSize(snapshot);
+      if (maxSize > this.scratch.capacity()) {
+         this.scratch = ByteBuffer.allocate(Math.max(maxSize, this.scratch.capacity() * 2));
+      }
+      this.scratch.clear();
+      viewer.encoder.encode(snapshot, this.scratch);
+      this.scratch.flip();
+
+      PNDatagramSession datagram = viewer.connection.getDatagram();
+      int length = this.scratch.remaining();
+      if (datagram != null && datagram.isReady() && length <= PNDatagramSession.MAX_PAYLOAD &&
+         datagram.send(this.packetId, this.scratch, PNDeliveryMode.UNRELIABLE_SEQUENCED)) {
+         scheduler.charge(length);
+         return;
+      }
+      scheduler.queue(this.priority, this.packetId, this.scratch);
+   }
+
+   /**
+    * Finds the viewer's entities in the world and the baseline and works out what sending each would cost, adding
+    * the priority of those that changed to what they have accumulated.
+    *
+    * @return The number of entities found
+    */
+   private int measure(PNSnapshot world, PNSnapshot baseline, Viewer viewer) {
+      PNInterestSet interest = viewer.interest;
+      int fieldCount = this.layout.getFieldCount();
+      if (this.worldIndices.length < interest.size()) {
+         int length = Math.max(interest.size(), this.worldIndices.length * 2);
+         this.worldIndices = new int[length];
+         this.baselineIndices = new int[length];
+         this.costs = new int[length];
+      }
+
+      int count = 0;
+      int b = 0;
+      int previous = -1;
+      for (int i = 0; i < interest.size(); i++) {
+         int id = interest.getEntityId(i);
+         int index = world.indexOf(id);
+         if (index < 0) continue;
+
+         while (b < baseline.size() && baseline.getEntityId(b) < id) {
+            b++;
+         }
+         int baselineIndex = b < baseline.size() && baseline.getEntityId(b) == id ? b : -1;
+
+         // Its marker bit and id gap, then its fields, or a mask of the fields that changed and those fields
+         int bits = this.fullEntityBits;
+         if (baselineIndex >= 0) {
+            bits = fieldCount;
+            for (int field = 0; field < fieldCount; field++) {
+               if (world.get(index, field) != baseline.get(baselineIndex, field)) {
+                  bits += this.layout.getFieldBits(field);
+               }
+            }
+            if (bits == fieldCount) {
+               bits = 0;
+            }
+         }
+         if (bits > 0) {
+            bits += 1 + PNSnapshotEncoder.varBits(id - previous - 1);
+            previous = id;
+            viewer.accumulate(id, this.prioritizer.getPriority(viewer, id));
+         }
+
+         this.worldIndices[count] = index;
+         this.baselineIndices[count] = baselineIndex;
+         this.costs[count] = bits;
+         count++;
+      }
+      return count;
+   }
+
+   /**
+    * @return The bits the snapshot takes whatever is deferred, with its header and the entities it removes
+    */
+   private long fixedBits(int count, PNSnapshot baseline) {
+      int kept = 0;
+      for (int i = 0; i < count; i++) {
+         if (this.baselineIndices[i] >= 0) {
+            kept++;
+         }
+      }
+      return 32 + 1 + 2 + 32 + 1 + 1 + (long)(baseline.size() - kept) * (1 + 2 + 8);
+   }
+
+   /**
+    * Defers the changed entities that do not fit in the budget, keeping those with the most accumulated priority, and
+    * clears what the others accumulated.
+    */
+   private void fit(PNSnapshot world, int count, long budgetBits, Viewer viewer) {
+      int changed = 0;
+      long bits = 0;
+      for (int i = 0; i < count; i++) {
+         if (this.costs[i] > 0) {
+            changed++;
+            bits += this.costs[i];
+         }
+      }
+      viewer.deferredEntities = 0;
+
+      if (bits > budgetBits) {
+         if (this.order.length < changed) {
+            this.order = new long[Math.max(changed, this.order.length * 2)];
+         }
+         int n = 0;
+         for (int i = 0; i < count; i++) {
+            if (this.costs[i] > 0) {
+               // Non-negative floats order the same as their bits
+               float accumulated = viewer.getAccumulated(world.getEntityId(this.worldIndices[i]));
+               this.order[n++] = (long)Float.floatToIntBits(accumulated) << 32 | i;
+            }
+         }
+         Arrays.sort(this.order, 0, n);
+
+         for (int k = n - 1; k >= 0; k--) {
+            int i = (int)this.order[k];
+            if (this.costs[i] <= budgetBits) {
+               budgetBits -= this.costs[i];
+            }
+            else {
+               this.costs[i] = -1;
+               viewer.deferredEntities++;
+            }
+         }
+      }
+
+      for (int i = 0; i < count; i++) {
+         if (this.costs[i] > 0) {
+            viewer.forget(world.getEntityId(this.worldIndices[i]));
+         }
+      }
+   }
+
+   /**
+    * Matters more the closer the entity is, from 1 at the viewer to half that at the edge of its interest
+    */
+   private float defaultPriority(Viewer viewer, int entityId) {
+      float dx = this.grid.getX(entityId) - viewer.x;
+      float dy = this.grid.getY(entityId) - viewer.y;
+      float radius = Math.max(viewer.interest.getRadius(), Float.MIN_NORMAL);
+      return 1 / (1 + (float)Math.sqrt(dx * dx + dy * dy) / radius);
+   }
+
+   @Override
+   public String toString() {
+      return "PNReplicator[" + this.layout + ", viewers: " + this.viewers.size() + ", " + this.grid + "]";
+   }
+
+   /**
+    * A client being replicated to, and where in the world it is looking from
+    */
+   public static class Viewer {
+      private final PNConnection connection;
+      private final PNInterestSet interest;
+      private final PNSnapshotEncoder encoder;
+      private final PNSnapshot snapshot;
+
+      private float x = 0;
+      private float y = 0;
+      private int followedEntity = -1;
+
+      /**
+       * The priority each entity has accumulated while its changes waited, by id
+       */
+      private float[] accumulated = new float[0];
+      private int deferredEntities = 0;
+
+      private Viewer(PNConnection connection, PNInterestSet interest, PNSnapshotEncoder encoder,
+                     PNSnapshot snapshot) {
+         this.connection = connection;
+         this.interest = interest;
+         this.encoder = encoder;
+         this.snapshot = snapshot;
+      }
+
+      public void setPosition(float x, float y) {
+         this.x = x;
+         this.y = y;
+      }
+
+      /**
+       * Makes the viewer look from wherever the entity is in the grid, such as the client's own avatar, or -1 to go
+       * back to {@link #setPosition(float, float)}.
+       */
+      public void follow(int entityId) {
+         this.followedEntity = entityId;
+      }
+
+      /**
+       * Takes the client's acknowledgement of a snapshot.
+       */
+      public void handleAck(ByteBuffer payload) throws PNProtocolException {
+         this.encoder.handleAck(payload);
+      }
+
+      private void accumulate(int entityId, float priority) {
+         if (entityId >= this.accumulated.length) {
+            this.accumulated = Arrays.copyOf(this.accumulated,
+               Math.max(entityId + 1, Math.max(this.accumulated.length * 2, 64)));
+         }
+         // Negative or NaN priorities would break the ordering, which relies on non-negative floats
+         if (priority > 0) {
+            this.accumulated[entityId] += priority;
+         }
+      }
+
+      private void forget(int entityId) {
+         if (entityId < this.accumulated.length) {
+            this.accumulated[entityId] = 0;
+         }
+      }
+
+      /**
+       * @return The priority the entity has accumulated while its changes waited to be sent to this viewer
+       */
+      public float getAccumulated(int entityId) {
+         return entityId < this.accumulated.length ? this.accumulated[entityId] : 0;
+      }
+
+      /**
+       * @return The number of changed entities left out of the last snapshot for want of budget
+       */
+      public int getDeferredEntities() {
+         return this.deferredEntities;
+      }
+
+      public float getX() {
+         return this.x;
+      }
+
+      public float getY() {
+         return this.y;
+      }
+
+      public PNConnection getConnection() {
+         return this.connection;
+      }
+
+      public PNInterestSet getInterest() {
+         return this.interest;
+      }
+
+      public PNSnapshotEncoder getEncoder() {
+         return this.encoder;
+      }
+   }
+
+   /**
+    * Tells how much it matters that an entity reaches a viewer this tick. Should be positive; what an entity is
+    * deferred for adds up until it is sent.
+    */
+   public interface Prioritizer {
+      float getPriority(Viewer viewer, int entityId);
+   }
+}
@@ -0,0 +1,129 @@
+package com.medleystudios.pn.replication;
+
+import java.util.Arrays;
+
+/**
+ * The state of a set of entities at one tick: for each entity, in ascending order of id, a value for every field of
+ * the {@link PNSnapshotLayout}.
+ * <p>
+ * Snapshots are reused rather than created per tick. {@link #reset(int)} empties one while keeping its arrays, which
+ * only grow, so a snapshot allocates nothing once it has held its largest entity count. Not thread-safe.
+ */
+public class PNSnapshot {
+
+   private static final int INITIAL_CAPACITY = 64;
+
+   private final PNSnapshotLayout layout;
+   private final int fieldCount;
+
+   private int tick = 0;
+   private int size = 0;
+   private int[] entityIds;
+
+   /**
+    * The field values of entity i are at i * fieldCount onwards
+    */
+   private int[] values;
+
+   public PNSnapshot(PNSnapshotLayout layout) {
+      this.layout = layout;
+      this.fieldCount = layout.getFieldCount();
+      this.entityIds = new int[INITIAL_CAPACITY];
+      this.values = new int[INITIAL_CAPACITY * this.fieldCount];
+   }
+
+   /**
+    * Empties the snapshot to be filled in for a tick.
+    */
+   public PNSnapshot reset(int tick) {
+      this.tick = tick;
+      this.size = 0;
+      return this;
+   }
+
+   /**
+    * Adds an entity with every field 0. Entities must be added in ascending order of id.
+    *
+    * @return The entity's index, for {@link #set(int, int, int)}
+    * @throws IllegalArgumentException If the id is negative or not above the last one added
+    */
+   public int add(int entityId) {
+      if (entityId < 0 || (this.size > 0 && entityId <= this.entityIds[this.size - 1])) {
+         throw new IllegalArgumentException("Entity " + entityId + " is negative or out of order");
+      }
+      this.ensureCapacity(this.size + 1);
+      int index = this.size++;
+      this.entityIds[index] = entityId;
+      Arrays.fill(this.values, index * this.fieldCount, (index + 1) * this.fieldCount, 0);
+      return index;
+   }
+
+   /**
+    * Sets a field of the entity at the index, keeping only as many low bits as the field has.
+    */
+   public void set(int index, int field, int value) {
+      this.values[index * this.fieldCount + field] = value & this.layout.getFieldMask(field);
+   }
+
+   public int get(int index, int field) {
+      return this.values[index * this.fieldCount + field];
+   }
+
+   public int getEntityId(int index) {
+      return this.entityIds[index];
+   }
+
+   /**
+    * @return The index of the entity, or a negative number if it is not in the snapshot
+    */
+   public int indexOf(int entityId) {
+      return Arrays.binarySearch(this.entityIds, 0, this.size, entityId);
+   }
+
+   public int size() {
+      return this.size;
+   }
+
+   public int getTick() {
+      return this.tick;
+   }
+
+   public PNSnapshotLayout getLayout() {
+      return this.layout;
+   }
+
+   /**
+    * Makes this snapshot a copy of the other, which must have the same layout.
+    */
+   public void copyFrom(PNSnapshot other) {
+      if (other.layout != this.layout) {
+         throw new IllegalArgumentException("Cannot copy a snapshot of another layout " + other.layout);
+      }
+      this.ensureCapacity(other.size);
+      this.tick = other.tick;
+      this.size = other.size;
+      System.arraycopy(other.entityIds, 0, this.entityIds, 0, other.size);
+      System.arraycopy(other.values, 0, this.values, 0, other.size * this.fieldCount);
+   }
+
+   /**
+    * Adds an entity copying every field of an entity of another snapshot with the same layout.
+    */
+   void addCopy(PNSnapshot other, int otherIndex) {
+      int index = this.add(other.entityIds[otherIndex]);
+      System.arraycopy(other.values, otherIndex * this.fieldCount, this.values, index * this.fieldCount,
+         this.fieldCount);
+   }
+
+   private void ensureCapacity(int capacity) {
+      if (capacity <= this.entityIds.length) return;
+      int length = Math.max(capacity, this.entityIds.length * 2);
+      this.entityIds = Arrays.copyOf(this.entityIds, length);
+      this.values = Arrays.copyOf(this.values, length * this.fieldCount);
+   }
+
+   @Override
+   public String toString() {
+      return "PNSnapshot[tick: " + this.tick + ", entities: " + this.size + "]";
+   }
+}
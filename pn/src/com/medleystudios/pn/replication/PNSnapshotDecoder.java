@@ -0,0 +1,181 @@
+package com.medleystudios.pn.replication;
+
+import com.medleystudios.pn.codec.PNBitReader;
+import com.medleystudios.pn.io.PNProtocolException;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Rebuilds the snapshots a {@link PNSnapshotEncoder} sends, applying each delta to the baseline it names. The ring of
+ * snapshots kept for this must be at least as large as the encoder's.
+ * <p>
+ * After each snapshot decoded, the client acknowledges it by sending what {@link #writeAck(ByteBuffer)} writes, which
+ * lets the server use it as a baseline. Each snapshot must have a payload of its own, and snapshots that arrive after
+ * a newer one are ignored. Not thread-safe.
+ */
+public class PNSnapshotDecoder {
+
+   private final PNSnapshotLayout layout;
+   private final PNSnapshot[] ring;
+   private final boolean[] held;
+   private final PNSnapshot empty;
+   private final PNBitReader bitReader = new PNBitReader();
+
+   /**
+    * The ids of the entities the snapshot being decoded removes
+    */
+   private int[] removed = new int[16];
+
+   private boolean decodedAny = false;
+   private int lastTick = 0;
+
+   public PNSnapshotDecoder(PNSnapshotLayout layout) {
+      this(layout, PNSnapshotEncoder.DEFAULT_RING_SIZE);
+   }
+
+   public PNSnapshotDecoder(PNSnapshotLayout layout, int ringSize) {
+      if (ringSize < 2) {
+         throw new IllegalArgumentException("Ring size must be at least 2: " + ringSize);
+      }
+      this.layout = layout;
+      this.ring = new PNSnapshot[ringSize];
+      this.held = new boolean[ringSize];
+      for (int i = 0; i < ringSize; i++) {
+         this.ring[i] = new PNSnapshot(layout);
+      }
+      this.empty = new PNSnapshot(layout);
+   }
+
+   /**
+    * Decodes a snapshot, which is everything from the buffer's position to its limit.
+    *
+    * @return The snapshot, which stays valid until as many snapshots as the ring holds have been decoded after it, or
+    * null if it is no newer than the last one decoded
+    * @throws PNProtocolException If the snapshot is malformed or its baseline is no longer held
+    */
+   public PNSnapshot decode(ByteBuffer src) throws PNProtocolException {
+      PNBitReader in = this.bitReader.reset(src);
+      int tick = (int)in.readBits(32);
+      if (this.decodedAny && tick - this.lastTick <= 0) {
+         src.position(src.limit());
+         return null;
+      }
+
+      PNSnapshot baseline = this.empty;
+      int removedCount = 0;
+      if (in.readBoolean()) {
+         int baselineTick = tick - PNSnapshotEncoder.readVar(in);
+         int slot = this.slotOf(baselineTick);
+         if (slot == this.slotOf(tick) || !this.held[slot] || this.ring[slot].getTick() != baselineTick) {
+            throw new PNProtocolException("Snapshot " + tick + " is based on " + baselineTick + ", which is not held");
+         }
+         baseline = this.ring[slot];
+         removedCount = this.readRemoved(in);
+      }
+
+      // The snapshot replaces the one it shares its slot with, so that one is no baseline from here on
+      int slot = this.slotOf(tick);
+      PNSnapshot snapshot = this.ring[slot];
+      this.held[slot] = false;
+      snapshot.reset(tick);
+      this.merge(baseline, snapshot, removedCount, in);
+      in.finish();
+
+      this.held[slot] = true;
+      this.decodedAny = true;
+      this.lastTick = tick;
+      return snapshot;
+   }
+
+   private int readRemoved(PNBitReader in) throws PNProtocolException {
+      int count = 0;
+      int previous = -1;
+      while (in.readBoolean()) {
+         int id = nextId(previous, PNSnapshotEncoder.readVar(in));
+         if (count == this.removed.length) {
+            this.removed = Arrays.copyOf(this.removed, count * 2);
+         }
+         this.removed[count++] = id;
+         previous = id;
+      }
+      return count;
+   }
+
+   /**
+    * Builds the snapshot from the baseline's entities, less the removed ones, and the updates read from the stream
+    */
+   private void merge(PNSnapshot baseline, PNSnapshot snapshot, int removedCount, PNBitReader in)
+      throws PNProtocolException {
+      int fieldCount = this.layout.getFieldCount();
+      int b = 0;
+      int r = 0;
+      int next = in.readBoolean() ? nextId(-1, PNSnapshotEncoder.readVar(in)) : -1;
+
+      while (true) {
+         // Pass over the baseline's removed entities
+         while (b < baseline.size() && r < removedCount && baseline.getEntityId(b) >= this.removed[r]) {
+            if (baseline.getEntityId(b) == this.removed[r]) {
+               b++;
+            }
+            r++;
+         }
+         if (next < 0 && b == baseline.size()) return;
+
+         int baseId = b < baseline.size() ? baseline.getEntityId(b) : Integer.MAX_VALUE;
+         if (next < 0 || baseId < next) {
+            snapshot.addCopy(baseline, b++);
+            continue;
+         }
+
+         int index = snapshot.add(next);
+         if (baseId == next) {
+            // A changed entity: the mask of the fields that changed, then those fields
+            long mask = in.readBits(fieldCount);
+            for (int field = 0; field < fieldCount; field++) {
+               snapshot.set(index, field, (mask & (1L << field)) != 0 ?
+                  (int)in.readBits(this.layout.getFieldBits(field)) : baseline.get(b, field));
+            }
+            b++;
+         }
+         else {
+            for (int field = 0; field < fieldCount; field++) {
+               snapshot.set(index, field, (int)in.readBits(this.layout.getFieldBits(field)));
+            }
+         }
+
+         next = in.readBoolean() ? nextId(next, PNSnapshotEncoder.readVar(in)) : -1;
+      }
+   }
+
+   /**
+    * Writes the acknowledgement of the last snapshot decoded, for {@link PNSnapshotEncoder#handleAck(ByteBuffer)}.
+    *
+    * @throws IllegalStateException If no snapshot has been decoded yet
+    */
+   public void writeAck(ByteBuffer dst) {
+      if (!this.decodedAny) {
+         throw new IllegalStateException("No snapshot decoded to acknowledge");
+      }
+      dst.putInt(this.lastTick);
+   }
+
+   public boolean hasDecoded() {
+      return this.decodedAny;
+   }
+
+   public int getLastTick() {
+      return this.lastTick;
+   }
+
+   private int slotOf(int tick) {
+      return Math.floorMod(tick, this.ring.length);
+   }
+
+   private static int nextId(int previous, int gap) throws PNProtocolException {
+      if (gap > Integer.MAX_VALUE - previous - 1) {
+         throw new PNProtocolException("Entity id out of range in snapshot");
+      }
+      return previous + 1 + gap;
+   }
+}
@@ -0,0 +1,299 @@
+package com.medleystudios.pn.replication;
+
+import com.medleystudios.pn.codec.PNBitReader;
+import com.medleystudios.pn.codec.PNBitWriter;
+import com.medleystudios.pn.io.PNProtocolException;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes the snapshots sent to one client as deltas against the last snapshot the client acknowledged, so what is
+ * sent each tick grows with how much changed rather than with how much there is. A {@link PNSnapshotDecoder} on the
+ * other end rebuilds the snapshots and acknowledges them.
+ * <p>
+ * The encoder keeps a ring of the snapshots it sent recently. Entities that are gone from the baseline and entities
+ * that changed are sent, the latter with only the fields that changed; unchanged entities cost nothing. When the
+ * client has not acknowledged any snapshot still in the ring, because it just joined or lost too many, the snapshot
+ * goes in full instead, which becomes a baseline once acknowledged.
+ * <p>
+ * Snapshots can go over an unreliable channel: a lost one is simply never acknowledged. Not thread-safe; a server
+ * normally encodes and handles acknowledgements on its tick.
+ */
+public class PNSnapshotEncoder {
+
+   public static final int DEFAULT_RING_SIZE = 32;
+
+   /**
+    * The bytes of an acknowledgement payload: the tick acknowledged
+    */
+   public static final int ACK_SIZE = 4;
+
+   /**
+    * The widths a number in the delta format can take, picked by a 2-bit selector
+    */
+   private static final int[] VAR_WIDTHS = { 4, 8, 16, 32 };
+
+   private final PNSnapshotLayout layout;
+   private final int entityBits;
+   private final PNSnapshot[] ring;
+   private final boolean[] held;
+   private final PNSnapshot empty;
+   private final PNBitWriter bitWriter = new PNBitWriter();
+
+   private boolean encodedAny = false;
+   private int lastTick = 0;
+   private boolean acknowledged = false;
+   private int ackedTick = 0;
+
+   private long fullSnapshots = 0;
+   private long deltaSnapshots = 0;
+   private int lastEncodedBytes = 0;
+
+   public PNSnapshotEncoder(PNSnapshotLayout layout) {
+      this(layout, DEFAULT_RING_SIZE);
+   }
+
+   /**
+    * @param ringSize How many snapshots back a baseline may be. The decoder's ring must be at least as large.
+    */
+   public PNSnapshotEncoder(PNSnapshotLayout layout, int ringSize) {
+      if (ringSize < 2) {
+         throw new IllegalArgumentException("Ring size must be at least 2: " + ringSize);
+      }
+      this.layout = layout;
+      this.ring = new PNSnapshot[ringSize];
+
+      // An entity's marker bit, id gap, field mask and fields, at the most
+      int entityBits = 1 + 2 + 32 + layout.getFieldCount();
+      for (int field = 0; field < layout.getFieldCount(); field++) {
+         entityBits += layout.getFieldBits(field);
+      }
+      this.entityBits = entityBits;
+      this.held = new boolean[ringSize];
+      for (int i = 0; i < ringSize; i++) {
+         this.ring[i] = new PNSnapshot(layout);
+      }
+      this.empty = new PNSnapshot(layout);
+   }
+
+   /**
+    * Encodes the snapshot at the buffer's position as a delta against the client's baseline, or in full if it has
+    * none, and keeps a copy to be a baseline later. The snapshot should be sent as a payload of its own.
+    *
+    * @return The number of bytes written
+    * @throws IllegalArgumentException If the snapshot's tick is not after the last one encoded
+    */
+   public int encode(PNSnapshot snapshot, ByteBuffer dst) {
+      this.bitWriter.reset(dst);
+      this.encode(snapshot, this.bitWriter);
+      return this.lastEncodedBytes = this.bitWriter.finish();
+   }
+
+   private void encode(PNSnapshot snapshot, PNBitWriter out) {
+      if (snapshot.getLayout() != this.layout) {
+         throw new IllegalArgumentException("Snapshot has another layout " + snapshot.getLayout());
+      }
+      int tick = snapshot.getTick();
+      if (this.encodedAny && tick - this.lastTick <= 0) {
+         throw new IllegalArgumentException("Tick " + tick + " is not after the last encoded " + this.lastTick);
+      }
+
+      PNSnapshot baseline = this.baselineFor(tick);
+      out.writeBits(tick, 32);
+      out.writeBoolean(baseline != this.empty);
+      if (baseline != this.empty) {
+         writeVar(out, tick - baseline.getTick());
+         this.writeRemoved(baseline, snapshot, out);
+         this.deltaSnapshots++;
+      }
+      else {
+         this.fullSnapshots++;
+      }
+      this.writeUpdates(baseline, snapshot, out);
+
+      int slot = this.slotOf(tick);
+      this.ring[slot].copyFrom(snapshot);
+      this.held[slot] = true;
+      this.encodedAny = true;
+      this.lastTick = tick;
+   }
+
+   /**
+    * @return The snapshot a snapshot of the tick would be encoded against, or an empty snapshot if it would go in full
+    */
+   PNSnapshot baselineFor(int tick) {
+      if (!this.acknowledged || tick - this.ackedTick >= this.ring.length) return this.empty;
+      int slot = this.slotOf(this.ackedTick);
+      if (!this.held[slot] || this.ring[slot].getTick() != this.ackedTick) return this.empty;
+      return this.ring[slot];
+   }
+
+   /**
+    * Writes the ids of the baseline's entities the snapshot no longer has, each behind a 1 bit, then a 0 bit
+    */
+   private void writeRemoved(PNSnapshot baseline, PNSnapshot snapshot, PNBitWriter out) {
+      int previous = -1;
+      int j = 0;
+      for (int i = 0; i < baseline.size(); i++) {
+         int id = baseline.getEntityId(i);
+         while (j < snapshot.size() && snapshot.getEntityId(j) < id) {
+            j++;
+         }
+         if (j < snapshot.size() && snapshot.getEntityId(j) == id) continue;
+
+         out.writeBoolean(true);
+         writeVar(out, id - previous - 1);
+         previous = id;
+      }
+      out.writeBoolean(false);
+   }
+
+   /**
+    * Writes the snapshot's entities that are new or changed since the baseline, each behind a 1 bit, then a 0 bit.
+    * A new entity has all of its fields, a changed one a mask of the fields that changed followed by those fields.
+    */
+   private void writeUpdates(PNSnapshot baseline, PNSnapshot snapshot, PNBitWriter out) {
+      int fieldCount = this.layout.getFieldCount();
+      int previous = -1;
+      int j = 0;
+      for (int i = 0; i < snapshot.size(); i++) {
+         int id = snapshot.getEntityId(i);
+         while (j < baseline.size() && baseline.getEntityId(j) < id) {
+            j++;
+         }
+
+         if (j >= baseline.size() || baseline.getEntityId(j) != id) {
+            out.writeBoolean(true);
+            writeVar(out, id - previous - 1);
+            previous = id;
+            for (int field = 0; field < fieldCount; field++) {
+               out.writeBits(snapshot.get(i, field), this.layout.getFieldBits(field));
+            }
+            continue;
+         }
+
+         long mask = 0;
+         for (int field = 0; field < fieldCount; field++) {
+            if (snapshot.get(i, field) != baseline.get(j, field)) {
+               mask |= 1L << field;
+            }
+         }
+         if (mask == 0) continue;
+
+         out.writeBoolean(true);
+         writeVar(out, id - previous - 1);
+         previous = id;
+         out.writeBits(mask, fieldCount);
+         for (int field = 0; field < fieldCount; field++) {
+            if ((mask & (1L << field)) != 0) {
+               out.writeBits(snapshot.get(i, field), this.layout.getFieldBits(field));
+            }
+         }
+      }
+      out.writeBoolean(false);
+   }
+
+   /**
+    * @return The most bytes {@link #encode(PNSnapshot, ByteBuffer)} could write for the snapshot, to size the buffer
+    */
+   public int maxEncodedSize(PNSnapshot snapshot) {
+      PNSnapshot baseline = this.baselineFor(snapshot.getTick());
+      long bits = 32 + 1 + 2 + 32 + 2 + (long)(baseline.size() + snapshot.size()) * this.entityBits;
+      return (int)((bits + 7) / 8);
+   }
+
+   /**
+    * Takes the client's acknowledgement that it has the snapshot of the tick, making that snapshot the baseline if
+    * it is newer than the current one and still in the ring.
+    */
+   public void acknowledge(int tick) {
+      if (!this.encodedAny || tick - this.lastTick > 0) return;
+      if (this.acknowledged && tick - this.ackedTick <= 0) return;
+      int slot = this.slotOf(tick);
+      if (!this.held[slot] || this.ring[slot].getTick() != tick) return;
+
+      this.acknowledged = true;
+      this.ackedTick = tick;
+   }
+
+   /**
+    * Takes an acknowledgement written by {@link PNSnapshotDecoder#writeAck(ByteBuffer)}.
+    */
+   public void handleAck(ByteBuffer payload) throws PNProtocolException {
+      if (payload.remaining() < ACK_SIZE) {
+         throw new PNProtocolException("Snapshot ack too short: " + payload.remaining());
+      }
+      this.acknowledge(payload.getInt());
+   }
+
+   /**
+    * Forgets the baseline, so the next snapshot goes in full, for when the client is known to have lost its state.
+    */
+   public void resync() {
+      this.acknowledged = false;
+   }
+
+   /**
+    * @return The tick of the baseline the next snapshot would be encoded against, or -1 if it would go in full
+    */
+   public int getBaselineTick() {
+      return this.acknowledged ? this.ackedTick : -1;
+   }
+
+   public long getFullSnapshots() {
+      return this.fullSnapshots;
+   }
+
+   public long getDeltaSnapshots() {
+      return this.deltaSnapshots;
+   }
+
+   public int getLastEncodedBytes() {
+      return this.lastEncodedBytes;
+   }
+
+   public int getRingSize() {
+      return this.ring.length;
+   }
+
+   private int slotOf(int tick) {
+      return Math.floorMod(tick, this.ring.length);
+   }
+
+   /**
+    * Writes a non-negative number in the smallest of {@link #VAR_WIDTHS} it fits
+    */
+   static void writeVar(PNBitWriter out, int value) {
+      int selector = 0;
+      while (selector < VAR_WIDTHS.length - 1 && (value >>> VAR_WIDTHS[selector]) != 0) {
+         selector++;
+      }
+      out.writeBits(selector, 2);
+      out.writeBits(value, VAR_WIDTHS[selector]);
+   }
+
+   /**
+    * @return The bits {@link #writeVar(PNBitWriter, int)} writes for the number
+    */
+   static int varBits(int value) {
+      int selector = 0;
+      while (selector < VAR_WIDTHS.length - 1 && (value >>> VAR_WIDTHS[selector]) != 0) {
+         selector++;
+      }
+      return 2 + VAR_WIDTHS[selector];
+   }
+
+   static int readVar(PNBitReader in) throws PNProtocolException {
+      long value = in.readBits(VAR_WIDTHS[(int)in.readBits(2)]);
+      if (value > Integer.MAX_VALUE) {
+         throw new PNProtocolException("Number out of range in snapshot: " + value);
+      }
+      return (int)value;
+   }
+
+   @Override
+   public String toString() {
+      return "PNSnapshotEncoder[baseline: " + this.getBaselineTick() + ", full: " + this.fullSnapshots + ", delta: " +
+         this.deltaSnapshots + ", last: " + this.lastEncodedBytes + "B]";
+   }
+}
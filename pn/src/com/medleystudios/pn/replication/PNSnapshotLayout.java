@@ -0,0 +1,53 @@
+package com.medleystudios.pn.replication;
+
+import java.util.Arrays;
+
+/**
+ * The fields every entity in a {@link PNSnapshot} has, each an unsigned value of a fixed number of bits. Floats and
+ * signed values are quantized or offset into that form before they go in, see
+ * {@link com.medleystudios.pn.codec.PNCodec#quantize(float, float, float, int)}.
+ */
+public class PNSnapshotLayout {
+
+   private final int[] fieldBits;
+
+   /**
+    * The most fields a layout can have, so that which of them changed fits in one word
+    */
+   public static final int MAX_FIELDS = 64;
+
+   /**
+    * @param fieldBits The width of each field, from 1 to 32 bits
+    */
+   public PNSnapshotLayout(int... fieldBits) {
+      if (fieldBits.length == 0 || fieldBits.length > MAX_FIELDS) {
+         throw new IllegalArgumentException("A layout needs from 1 to " + MAX_FIELDS + " fields: " + fieldBits.length);
+      }
+      for (int bits : fieldBits) {
+         if (bits < 1 || bits > 32) {
+            throw new IllegalArgumentException("Field bits must be from 1 to 32: " + bits);
+         }
+      }
+      this.fieldBits = fieldBits.clone();
+   }
+
+   public int getFieldCount() {
+      return this.fieldBits.length;
+   }
+
+   public int getFieldBits(int field) {
+      return this.fieldBits[field];
+   }
+
+   /**
+    * @return The mask of the bits a field's values are kept to
+    */
+   public int getFieldMask(int field) {
+      return this.fieldBits[field] == 32 ? -1 : (1 << this.fieldBits[field]) - 1;
+   }
+
+   @Override
+   public String toString() {
+      return "PNSnapshotLayout" + Arrays.toString(this.fieldBits);
+   }
+}
@@ -0,0 +1,126 @@
+package com.medleystudios.pn.server;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides whether a newly accepted client may become a connection, keeping the number of live connections at or below
+ * a maximum.
+ * <p>
+ * Slots are taken and given back with CAS on a counter, so the accept thread never contends on a lock with the event
+ * loops closing connections. The only monitor is used to park the accept thread while the server is full under
+ * {@link OverloadPolicy#QUEUE}.
+ */
+public class PNAdmissionController {
+
+   public enum OverloadPolicy {
+      REJECT,     // Accept and immediately reset clients while the server is full
+      QUEUE,      // Stop accepting while the server is full, leaving clients in the kernel's listen backlog
+   }
+
+   private final int maxConnections;
+   private final OverloadPolicy policy;
+
+   private final AtomicInteger active;
+   private final AtomicLong admitted;
+   private final AtomicLong rejected;
+
+   public PNAdmissionController(int maxConnections, OverloadPolicy policy) {
+      if (maxConnections <= 0) {
+         throw new IllegalArgumentException("Max connections must be positive: " + maxConnections);
+      }
+      this.maxConnections = maxConnections;
+      this.policy = policy;
+      this.active = new AtomicInteger(0);
+      this.admitted = new AtomicLong(0);
+      this.rejected = new AtomicLong(0);
+   }
+
+   /**
+    * Takes a connection slot.
+    *
+    * @return True if a slot was free. The caller must {@link #release()} it when the connection closes.
+    */
+   public boolean tryAdmit() {
+      while (true) {
+         int current = this.active.get();
+         if (current >= this.maxConnections) {
+            this.rejected.incrementAndGet();
+            return false;
+         }
+         if (this.active.compareAndSet(current, current + 1)) {
+            this.admitted.incrementAndGet();
+            return true;
+         }
+      }
+   }
+
+   /**
+    * Gives a slot taken by {@link #tryAdmit()} back.
+    */
+   public void release() {
+      int current = this.active.decrementAndGet();
+      if (current < 0) {
+         this.active.incrementAndGet();
+         throw new IllegalStateException("Released more connection slots than were admitted");
+      }
+
+      if (this.policy == OverloadPolicy.QUEUE && current == this.maxConnections - 1) {
+         synchronized (this) {
+            this.notifyAll();
+         }
+      }
+   }
+
+   public boolean hasCapacity() {
+      return this.active.get() < this.maxConnections;
+   }
+
+   /**
+    * Waits until a slot is free or the timeout passes.
+    *
+    * @return True if a slot is free
+    */
+   public boolean awaitCapacity(long timeoutMillis) throws InterruptedException {
+      if (hasCapacity()) return true;
+
+      synchronized (this) {
+         if (!hasCapacity()) {
+            this.wait(timeoutMillis);
+         }
+      }
+      return hasCapacity();
+   }
+
+   public int getActiveCount() {
+      return this.active.get();
+   }
+
+   public int getMaxConnections() {
+      return this.maxConnections;
+   }
+
+   public OverloadPolicy getPolicy() {
+      return this.policy;
+   }
+
+   /**
+    * @return The number of clients admitted since the controller was created
+    */
+   public long getAdmittedCount() {
+      return this.admitted.get();
+   }
+
+   /**
+    * @return The number of clients turned away since the controller was created
+    */
+   public long getRejectedCount() {
+      return this.rejected.get();
+   }
+
+   @Override
+   public String toString() {
+      return "PNAdmissionController[active: " + getActiveCount() + "/" + this.maxConnections + ", policy: " +
+         this.policy + ", admitted: " + getAdmittedCount() + ", rejected: " + getRejectedCount() + "]";
+   }
+}
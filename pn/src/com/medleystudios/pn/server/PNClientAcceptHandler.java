@@ -2,24 +2,46 @@ package com.medleystudios.pn.server;
 
 import com.medleystudios.pn.PN;
 import com.medleystudios.pn.conn.PNConnection;
-import com.medleystudios.pn.util.PNUtil;
+import com.medleystudios.pn.util.PNTokenBucket;
 
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Accepts clients on the server socket and turns them into connections, subject to admission control.
+ * <p>
+ * Accepts are rate limited by a token bucket, so a connection storm backs up in the kernel's listen backlog instead
+ * of in the server. Each accepted client then needs a slot from the server's {@link PNAdmissionController}; what
+ * happens when there is none depends on its {@link PNAdmissionController.OverloadPolicy}.
+ */
 public class PNClientAcceptHandler implements Runnable {
 
+   /**
+    * How long to wait for a free slot under the QUEUE policy before checking whether we may still accept
+    */
+   private static final long CAPACITY_WAIT_MILLIS = 100;
+
    private PNServer server;
    private ServerSocket serverSocket;
+   private PNAdmissionController admission;
+   private PNTokenBucket acceptRate;
    private AcceptHandler onAccept;
    private Runnable onFailedAccept;
 
-   public PNClientAcceptHandler(PNServer server, AcceptHandler onAccept, Runnable onFailedAccept) {
+   /**
+    * @param acceptsPerSecond The sustained rate at which clients are accepted
+    * @param acceptBurst      The number of clients that may be accepted back to back above that rate
+    */
+   public PNClientAcceptHandler(PNServer server, PNAdmissionController admission, double acceptsPerSecond,
+                                int acceptBurst, AcceptHandler onAccept, Runnable onFailedAccept) {
       super();
       this.server = server;
       this.serverSocket = this.server.getServerSocket();
+      this.admission = admission;
+      this.acceptRate = new PNTokenBucket(acceptsPerSecond, acceptBurst);
       this.onAccept = onAccept;
       this.onFailedAccept = onFailedAccept;
    }
@@ -33,9 +55,27 @@ public class PNClientAcceptHandler implements Runnable {
       while (mayAccept()) {
          final Socket socket;
 
+         // Under the QUEUE policy leave clients in the backlog until someone leaves
+         if (this.admission.getPolicy() == PNAdmissionController.OverloadPolicy.QUEUE) {
+            try {
+               if (!this.admission.awaitCapacity(CAPACITY_WAIT_MILLIS)) continue;
+            }
+            catch (InterruptedException e) {
+               PN.error(e, this, "Interrupted while waiting for connection capacity!");
+               break;
+            }
+         }
+
+         // Throttle accepting to the configured rate
+         long waitNanos = this.acceptRate.nanosUntilAvailable(1);
+         if (waitNanos > 0) {
+            LockSupport.parkNanos(this, Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(CAPACITY_WAIT_MILLIS)));
+            continue;
+         }
+
          // Accept
          try {
-            PN.log(this, "Accepting next client...");
+            PN.debug(this, "Accepting next client...");
             socket = this.serverSocket.accept();
             socket.setTcpNoDelay(true);
             socket.setReuseAddress(true);
@@ -45,15 +85,21 @@ public class PNClientAcceptHandler implements Runnable {
             this.failedAccept();
             break;
          }
+         this.acceptRate.consume(1);
+
+         if (!this.admission.tryAdmit()) {
+            this.reject(socket);
+            continue;
+         }
 
-         // Get PNConnection
-         PNConnection.get(socket)
-            .thenAccept((connection) -> {
-               this.accept(connection);
-            })
+         // Get PNConnection. Creating one only registers its channel with an event loop, so do it right here rather
+         // than handing every accept to another thread.
+         PNConnection.get(socket, Runnable::run)
+            .thenAccept(this::admit)
             .exceptionally((t) -> {
                // This may only happen with one client, no need to call "failedAccept"
                PN.error(t, this, "Failed to create a PNConnection from newly accepted client socket!");
+               this.admission.release();
                try {
                   socket.close();
                }
@@ -67,6 +113,38 @@ public class PNClientAcceptHandler implements Runnable {
       cleanUp();
    }
 
+   /**
+    * Hands a newly admitted connection to the server. Its slot is released exactly once: when it closes, or right
+    * here if the server fails to take it.
+    */
+   private void admit(PNConnection connection) {
+      try {
+         this.accept(connection);
+      }
+      catch (RuntimeException e) {
+         PN.error(e, this, "Failed to accept connection " + connection);
+         connection.close();
+         this.admission.release();
+         return;
+      }
+      connection.addCloseListener((closed) -> this.admission.release());
+   }
+
+   /**
+    * Turns away a client the server has no room for. The connection is reset rather than closed in an orderly way so
+    * that it does not leave anything behind on our end.
+    */
+   private void reject(Socket socket) {
+      PN.debug(this, () -> "Server full, rejecting " + socket + " " + this.admission);
+      try {
+         socket.setSoLinger(true, 0);
+         socket.close();
+      }
+      catch (IOException e) {
+         PN.error(e, this, "Failed to close rejected client socket!");
+      }
+   }
+
    private synchronized void cleanUp() {
       PN.log(this, "No longer accepting connections");
 
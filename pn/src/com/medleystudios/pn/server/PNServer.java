@@ -2,19 +2,37 @@ package com.medleystudios.pn.server;
 
 import com.medleystudios.pn.PN;
 import com.medleystudios.pn.conn.PNConnection;
+import com.medleystudios.pn.conn.PNIdleMonitor;
+import com.medleystudios.pn.conn.PNConnectionRegistry;
+import com.medleystudios.pn.io.PNBuffer;
+import com.medleystudios.pn.io.PNBufferPool;
+import com.medleystudios.pn.io.PNDatagramEndpoint;
+import com.medleystudios.pn.io.PNDatagramSession;
+import com.medleystudios.pn.io.PNDeliveryMode;
+import com.medleystudios.pn.io.PNEventLoopGroup;
+import com.medleystudios.pn.io.PNFrameEncoder;
 import com.medleystudios.pn.io.PNInputStreamReader;
 import com.medleystudios.pn.io.PNOutputStreamWriter;
+import com.medleystudios.pn.io.PNPacketHandler;
+import com.medleystudios.pn.io.PNProtocol;
+import com.medleystudios.pn.io.PNVarInt;
+import com.medleystudios.pn.tick.PNTickScheduler;
 import com.medleystudios.pn.util.PNUtil;
 
 import java.io.IOException;
 
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import static java.util.concurrent.CompletableFuture.runAsync;
 
 public class PNServer implements Runnable {
 
@@ -22,13 +40,36 @@ public class PNServer implements Runnable {
 
    private final PNServerRunArguments runArguments;
 
-   private ServerSocket serverSocket;
+   /**
+    * Written under the server's lock, and volatile so the tick can check on the host without taking it
+    */
+   private volatile ServerSocket serverSocket;
+
+   /**
+    * Carries the datagram side of every connection, on the same port as the server socket. Null if it could not be
+    * opened, in which case connections stay on TCP only.
+    */
+   private PNDatagramEndpoint datagramEndpoint;
    private PNClientAcceptHandler clientAcceptHandler;
-   private ServerState state = ServerState.INIT;
+   private volatile ServerState state = ServerState.INIT;
 
    private final int port;
    private final String host;
    private final int maxConnections;
+   private final PNAdmissionController admission;
+   private final PNConnectionRegistry connections;
+   private final PNTickScheduler ticker;
+
+   /**
+    * The totals of the connections that have closed, guarded by itself
+    */
+   private final PNServerStats retiredStats = new PNServerStats();
+
+   /**
+    * Ticks one connection: handles what it sent since the last tick and sends what was written to it
+    */
+   private final Consumer<PNConnection> connectionTicker = this::tickConnection;
+   private final PNPacketHandler packetHandler = this::handlePacket;
 
    private String errorMessage = null;
 
@@ -49,6 +90,9 @@ public class PNServer implements Runnable {
       this.port = this.runArguments.getPort();
       this.host = this.runArguments.getHost();
       this.maxConnections = this.runArguments.getMaxConnections();
+      this.admission = new PNAdmissionController(this.maxConnections, this.runArguments.getOverloadPolicy());
+      this.connections = new PNConnectionRegistry();
+      this.ticker = new PNTickScheduler("server", this.runArguments.getTickRate());
    }
 
    public PNServer(String[] args) {
@@ -70,6 +114,7 @@ public class PNServer implements Runnable {
             synchronized (this) {
                if (serverSocketResolver.didSucceed()) {
                   this.serverSocket = serverSocketResolver.getServerSocket();
+                  this.openDatagramEndpoint();
                   this.setState(ServerState.HOSTING);
                }
                else {
@@ -78,65 +123,79 @@ public class PNServer implements Runnable {
                   this.setState(ServerState.FAILED_TO_HOST);
                }
 
-               this.clientAcceptHandler = new PNClientAcceptHandler(this, (PNConnection connection) -> {
-                  PN.log(this, "Got a connection! " + connection);
+               this.clientAcceptHandler = new PNClientAcceptHandler(this, this.admission,
+                  this.runArguments.getAcceptRate(), this.runArguments.getAcceptBurst(), (PNConnection connection) -> {
+                  this.register(connection);
+                  PN.log(this, "Got a connection! " + connection + " " + this.admission);
 
-                  try { Thread.sleep(2000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                  // The accept handler calls us on its own thread, so run the test off of it
+                  runAsync(() -> {
+                     try { Thread.sleep(2000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  PN.log(this, "Testing sending bytes: " + connection);
+                     PN.log(this, "Testing sending bytes: " + connection);
 
-                  connection.getWriter().write(new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 0, 1, 2, 3, 4, 5, 6, 7, 8, 9 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  connection.getWriter().write(new byte[] { 10, 11, 12, 13, 14, 15, 16, 17, 18, 19 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 10, 11, 12, 13, 14, 15, 16, 17, 18, 19 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  connection.getWriter().write(new byte[] { 20, 21, 22, 23, 24, 25, 26, 27, 28, 29 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 20, 21, 22, 23, 24, 25, 26, 27, 28, 29 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  connection.getWriter().write(new byte[] { 30, 31, 32, 33, 34, 35, 36, 37, 38, 39 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 30, 31, 32, 33, 34, 35, 36, 37, 38, 39 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  connection.getWriter().write(new byte[] { 40, 41, 42, 43, 44, 45, 46, 47, 48, 49 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 40, 41, 42, 43, 44, 45, 46, 47, 48, 49 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  connection.getWriter().write(new byte[] { 50, 51, 52, 53, 54, 55, 56, 57, 58, 59 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 50, 51, 52, 53, 54, 55, 56, 57, 58, 59 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  connection.getWriter().write(new byte[] { 60, 61, 62, 63, 64, 65, 66, 67, 68, 69 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 60, 61, 62, 63, 64, 65, 66, 67, 68, 69 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  connection.getWriter().write(new byte[] { 70, 71, 72, 73, 74, 75, 76, 77, 78, 79 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 70, 71, 72, 73, 74, 75, 76, 77, 78, 79 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  connection.getWriter().write(new byte[] { 80, 81, 82, 83, 84, 85, 86, 87, 88, 89 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 80, 81, 82, 83, 84, 85, 86, 87, 88, 89 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  connection.getWriter().write(new byte[] { 90, 91, 92, 93, 94, 95, 96, 97, 98, 99 });
-                  try { Thread.sleep(1000); }
-                  catch (InterruptedException e) { e.printStackTrace(); }
+                     connection.getWriter().writePacket(1, new byte[] { 90, 91, 92, 93, 94, 95, 96, 97, 98, 99 });
+                     try { Thread.sleep(1000); }
+                     catch (InterruptedException e) { e.printStackTrace(); }
 
-                  try {
-                     Thread.sleep(2000);
-                  }
-                  catch (InterruptedException e) {
-                     e.printStackTrace();
-                  }
+                     PNDatagramSession datagram = connection.getDatagram();
+                     if (datagram != null && datagram.isReady()) {
+                        PN.log(this, "Testing sending datagrams: " + connection);
+                        datagram.setDeliveryMode(2, PNDeliveryMode.RELIABLE_ORDERED);
+                        for (int i = 0; i < 10; i++) {
+                           datagram.send(2, new byte[] { (byte)i });
+                        }
+                     }
 
-                  PN.log(this, "Testing orderly close: " + connection);
-                  connection.close();
+                     try {
+                        Thread.sleep(2000);
+                     }
+                     catch (InterruptedException e) {
+                        e.printStackTrace();
+                     }
 
-                  PN.log(this, "Tests finished!");
+                     PN.log(this, "Testing orderly close: " + connection);
+                     connection.close();
+
+                     PN.log(this, "Tests finished!");
+                  });
 
                }, () -> {
                   PN.log("Accept handler FAILED!");
@@ -147,44 +206,157 @@ public class PNServer implements Runnable {
    }
 
    private void loop() {
-      long i = 0;
-      while (true) {
-         try {
-            Thread.sleep(2);
+      // Log the server's state about every 10 seconds
+      long logInterval = this.ticker.getTicksPerSecond() * 10L;
+
+      this.ticker.run((tick) -> {
+         // Read without the server's lock, so a tick never waits on an accept or a close holding it
+         ServerState state = this.state;
+         if (state == ServerState.INIT || state == ServerState.ESTABLISHING_HOST) return true;
+         if (state != ServerState.HOSTING) {
+            PN.log(this, "Server no longer hosting! Exiting...");
+            return false;
          }
-         catch (InterruptedException e) {
-            PN.fatalError(e, this, "Failed to sleep thread");
+         if (!this.checkHost()) {
+            PN.log(this, "Server host checks failed! Exiting...");
+            return false;
          }
 
-         synchronized (this) {
-            if (this.isInitializing()) continue;
-            if (this.isEstablishingHost()) continue;
-            if (!this.isHosting()) {
-               PN.log(this, "Server no longer hosting! Exiting...");
-               break;
-            }
-            if (!this.checkHost()) {
-               PN.log(this, "Server host checks failed! Exiting...");
-               break;
-            }
+         this.connections.forEach(this.connectionTicker);
 
-            i++;
-            if (i % 1000 == 0) {
-               PN.log("SERVER: " + this.serverSocket.toString());
-            }
+         if (tick % logInterval == 0) {
+            PN.log("SERVER: " + this.serverSocket + " " + this.ticker + " " + this.getStats());
          }
+         return true;
+      });
+   }
+
+   private void tickConnection(PNConnection connection) {
+      connection.getInbound().drain(this.packetHandler);
+      connection.getScheduler().tick();
+      connection.getWriter().sendQueued();
+   }
+
+   private void handlePacket(int packetId, ByteBuffer payload) {
+      PN.debug(this, () -> "Received packet [id: " + packetId + ", length: " + payload.remaining() + "]");
+   }
+
+   private synchronized void openDatagramEndpoint() {
+      try {
+         this.datagramEndpoint = PNDatagramEndpoint.bind(this.host, this.port, PNEventLoopGroup.getDefault().next(),
+            PNBufferPool.getDefault());
+      }
+      catch (IOException e) {
+         PN.error(e, this, "Failed to open datagram endpoint, connections will use TCP only");
+      }
+   }
+
+   /**
+    * Offers the connection a datagram channel. The client sets it up on its own once it gets the offer.
+    */
+   private void offerDatagram(PNConnection connection) {
+      PNDatagramEndpoint endpoint = this.getDatagramEndpoint();
+      if (endpoint == null) return;
+
+      PNDatagramSession session = endpoint.offer();
+      if (!connection.setDatagram(session)) return;
+
+      ByteBuffer offer = ByteBuffer.allocate(8 + PNVarInt.MAX_BYTES);
+      offer.putLong(session.getToken());
+      PNVarInt.write(offer, endpoint.getPort());
+      connection.getWriter().writePacket(PNProtocol.UDP_OFFER, offer.array(), 0, offer.position());
+   }
+
+   /**
+    * Tracks the connection until it closes, and hands its I/O over to the tick.
+    */
+   private void register(PNConnection connection) {
+      connection.queueIO();
+      // Anything written off the tick thread still goes out within a tick should the tick stall
+      connection.getWriter().setBatchLimits(PNOutputStreamWriter.DEFAULT_MAX_BATCH_BYTES, this.ticker.getTickNanos(),
+         TimeUnit.NANOSECONDS);
+      // A client sending faster than this is simply read slower, up to a second's worth in one burst
+      int readRate = this.runArguments.getReadRate();
+      connection.getReader().setReadRate(readRate, readRate);
+      // What is queued on the scheduler goes out at this rate, most important first
+      int writeRate = this.runArguments.getWriteRate();
+      connection.getScheduler().setBudget(Math.max(1, writeRate / this.ticker.getTicksPerSecond()));
+      connection.setIdleTimeouts(PNIdleMonitor.DEFAULT_READ_TIMEOUT_MILLIS,
+         PNIdleMonitor.DEFAULT_WRITE_TIMEOUT_MILLIS, PNIdleMonitor.DEFAULT_PING_INTERVAL_MILLIS,
+         TimeUnit.MILLISECONDS);
+      this.connections.add(connection);
+      connection.addCloseListener(this::unregister);
+      this.offerDatagram(connection);
+   }
+
+   private void unregister(PNConnection connection) {
+      this.connections.remove(connection);
+      synchronized (this.retiredStats) {
+         this.retiredStats.retire(connection.getStats());
       }
    }
 
-   private synchronized boolean checkHost() {
+   /**
+    * Sends a packet to every live connection. See {@link #broadcast(Iterable, int, ByteBuffer)}.
+    */
+   public void broadcast(int packetId, byte[] payload) {
+      broadcast(packetId, ByteBuffer.wrap(payload));
+   }
+
+   public void broadcast(int packetId, ByteBuffer payload) {
+      PNBuffer frame = PNFrameEncoder.encode(PNBufferPool.getDefault(), packetId, payload);
+      try {
+         this.connections.forEach((connection) -> connection.getWriter().writeShared(frame));
+      }
+      finally {
+         frame.release();
+      }
+   }
+
+   /**
+    * Sends a packet to each connection in the group. See {@link #broadcast(Iterable, int, ByteBuffer)}.
+    */
+   public void broadcast(Iterable<PNConnection> group, int packetId, byte[] payload) {
+      broadcast(group, packetId, ByteBuffer.wrap(payload));
+   }
+
+   /**
+    * Sends a packet to each connection in the group. The packet is framed once into a single pooled buffer which
+    * every connection's writer queues by reference, so the cost of encoding and copying does not grow with the group.
+    * Each writer still makes a small read-only view of the buffer to keep its place in it, so a broadcast allocates
+    * two small objects per connection. The buffer goes back to the pool once the last connection has sent it.
+    *
+    * @param payload The payload, from its position to its limit. Its position is not moved.
+    */
+   public void broadcast(Iterable<PNConnection> group, int packetId, ByteBuffer payload) {
+      PNBuffer frame = PNFrameEncoder.encode(PNBufferPool.getDefault(), packetId, payload);
+      try {
+         for (PNConnection connection : group) {
+            connection.getWriter().writeShared(frame);
+         }
+      }
+      finally {
+         frame.release();
+      }
+   }
+
+   /**
+    * Runs every tick, so it only takes the server's lock once the host has ended.
+    */
+   private boolean checkHost() {
+      ServerSocket serverSocket = this.serverSocket;
       // If we've already set the server to NOT hosting, then nothing else needs to happen here
-      if (this.serverSocket == null || !isHosting()) {
+      if (serverSocket == null || this.state != ServerState.HOSTING) {
          return false;
       }
 
-      if (this.serverSocket.isClosed() || !this.serverSocket.isBound()) {
-         setState(ServerState.HOST_ENDED);
-         PN.log(this, "Server host ended!");
+      if (serverSocket.isClosed() || !serverSocket.isBound()) {
+         synchronized (this) {
+            if (this.state == ServerState.HOSTING) {
+               setState(ServerState.HOST_ENDED);
+               PN.log(this, "Server host ended!");
+            }
+         }
       }
 
       return true;
@@ -200,6 +372,10 @@ public class PNServer implements Runnable {
             PN.error(e, this, "Failed to close server socket!");
          }
          this.serverSocket = null;
+
+         if (this.datagramEndpoint != null) {
+            this.datagramEndpoint.close();
+         }
       }
    }
 
@@ -268,6 +444,44 @@ public class PNServer implements Runnable {
       return this.serverSocket;
    }
 
+   /**
+    * @return The scheduler running the server's ticks, along with its timing statistics
+    */
+   public PNTickScheduler getTicker() {
+      return this.ticker;
+   }
+
+   /**
+    * @return The endpoint carrying the connections' datagrams, or null if there is none
+    */
+   public synchronized PNDatagramEndpoint getDatagramEndpoint() {
+      return this.datagramEndpoint;
+   }
+
+   public PNAdmissionController getAdmission() {
+      return this.admission;
+   }
+
+   /**
+    * @return The server's live connections
+    */
+   public PNConnectionRegistry getConnections() {
+      return this.connections;
+   }
+
+   /**
+    * Totals the metrics of every connection. Takes no lock any connection uses, so it is safe to call from any thread
+    * at any rate, though a connection closing meanwhile may be counted twice or not at all.
+    */
+   public PNServerStats getStats() {
+      PNServerStats stats;
+      synchronized (this.retiredStats) {
+         stats = new PNServerStats(this.retiredStats);
+      }
+      this.connections.forEach((connection) -> stats.add(connection.getStats()));
+      return stats;
+   }
+
    public static void main(String[] args) {
       PNServer server;
       if (args.length > 0) {
@@ -7,12 +7,24 @@ public class PNServerRunArguments extends PNRunArguments {
    private PNRunArguments.RunArgument host;
    private PNRunArguments.RunArgument port;
    private PNRunArguments.RunArgument maxConnections;
+   private PNRunArguments.RunArgument tickRate;
+   private PNRunArguments.RunArgument readRate;
+   private PNRunArguments.RunArgument writeRate;
+   private PNRunArguments.RunArgument acceptRate;
+   private PNRunArguments.RunArgument acceptBurst;
+   private PNRunArguments.RunArgument overloadPolicy;
 
    public PNServerRunArguments() {
       super();
       this.host = this.addRunArgument("HOST", RunArgument.ArgumentType.STRING);
       this.port = this.addRunArgument("PORT", RunArgument.ArgumentType.INT);
       this.maxConnections = this.addRunArgument("MAX_CONNECTIONS", RunArgument.ArgumentType.INT);
+      this.tickRate = this.addRunArgument("TICK_RATE", RunArgument.ArgumentType.INT, "20");
+      this.readRate = this.addRunArgument("READ_RATE", RunArgument.ArgumentType.INT, "262144");
+      this.writeRate = this.addRunArgument("WRITE_RATE", RunArgument.ArgumentType.INT, "262144");
+      this.acceptRate = this.addRunArgument("ACCEPT_RATE", RunArgument.ArgumentType.DOUBLE, "100");
+      this.acceptBurst = this.addRunArgument("ACCEPT_BURST", RunArgument.ArgumentType.INT, "20");
+      this.overloadPolicy = this.addRunArgument("OVERLOAD_POLICY", RunArgument.ArgumentType.STRING, "REJECT");
    }
 
    public String getHost() {
@@ -27,4 +39,45 @@ public class PNServerRunArguments extends PNRunArguments {
       return this.maxConnections.getInteger();
    }
 
+   /**
+    * @return The number of ticks per second. Optional, defaults to 20.
+    */
+   public int getTickRate() {
+      return this.tickRate.getInteger();
+   }
+
+   /**
+    * @return The number of bytes per second each client may send. Optional, defaults to 256 KB.
+    */
+   public int getReadRate() {
+      return this.readRate.getInteger();
+   }
+
+   /**
+    * @return The number of bytes per second of scheduled messages each client is sent. Optional, defaults to 256 KB.
+    */
+   public int getWriteRate() {
+      return this.writeRate.getInteger();
+   }
+
+   /**
+    * @return The sustained number of clients accepted per second. Optional, defaults to 100.
+    */
+   public double getAcceptRate() {
+      return this.acceptRate.getDouble();
+   }
+
+   /**
+    * @return The number of clients that may be accepted back to back above the accept rate. Optional, defaults to 20.
+    */
+   public int getAcceptBurst() {
+      return this.acceptBurst.getInteger();
+   }
+
+   /**
+    * @return What happens to clients while the server is full, REJECT or QUEUE. Optional, defaults to REJECT.
+    */
+   public PNAdmissionController.OverloadPolicy getOverloadPolicy() {
+      return PNAdmissionController.OverloadPolicy.valueOf(this.overloadPolicy.getString().toUpperCase());
+   }
 }
@@ -0,0 +1,169 @@
+package com.medleystudios.pn.server;
+
+import com.medleystudios.pn.conn.PNConnectionStats;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A snapshot of the metrics of a server's connections, see {@link PNServer#getStats()}. Traffic, drop and loss totals
+ * count every connection the server has had, closed ones included; queue depths and round trip times only cover the
+ * connections that are live.
+ */
+public class PNServerStats {
+
+   private int connections = 0;
+   private long bytesIn = 0;
+   private long bytesOut = 0;
+   private long packetsIn = 0;
+   private long packetsOut = 0;
+   private long droppedIn = 0;
+   private long droppedOut = 0;
+   private long datagramsLost = 0;
+   private long retransmits = 0;
+
+   private long sendBacklogBytes = 0;
+   private long inboundQueued = 0;
+
+   private int rttSamples = 0;
+   private long rttTotalNanos = 0;
+   private long maxRttNanos = -1;
+   private long jitterTotalNanos = 0;
+   private long maxJitterNanos = 0;
+
+   PNServerStats() {
+   }
+
+   /**
+    * Copies the totals of the closed connections to start a snapshot from
+    */
+   PNServerStats(PNServerStats retired) {
+      this.bytesIn = retired.bytesIn;
+      this.bytesOut = retired.bytesOut;
+      this.packetsIn = retired.packetsIn;
+      this.packetsOut = retired.packetsOut;
+      this.droppedIn = retired.droppedIn;
+      this.droppedOut = retired.droppedOut;
+      this.datagramsLost = retired.datagramsLost;
+      this.retransmits = retired.retransmits;
+   }
+
+   /**
+    * Adds a closed connection's totals
+    */
+   void retire(PNConnectionStats stats) {
+      this.bytesIn += stats.getBytesIn();
+      this.bytesOut += stats.getBytesOut();
+      this.packetsIn += stats.getPacketsIn();
+      this.packetsOut += stats.getPacketsOut();
+      this.droppedIn += stats.getDroppedIn();
+      this.droppedOut += stats.getDroppedOut();
+      this.datagramsLost += stats.getDatagramsLost();
+      this.retransmits += stats.getRetransmits();
+   }
+
+   /**
+    * Adds a live connection
+    */
+   void add(PNConnectionStats stats) {
+      this.connections++;
+      this.retire(stats);
+      this.sendBacklogBytes += stats.getSendBacklogBytes();
+      this.inboundQueued += stats.getInboundQueued();
+
+      long rtt = stats.getRttNanos();
+      if (rtt >= 0) {
+         long jitter = stats.getJitterNanos();
+         this.rttSamples++;
+         this.rttTotalNanos += rtt;
+         this.maxRttNanos = Math.max(this.maxRttNanos, rtt);
+         this.jitterTotalNanos += jitter;
+         this.maxJitterNanos = Math.max(this.maxJitterNanos, jitter);
+      }
+   }
+
+   /**
+    * @return The number of live connections
+    */
+   public int getConnections() {
+      return this.connections;
+   }
+
+   public long getBytesIn() {
+      return this.bytesIn;
+   }
+
+   public long getBytesOut() {
+      return this.bytesOut;
+   }
+
+   public long getPacketsIn() {
+      return this.packetsIn;
+   }
+
+   public long getPacketsOut() {
+      return this.packetsOut;
+   }
+
+   public long getDroppedIn() {
+      return this.droppedIn;
+   }
+
+   public long getDroppedOut() {
+      return this.droppedOut;
+   }
+
+   public long getDatagramsLost() {
+      return this.datagramsLost;
+   }
+
+   public long getRetransmits() {
+      return this.retransmits;
+   }
+
+   /**
+    * @return The bytes queued to be sent across the live connections
+    */
+   public long getSendBacklogBytes() {
+      return this.sendBacklogBytes;
+   }
+
+   /**
+    * @return The received packets waiting for the tick across the live connections
+    */
+   public long getInboundQueued() {
+      return this.inboundQueued;
+   }
+
+   /**
+    * @return The mean smoothed round trip time of the live connections that have measured one, or -1 if none has
+    */
+   public long getAverageRttNanos() {
+      return this.rttSamples == 0 ? -1 : this.rttTotalNanos / this.rttSamples;
+   }
+
+   public long getMaxRttNanos() {
+      return this.maxRttNanos;
+   }
+
+   public long getAverageJitterNanos() {
+      return this.rttSamples == 0 ? 0 : this.jitterTotalNanos / this.rttSamples;
+   }
+
+   public long getMaxJitterNanos() {
+      return this.maxJitterNanos;
+   }
+
+   @Override
+   public String toString() {
+      return "PNServerStats[connections: " + this.connections + ", in: " + this.bytesIn + "B/" + this.packetsIn +
+         "p, out: " + this.bytesOut + "B/" + this.packetsOut + "p, backlog: " + this.sendBacklogBytes +
+         "B, inbound: " + this.inboundQueued + ", dropped in/out: " + this.droppedIn + "/" + this.droppedOut +
+         ", rtt avg/max: " + micros(this.getAverageRttNanos()) + "/" + micros(this.maxRttNanos) +
+         "us, jitter avg/max: " + micros(this.getAverageJitterNanos()) + "/" + micros(this.maxJitterNanos) +
+         "us, lost: " + this.datagramsLost + ", retransmits: " + this.retransmits + "]";
+   }
+
+   private static long micros(long nanos) {
+      return nanos < 0 ? -1 : TimeUnit.NANOSECONDS.toMicros(nanos);
+   }
+}
@@ -0,0 +1,212 @@
+package com.medleystudios.pn.tick;
+
+import com.medleystudios.pn.PN;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Runs a simulation at a fixed tick rate on the calling thread.
+ * <p>
+ * Ticks are scheduled against the time the scheduler started rather than against the end of the previous tick, so
+ * the time spent in a tick and the inaccuracy of sleeping do not add up into drift. A tick that runs longer than its
+ * period is counted as an overrun and the next one starts right away. If the scheduler falls more than
+ * {@link #MAX_CATCH_UP_TICKS} behind, the missed ticks are skipped rather than run back to back.
+ * <p>
+ * The statistics may be read from any thread.
+ */
+public class PNTickScheduler {
+
+   /**
+    * The most ticks run back to back to catch up after a stall before the rest are skipped
+    */
+   public static final int MAX_CATCH_UP_TICKS = 5;
+
+   private final String name;
+   private final int ticksPerSecond;
+   private final long tickNanos;
+
+   private volatile boolean running = false;
+   private volatile Thread thread;
+
+   private volatile long tick = 0;
+   private volatile long overruns = 0;
+   private volatile long skippedTicks = 0;
+   private volatile long lastWorkNanos = 0;
+   private volatile long maxWorkNanos = 0;
+   private volatile long totalWorkNanos = 0;
+
+   /**
+    * @param ticksPerSecond The tick rate, for example 20, 60 or 128
+    */
+   public PNTickScheduler(String name, int ticksPerSecond) {
+      if (ticksPerSecond <= 0) {
+         throw new IllegalArgumentException("Tick rate must be positive: " + ticksPerSecond);
+      }
+      this.name = name;
+      this.ticksPerSecond = ticksPerSecond;
+      this.tickNanos = TimeUnit.SECONDS.toNanos(1) / ticksPerSecond;
+   }
+
+   /**
+    * Runs the handler once per tick on the calling thread until it returns false or {@link #stop()} is called.
+    */
+   public void run(TickHandler handler) {
+      synchronized (this) {
+         if (this.running) {
+            throw new IllegalStateException("Tick scheduler already running " + this);
+         }
+         this.running = true;
+         this.thread = Thread.currentThread();
+      }
+
+      long nextTickTime = System.nanoTime();
+      try {
+         while (this.running) {
+            long start = System.nanoTime();
+            long tick = this.tick;
+
+            boolean keepRunning;
+            try {
+               keepRunning = handler.tick(tick);
+            }
+            catch (RuntimeException e) {
+               PN.error(e, this, "Tick " + tick + " failed!");
+               keepRunning = true;
+            }
+
+            long end = System.nanoTime();
+            this.recordWork(end - start);
+            this.tick = tick + 1;
+            if (!keepRunning) break;
+
+            nextTickTime += this.tickNanos;
+            long lag = end - nextTickTime;
+            if (lag > 0) {
+               // We are late for the next tick
+               this.overruns++;
+               long behind = lag / this.tickNanos;
+               if (behind >= MAX_CATCH_UP_TICKS) {
+                  this.skippedTicks += behind;
+                  nextTickTime += behind * this.tickNanos;
+                  PN.debug(this, () -> "Skipped " + behind + " ticks to catch up");
+               }
+               continue;
+            }
+
+            // Park until the next tick, parking again if woken early
+            long remaining;
+            while (this.running && (remaining = nextTickTime - System.nanoTime()) > 0) {
+               LockSupport.parkNanos(this, remaining);
+            }
+         }
+      }
+      finally {
+         synchronized (this) {
+            this.running = false;
+            this.thread = null;
+         }
+      }
+   }
+
+   private void recordWork(long workNanos) {
+      this.lastWorkNanos = workNanos;
+      this.totalWorkNanos += workNanos;
+      if (workNanos > this.maxWorkNanos) {
+         this.maxWorkNanos = workNanos;
+      }
+   }
+
+   /**
+    * Stops the scheduler after the current tick.
+    */
+   public synchronized void stop() {
+      this.running = false;
+      if (this.thread != null) {
+         LockSupport.unpark(this.thread);
+      }
+   }
+
+   public boolean isRunning() {
+      return this.running;
+   }
+
+   public int getTicksPerSecond() {
+      return this.ticksPerSecond;
+   }
+
+   /**
+    * @return The length of a tick in nanoseconds
+    */
+   public long getTickNanos() {
+      return this.tickNanos;
+   }
+
+   /**
+    * @return The number of ticks run so far, which is also the number of the next tick
+    */
+   public long getTick() {
+      return this.tick;
+   }
+
+   /**
+    * @return The number of ticks that ran into the time of the next one
+    */
+   public long getOverruns() {
+      return this.overruns;
+   }
+
+   /**
+    * @return The number of ticks skipped because the scheduler fell too far behind
+    */
+   public long getSkippedTicks() {
+      return this.skippedTicks;
+   }
+
+   /**
+    * @return The time the last tick took, in nanoseconds
+    */
+   public long getLastWorkNanos() {
+      return this.lastWorkNanos;
+   }
+
+   /**
+    * @return The longest time a tick has taken, in nanoseconds
+    */
+   public long getMaxWorkNanos() {
+      return this.maxWorkNanos;
+   }
+
+   /**
+    * @return The average time a tick has taken, in nanoseconds
+    */
+   public long getAverageWorkNanos() {
+      long tick = this.tick;
+      return tick == 0 ? 0 : this.totalWorkNanos / tick;
+   }
+
+   /**
+    * @return The fraction of the tick period the average tick takes, where 1 means ticks use their whole period
+    */
+   public double getLoad() {
+      return (double)this.getAverageWorkNanos() / this.tickNanos;
+   }
+
+   @Override
+   public String toString() {
+      return "PNTickScheduler[" + this.name + ", rate: " + this.ticksPerSecond + "Hz, tick: " + this.tick +
+         ", overruns: " + this.overruns + ", skipped: " + this.skippedTicks + ", avg: " +
+         TimeUnit.NANOSECONDS.toMicros(this.getAverageWorkNanos()) + "us, max: " +
+         TimeUnit.NANOSECONDS.toMicros(this.maxWorkNanos) + "us]";
+   }
+
+   public interface TickHandler {
+      /**
+       * Runs once per tick on the scheduler's thread.
+       *
+       * @param tick The number of the tick, counting from 0
+       * @return Return false to stop the scheduler
+       */
+      boolean tick(long tick);
+   }
+}
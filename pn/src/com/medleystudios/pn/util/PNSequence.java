@@ -0,0 +1,37 @@
+package com.medleystudios.pn.util;
+
+/**
+ * Arithmetic on 16-bit sequence numbers that wrap around. A number is newer than another if it is ahead of it by less
+ * than half the sequence space, so comparisons keep working across the wrap.
+ */
+public class PNSequence {
+
+   public static final int MODULUS = 1 << 16;
+   public static final int MASK = MODULUS - 1;
+   private static final int HALF = MODULUS / 2;
+
+   private PNSequence() {
+   }
+
+   /**
+    * @return The sequence number after the given one
+    */
+   public static int next(int sequence) {
+      return (sequence + 1) & MASK;
+   }
+
+   /**
+    * @return Returns true if a is newer than b
+    */
+   public static boolean isNewer(int a, int b) {
+      return a != b && ((a - b) & MASK) < HALF;
+   }
+
+   /**
+    * @return How far a is ahead of b, negative if it is behind
+    */
+   public static int distance(int a, int b) {
+      int diff = (a - b) & MASK;
+      return diff < HALF ? diff : diff - MODULUS;
+   }
+}
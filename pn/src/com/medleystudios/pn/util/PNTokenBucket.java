@@ -0,0 +1,92 @@
+package com.medleystudios.pn.util;
+
+/**
+ * A token bucket rate limiter. Tokens refill continuously at a fixed rate up to a maximum burst; each unit of work
+ * takes tokens and is refused when there are not enough.
+ * <p>
+ * Not thread-safe. Every bucket in PlexNet is owned by a single thread, such as the accept thread or a connection's
+ * event loop.
+ */
+public class PNTokenBucket {
+
+   private static final double NANOS_PER_SECOND = 1_000_000_000.0;
+
+   private double ratePerNano;
+   private double burst;
+
+   private double tokens;
+   private long lastRefillNanos;
+
+   /**
+    * @param ratePerSecond The number of tokens added per second
+    * @param burst         The most tokens the bucket holds. The bucket starts full.
+    */
+   public PNTokenBucket(double ratePerSecond, double burst) {
+      this.setRate(ratePerSecond, burst);
+      this.tokens = burst;
+      this.lastRefillNanos = System.nanoTime();
+   }
+
+   public void setRate(double ratePerSecond, double burst) {
+      if (ratePerSecond <= 0 || burst <= 0) {
+         throw new IllegalArgumentException("Rate and burst must be positive: " + ratePerSecond + ", " + burst);
+      }
+      this.ratePerNano = ratePerSecond / NANOS_PER_SECOND;
+      this.burst = burst;
+      this.tokens = Math.min(this.tokens, burst);
+   }
+
+   private void refill(long nowNanos) {
+      long elapsed = nowNanos - this.lastRefillNanos;
+      if (elapsed <= 0) return;
+
+      this.tokens = Math.min(this.burst, this.tokens + elapsed * this.ratePerNano);
+      this.lastRefillNanos = nowNanos;
+   }
+
+   public boolean tryAcquire() {
+      return tryAcquire(1);
+   }
+
+   /**
+    * Takes the tokens if the bucket has them.
+    *
+    * @return True if the tokens were taken
+    */
+   public boolean tryAcquire(double amount) {
+      refill(System.nanoTime());
+      if (this.tokens < amount) return false;
+
+      this.tokens -= amount;
+      return true;
+   }
+
+   /**
+    * Takes the tokens whether or not the bucket has them, letting it go into debt. Useful when the work has already
+    * happened, e.g. bytes that were already read.
+    */
+   public void consume(double amount) {
+      refill(System.nanoTime());
+      this.tokens -= amount;
+   }
+
+   /**
+    * @return How long until the bucket holds the amount, 0 if it already does
+    */
+   public long nanosUntilAvailable(double amount) {
+      refill(System.nanoTime());
+      if (this.tokens >= amount) return 0;
+      return (long)Math.ceil((amount - this.tokens) / this.ratePerNano);
+   }
+
+   public double getTokens() {
+      refill(System.nanoTime());
+      return this.tokens;
+   }
+
+   @Override
+   public String toString() {
+      return "PNTokenBucket[rate: " + (this.ratePerNano * NANOS_PER_SECOND) + "/s, burst: " + this.burst +
+         ", tokens: " + this.tokens + "]";
+   }
+}
@@ -4,6 +4,7 @@ import com.medleystudios.pn.PN;
 
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.nio.ByteBuffer;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.time.Instant;
@@ -82,4 +83,19 @@ public class PNUtil {
       return toString(array, "");
    }
 
+   private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+   /**
+    * @return The bytes between the two absolute indices as space separated hex pairs. Does not move the buffer.
+    */
+   public static String toHexString(ByteBuffer buffer, int from, int to) {
+      StringBuilder result = new StringBuilder(Math.max(0, to - from) * 3);
+      for (int i = from; i < to; i++) {
+         int b = buffer.get(i) & 0xFF;
+         if (i > from) result.append(' ');
+         result.append(HEX_DIGITS[b >>> 4]).append(HEX_DIGITS[b & 0xF]);
+      }
+      return result.toString();
+   }
+
 }